@@ -3,7 +3,6 @@ package com.example.miband.Activities;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.fragment.app.FragmentActivity;
 
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -11,16 +10,25 @@ import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
 import android.text.InputType;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import com.example.miband.Bluetooth.HeartRateGattCallback;
-import com.example.miband.DataStructures.HeartRate;
+import com.example.miband.DataStructures.HeartRateRingBuffer;
+import com.example.miband.Device.DeviceService;
+import com.example.miband.Device.MeasurementSession;
 import com.example.miband.Device.MiBandDevice;
-import com.example.miband.MainActivity;
+import com.example.miband.Device.MiBandService;
+import com.example.miband.Processing.AlertRule;
+import com.example.miband.Processing.PulseAggregator;
+import com.example.miband.Processing.RollingStatistics;
 import com.example.miband.R;
 import com.example.miband.Utils.AndroidUtils;
 import com.github.mikephil.charting.charts.LineChart;
@@ -35,29 +43,60 @@ import com.github.mikephil.charting.formatter.IValueFormatter;
 import com.github.mikephil.charting.interfaces.datasets.ILineDataSet;
 import com.github.mikephil.charting.utils.ViewPortHandler;
 
-import java.net.URL;
 import java.text.DecimalFormat;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DeviceControlActivity extends AppCompatActivity {
     public static String TAG = "MiBand: DeviceControlActivity";
 
-    HeartRateGattCallback heartrateGattCallback;
-    ScheduledExecutorService service;
-
     Button clickBtn;
     Button offBtn;
     MiBandDevice mDevice;
 
     private LineChart mChart;
+    private TextView mStatisticsView;
 
     private static final float TOTAL_MEMORY = 190.0f;
     private static final float LIMIT_MAX_MEMORY = 180.0f;
+    private static final int MAX_CHART_ENTRIES = 120;
+
+    private String serverAddress;
+    private PulseAggregator.Resolution mResolution = PulseAggregator.Resolution.NONE;
+
+    // owned by the DeviceService, outlives this activity
+    private MeasurementSession mSession;
+    private final AtomicBoolean mChartUpdatePending = new AtomicBoolean();
+    private long mChartSequence;
 
-    private String serverUrl;
-    private String simulationId;
+    private final Runnable mChartUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mChartUpdatePending.set(false);
+            updateChart();
+        }
+    };
+
+    // runs on the bus threads of the session
+    private final MeasurementSession.Listener mSessionListener = new MeasurementSession.Listener() {
+        @Override
+        public void onSample(long timestamp, int value) {
+            scheduleChartUpdate();
+        }
+
+        @Override
+        public void onAlert(AlertRule rule, long timestamp, int value, boolean raised) {
+            if (raised) {
+                AndroidUtils.toast(DeviceControlActivity.this, rule.getName() + ": " + value, Toast.LENGTH_LONG);
+            }
+        }
+    };
+
+    private final HeartRateRingBuffer.Visitor mChartVisitor = new HeartRateRingBuffer.Visitor() {
+        @Override
+        public void visit(long sequence, long timestamp, int value) {
+            addChartEntry(sequence, value);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -88,15 +127,23 @@ public class DeviceControlActivity extends AppCompatActivity {
                 serverIpField.setHint("IP Serwera");
                 layout.addView(serverIpField);
 
+                final Spinner aggregationField = new Spinner(DeviceControlActivity.this);
+                ArrayAdapter<CharSequence> aggregationOptions = ArrayAdapter.createFromResource(DeviceControlActivity.this,
+                        R.array.aggregation_options, android.R.layout.simple_spinner_item);
+                aggregationOptions.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+                aggregationField.setAdapter(aggregationOptions);
+                aggregationField.setSelection(mResolution.ordinal());
+                layout.addView(aggregationField);
+
                 builder.setView(layout);
 
                 builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        setServerURL("http://" + serverIpField.getText().toString() + "/mibandpulse/sendPulse.php");
-                        setSimulationId(simulationIdField.getText().toString());
+                        serverAddress = serverIpField.getText().toString();
+                        mResolution = PulseAggregator.Resolution.values()[aggregationField.getSelectedItemPosition()];
 
-                        startHeartRateMeasurement();
+                        startHeartRateMeasurement(simulationIdField.getText().toString());
                     }
                 });
                 builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -119,8 +166,7 @@ public class DeviceControlActivity extends AppCompatActivity {
             public void onClick(View v) {
                 AndroidUtils.toast(DeviceControlActivity.this, "Wyłączono czytnik", Toast.LENGTH_SHORT);
 
-                service.shutdownNow();
-                heartrateGattCallback.enableRealtimeHeartRateMeasurement(false);
+                new MiBandService(DeviceControlActivity.this).stopMeasurement();
 
                 LineData data = mChart.getData();
 
@@ -130,8 +176,8 @@ public class DeviceControlActivity extends AppCompatActivity {
             }
         });
 
-
         mChart = findViewById(R.id.chart);
+        mStatisticsView = findViewById(R.id.statistics);
 
         setupChart();
         setupAxes();
@@ -139,47 +185,61 @@ public class DeviceControlActivity extends AppCompatActivity {
         setLegend();
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void startHeartRateMeasurement(){
-        AndroidUtils.toast(DeviceControlActivity.this, "Odczyt pulsu rozpoczęty", Toast.LENGTH_SHORT);
-
-        heartrateGattCallback = new HeartRateGattCallback(MainActivity.getMiBandSupport(), DeviceControlActivity.this);
-        service = Executors.newSingleThreadScheduledExecutor();
-        service.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                FragmentActivity activity = DeviceControlActivity.this;
-                if (!activity.isFinishing() && !activity.isDestroyed()) {
-                    activity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            heartrateGattCallback.enableRealtimeHeartRateMeasurement(true);
-                        }
-                    });
-                }
-            }
-        }, 0, 4000, TimeUnit.MILLISECONDS);
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.device_control, menu);
+        return true;
     }
 
-    public void setServerURL(String url){
-        serverUrl = url;
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
-    public String getServerUrl(){
-        return serverUrl;
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void startHeartRateMeasurement(String simulationId) {
+        AndroidUtils.toast(DeviceControlActivity.this, "Odczyt pulsu rozpoczęty", Toast.LENGTH_SHORT);
+
+        // the service runs the measurement, samples reach the chart through the session listener
+        new MiBandService(this).startMeasurement(serverAddress, simulationId, mResolution);
+        attachSession();
     }
 
-    public void setSimulationId(String id){
-        simulationId = id;
+    @Override
+    protected void onStart() {
+        super.onStart();
+        attachSession();
+        if (mSession != null) {
+            mResolution = mSession.getResolution();
+        }
     }
 
-    public String getSimulationId(){
-        return simulationId;
+    private void attachSession() {
+        if (mSession != null) {
+            return;
+        }
+        mSession = DeviceService.getMeasurementSession();
+        if (mSession != null) {
+            // only the most recent samples fit on the chart
+            HeartRateRingBuffer samples = mSession.getSamples();
+            mChartSequence = Math.max(mChartSequence, samples.getNextSequence() - MAX_CHART_ENTRIES);
+            mSession.setListener(mSessionListener);
+            scheduleChartUpdate();
+        }
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
+    protected void onStop() {
+        if (mSession != null) {
+            // the measurement goes on, only the chart stops following it
+            mSession.setListener(null);
+            mSession = null;
+        }
+        super.onStop();
     }
 
     private void setupChart() {
@@ -259,28 +319,75 @@ public class DeviceControlActivity extends AppCompatActivity {
         return set;
     }
 
-    public void addEntry(HeartRate heartRate) {
+    /**
+     * Schedules a chart update, may be called from any thread.
+     */
+    private void scheduleChartUpdate() {
+        if (mChartUpdatePending.compareAndSet(false, true)) {
+            runOnUiThread(mChartUpdater);
+        }
+    }
+
+    private void updateChart() {
         LineData data = mChart.getData();
+        if (data == null || mSession == null) {
+            return;
+        }
+        long previous = mChartSequence;
+        mChartSequence = mSession.getSamples().readFrom(mChartSequence, mChartVisitor);
+        if (mChartSequence == previous) {
+            return;
+        }
 
-        if (data != null) {
-            ILineDataSet set = data.getDataSetByIndex(0);
+        // let the chart know it's data has changed
+        data.notifyDataChanged();
+        mChart.notifyDataSetChanged();
 
-            if (set == null) {
-                set = createSet();
-                data.addDataSet(set);
-            }
+        // limit the number of visible entries
+        mChart.setVisibleXRangeMaximum(10);
+
+        // move to the latest entry
+        mChart.moveViewToX(mChartSequence);
+
+        updateStatistics();
+    }
 
-            data.addEntry(new Entry(set.getEntryCount(), heartRate.getValue()), 0);
+    private void updateStatistics() {
+        RollingStatistics statistics = mSession.getStatistics();
+        int windowMin;
+        int windowMax;
+        double mean;
+        double deviation;
+        int p95;
+        synchronized (statistics) {
+            windowMin = statistics.getWindowMin();
+            windowMax = statistics.getWindowMax();
+            mean = statistics.getMean();
+            deviation = statistics.getStandardDeviation();
+            p95 = statistics.getPercentile(95);
+        }
+        mStatisticsView.setText(getString(R.string.pulse_statistics, windowMin, windowMax, mean, deviation, p95));
+    }
 
-            // let the chart know it's data has changed
-            data.notifyDataChanged();
-            mChart.notifyDataSetChanged();
+    private void addChartEntry(long sequence, int value) {
+        LineData data = mChart.getData();
+        ILineDataSet set = data.getDataSetByIndex(0);
 
-            // limit the number of visible entries
-            mChart.setVisibleXRangeMaximum(10);
+        if (set == null) {
+            set = createSet();
+            data.addDataSet(set);
+        }
 
-            // move to the latest entry
-            mChart.moveViewToX(data.getEntryCount());
+        Entry entry;
+        if (set.getEntryCount() >= MAX_CHART_ENTRIES) {
+            // recycle the oldest entry, older samples stay in the ring buffer
+            entry = set.getEntryForIndex(0);
+            set.removeFirst();
+            entry.setX(sequence);
+            entry.setY(value);
+        } else {
+            entry = new Entry(sequence, value);
         }
+        data.addEntry(entry, 0);
     }
 }
@@ -27,8 +27,10 @@ import androidx.core.app.ActivityCompat;
 
 import com.example.miband.Device.DeviceCandidateAdapter;
 import com.example.miband.Device.MiBandDevice;
+import com.example.miband.Device.PhaseTimer;
 import com.example.miband.R;
 import com.example.miband.Utils.AndroidUtils;
+import com.example.miband.Utils.EventTrace;
 
 import java.util.ArrayList;
 import java.util.Objects;
@@ -84,7 +86,10 @@ public class DiscoveryActivity extends AppCompatActivity implements AdapterView.
     private final BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
         @Override
         public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-            logMessageContent(scanRecord);
+            if (EventTrace.ENABLED) {
+                EventTrace.record(EventTrace.Event.SCAN_RESULT, EventTrace.packAddress(device.getAddress()), rssi,
+                        scanRecord != null ? scanRecord.length : 0, EventTrace.packBytes(scanRecord));
+            }
             if (device.getName() != null){
                 handleDeviceFound(device);
             }
@@ -104,12 +109,6 @@ public class DiscoveryActivity extends AppCompatActivity implements AdapterView.
         candidateListAdapter.notifyDataSetChanged();
     }
 
-    public void logMessageContent(byte[] value) {
-        if (value != null) {
-            Log.d(DiscoveryActivity.TAG, "DATA: " + AndroidUtils.hexdump(value, 0, value.length));
-        }
-    }
-
     private final Runnable stopRunnable = new Runnable() {
         @Override
         public void run() {
@@ -364,6 +363,7 @@ public class DiscoveryActivity extends AppCompatActivity implements AdapterView.
         }
 
         stopDiscovery();
+        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.DEVICE_SELECTED);
 
         Log.d(DiscoveryActivity.TAG, "Using device candidate " + deviceCandidate.getName() + " " + deviceCandidate.getAddress());
 
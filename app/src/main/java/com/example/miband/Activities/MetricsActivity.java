@@ -0,0 +1,87 @@
+package com.example.miband.Activities;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.example.miband.R;
+import com.example.miband.Utils.EventTrace;
+import com.example.miband.Utils.Metrics;
+
+/**
+ * Debug screen with every metric of the app as text, refreshed every second. Sharing adds the
+ * recorded events of the {@link EventTrace} in builds that have it.
+ */
+public class MetricsActivity extends AppCompatActivity {
+    public static String TAG = "MiBand: MetricsActivity";
+
+    private static final long REFRESH_MILLIS = 1000;
+
+    private TextView mMetricsView;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mRefresher = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsView.setText(Metrics.getInstance().dump());
+            mHandler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        setTitle(R.string.metrics_title);
+        mMetricsView = findViewById(R.id.metrics);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mRefresher.run();
+    }
+
+    @Override
+    protected void onStop() {
+        mHandler.removeCallbacks(mRefresher);
+        super.onStop();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_share_metrics:
+                String dump = Metrics.getInstance().dump();
+                if (EventTrace.ENABLED) {
+                    dump += "# trace, ms before now\n" + EventTrace.dump();
+                }
+                // also readable with adb logcat
+                Log.d(MetricsActivity.TAG, dump);
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.metrics_title));
+                intent.putExtra(Intent.EXTRA_TEXT, dump);
+                startActivity(Intent.createChooser(intent, getString(R.string.metrics_share)));
+                return true;
+            case R.id.action_reset_metrics:
+                Metrics.getInstance().reset();
+                mMetricsView.setText(Metrics.getInstance().dump());
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.miband.Device.MiBandDevice;
 import com.example.miband.Device.MiBandService;
+import com.example.miband.Device.PhaseTimer;
 import com.example.miband.R;
 import com.example.miband.Utils.AndroidUtils;
 
@@ -59,6 +60,7 @@ public class PairingActivity extends AppCompatActivity {
                     int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
                     if (bondState == BluetoothDevice.BOND_BONDED) {
                         Log.d(PairingActivity.TAG, "Bonded with " + device.getAddress());
+                        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.BONDED);
                         bondingAddress = null;
                         attemptToConnect();
                     } else if (bondState == BluetoothDevice.BOND_BONDING) {
@@ -195,6 +197,7 @@ public class PairingActivity extends AppCompatActivity {
 
         int bondState = device.getBondState();
         if (bondState == BluetoothDevice.BOND_BONDED) {
+            PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.BONDED);
             AndroidUtils.toast(this, "Już powiązano z " + device.getName() + " (" + device.getAddress() + "), łączenie…", Toast.LENGTH_SHORT);
             performApplicationLevelPair();
             return;
@@ -206,6 +209,7 @@ public class PairingActivity extends AppCompatActivity {
             return;
         }
 
+        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.BONDING);
         AndroidUtils.toast(this, "Tworzą wiązanie z: " + device.getName() + " (" + bondingAddress + ")", Toast.LENGTH_LONG);
         if (!device.createBond()) {
             AndroidUtils.toast(this, "Nie można powiązać z: " + device.getName() + " (" + bondingAddress + ")", Toast.LENGTH_LONG);
@@ -19,5 +19,11 @@ public abstract class AbstractGattListenerWriteAction extends WriteAction {
         };
     }
 
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        // the listeners may differ even if the writes are the same
+        return other == this;
+    }
+
     abstract void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic);
 }
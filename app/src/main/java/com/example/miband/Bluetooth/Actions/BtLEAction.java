@@ -11,12 +11,15 @@ import java.util.Date;
 import java.util.UUID;
 
 public abstract class BtLEAction {
-    static final UUID UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION = UUID.fromString((String.format(MiBandService.BASE_UUID, "2902")));
+    public static final UUID UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION = UUID.fromString((String.format(MiBandService.BASE_UUID, "2902")));
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
 
     private final BluetoothGattCharacteristic characteristic;
     private final long creationTimestamp;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
 
-    BtLEAction(BluetoothGattCharacteristic characteristic) {
+    protected BtLEAction(BluetoothGattCharacteristic characteristic) {
         this.characteristic = characteristic;
         creationTimestamp = System.currentTimeMillis();
     }
@@ -30,6 +33,26 @@ public abstract class BtLEAction {
      */
     public abstract boolean expectsResult();
 
+    /**
+     * Returns how long the queue waits for the result of this action. If it doesn't arrive in
+     * time the rest of the transaction is dropped and the queue goes on with the next one.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns true if running the other action would have the same effect as running this one,
+     * so that one of them is redundant while both are waiting in the queue.
+     */
+    public boolean isEquivalent(BtLEAction other) {
+        return other == this;
+    }
+
     /**
      * Executes this action, e.g. reads or write a GATT characteristic.
      *
@@ -0,0 +1,47 @@
+package com.example.miband.Bluetooth.Actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Asks for a shorter or longer connection interval. Android doesn't report when the band agreed,
+ * the following actions simply run with the new interval once it is in place.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class ConnectionPriorityAction extends BtLEAction {
+    private final int connectionPriority;
+
+    public ConnectionPriorityAction(int connectionPriority) {
+        super(null);
+        this.connectionPriority = connectionPriority;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    @Override
+    public boolean run(BluetoothGatt gatt) {
+        return gatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public boolean expectsResult() {
+        return false;
+    }
+
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        return other instanceof ConnectionPriorityAction
+                && ((ConnectionPriorityAction) other).connectionPriority == connectionPriority;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return super.toString() + " to " + connectionPriority;
+    }
+}
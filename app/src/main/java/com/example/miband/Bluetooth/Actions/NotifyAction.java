@@ -10,15 +10,32 @@ public class NotifyAction extends BtLEAction {
     public static String TAG = "MiBand: NotifyAction";
     private final boolean enableFlag;
     private boolean hasWrittenDescriptor = true;
+    private boolean registerOnly;
 
     public NotifyAction(BluetoothGattCharacteristic characteristic, boolean enable) {
         super(characteristic);
         enableFlag = enable;
     }
 
+    /**
+     * Only registers the notifications with Android, without writing the descriptor. For a
+     * bonded band that still has them enabled from an earlier connection.
+     */
+    public void setRegisterOnly(boolean registerOnly) {
+        this.registerOnly = registerOnly;
+    }
+
+    public boolean isRegisterOnly() {
+        return registerOnly;
+    }
+
     @Override
     public boolean run(BluetoothGatt gatt) {
         boolean result = gatt.setCharacteristicNotification(getCharacteristic(), enableFlag);
+        if (registerOnly) {
+            hasWrittenDescriptor = false;
+            return result;
+        }
         if (result) {
             BluetoothGattDescriptor notifyDescriptor = getCharacteristic().getDescriptor(UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION);
             if (notifyDescriptor != null) {
@@ -46,6 +63,20 @@ public class NotifyAction extends BtLEAction {
         return result;
     }
 
+    public boolean isEnable() {
+        return enableFlag;
+    }
+
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        if (!(other instanceof NotifyAction)) {
+            return false;
+        }
+        NotifyAction action = (NotifyAction) other;
+        return action.enableFlag == enableFlag && action.registerOnly == registerOnly
+                && action.getCharacteristic().getUuid().equals(getCharacteristic().getUuid());
+    }
+
     @Override
     public boolean expectsResult() {
         return hasWrittenDescriptor;
@@ -0,0 +1,49 @@
+package com.example.miband.Bluetooth.Actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Asks for a larger MTU, the result arrives with onMtuChanged. A band that doesn't support it
+ * keeps the default MTU, which doesn't abort the transaction.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class RequestMtuAction extends BtLEAction {
+    private static final long MTU_TIMEOUT_MILLIS = 2000;
+
+    private final int mtu;
+
+    public RequestMtuAction(int mtu) {
+        super(null);
+        this.mtu = mtu;
+        setTimeoutMillis(MTU_TIMEOUT_MILLIS);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public boolean run(BluetoothGatt gatt) {
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean expectsResult() {
+        return true;
+    }
+
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        return other instanceof RequestMtuAction && ((RequestMtuAction) other).mtu == mtu;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return super.toString() + " to " + mtu;
+    }
+}
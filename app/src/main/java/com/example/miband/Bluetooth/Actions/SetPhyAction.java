@@ -0,0 +1,51 @@
+package com.example.miband.Bluetooth.Actions;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Asks for the given PHY in both directions, the result arrives with onPhyUpdate. If the phone
+ * or the band doesn't support it, the connection stays on the 1M PHY.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+public class SetPhyAction extends BtLEAction {
+    private static final long PHY_TIMEOUT_MILLIS = 2000;
+
+    private final int phyMask;
+
+    public SetPhyAction(int phyMask) {
+        super(null);
+        this.phyMask = phyMask;
+        setTimeoutMillis(PHY_TIMEOUT_MILLIS);
+    }
+
+    public int getPhyMask() {
+        return phyMask;
+    }
+
+    @Override
+    public boolean run(BluetoothGatt gatt) {
+        gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    @Override
+    public boolean expectsResult() {
+        return true;
+    }
+
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        return other instanceof SetPhyAction && ((SetPhyAction) other).phyMask == phyMask;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return super.toString() + " to " + phyMask;
+    }
+}
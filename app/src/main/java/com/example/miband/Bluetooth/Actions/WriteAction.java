@@ -2,7 +2,7 @@ package com.example.miband.Bluetooth.Actions;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.util.Log;
+import com.example.miband.Utils.EventTrace;
 
 import java.util.Arrays;
 
@@ -27,7 +27,10 @@ public class WriteAction extends BtLEAction {
     }
 
     private boolean writeValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
-        Log.d(WriteAction.TAG, "writing to characteristic: " + characteristic.getUuid() + ": " + Arrays.toString(value));
+        if (EventTrace.ENABLED) {
+            EventTrace.record(EventTrace.Event.CHARACTERISTIC_WRITE, characteristic.getUuid().getMostSignificantBits(),
+                    value.length, EventTrace.packBytes(value));
+        }
 
         if (characteristic.setValue(value)) {
             return gatt.writeCharacteristic(characteristic);
@@ -35,8 +38,31 @@ public class WriteAction extends BtLEAction {
         return false;
     }
 
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean isEquivalent(BtLEAction other) {
+        if (other == null || other.getClass() != getClass()) {
+            return false;
+        }
+        WriteAction action = (WriteAction) other;
+        return Arrays.equals(action.value, value)
+                && action.getCharacteristic().getUuid().equals(getCharacteristic().getUuid());
+    }
+
+    /**
+     * Returns true if the band doesn't acknowledge the write. Android picks this write type by
+     * itself for characteristics that only support writing without response. The queue then only
+     * waits for a write credit instead of the result, see {@link com.example.miband.Bluetooth.BluetoothQueue}.
+     */
+    public boolean isWithoutResponse() {
+        return getCharacteristic().getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
     @Override
     public boolean expectsResult() {
-        return true;
+        return !isWithoutResponse();
     }
 }
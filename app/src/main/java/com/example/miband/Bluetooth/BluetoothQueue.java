@@ -19,14 +19,31 @@ import androidx.annotation.RequiresApi;
 
 import com.example.miband.Bluetooth.Actions.AbstractGattListenerWriteAction;
 import com.example.miband.Bluetooth.Actions.BtLEAction;
+import com.example.miband.Bluetooth.Actions.ConnectionPriorityAction;
+import com.example.miband.Bluetooth.Actions.NotifyAction;
+import com.example.miband.Bluetooth.Actions.RequestMtuAction;
+import com.example.miband.Bluetooth.Actions.SetPhyAction;
+import com.example.miband.Bluetooth.Actions.WriteAction;
 import com.example.miband.Device.MiBandDevice;
+import com.example.miband.Device.MiBandService;
+import com.example.miband.Device.PhaseTimer;
+import com.example.miband.Utils.EventTrace;
+import com.example.miband.Utils.Histogram;
+import com.example.miband.Utils.LatencyRecorder;
+import com.example.miband.Utils.Metrics;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BluetoothQueue {
 
@@ -37,45 +54,140 @@ public class BluetoothQueue {
     private final BluetoothAdapter mBluetoothAdapter;
     private BluetoothGatt mBluetoothGatt;
 
-    private final BlockingQueue<Transaction> mTransactions = new LinkedBlockingQueue<>();
-    private volatile boolean mCrashed;
+    // how long a transaction waits for the connection before it is dropped
+    static final long CONNECTION_TIMEOUT_MILLIS = 30000;
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1000;
+    // time an action may take on top of its own timeout before the dispatcher is considered stuck
+    private static final long WATCHDOG_GRACE_MILLIS = 5000;
+    // writes without response that may be handed to the stack before its write callbacks return
+    static final int WRITE_WINDOW = 4;
+    private static final int DEFAULT_MTU = 23;
+    private static final int ROUND_TRIP_SAMPLES = 256;
+    // latency key of actions without a characteristic
+    private static final UUID NO_CHARACTERISTIC = new UUID(0, 0);
+    private static final long BLUETOOTH_BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final TransactionScheduler.Equivalence<Transaction> TRANSACTION_EQUIVALENCE = new TransactionScheduler.Equivalence<Transaction>() {
+        @Override
+        public boolean isEquivalent(Transaction a, Transaction b) {
+            return a.isEquivalent(b);
+        }
+    };
+
+    private final TransactionScheduler<Transaction> mTransactions = new TransactionScheduler<>();
+    private volatile boolean mDisposed;
     private volatile boolean mAbortTransaction;
+    // only written by the dispatcher thread
+    private volatile long mOperationCount;
 
     private final Context mContext;
-    private CountDownLatch mWaitForActionResultLatch;
-    private CountDownLatch mConnectionLatch;
+    private volatile CountDownLatch mWaitForActionResultLatch;
+    private volatile CountDownLatch mConnectionLatch;
     private BluetoothGattCharacteristic mWaitCharacteristic;
     private final InternalGattCallback internalGattCallback;
 
+    private volatile Thread mDispatchThread;
+    private final Thread mWatchdogThread;
+    // the action the dispatcher is running, watched by the watchdog
+    private volatile BtLEAction mCurrentAction;
+    private volatile long mCurrentActionStart;
+
+    private final AtomicInteger mConnectionTimeouts = new AtomicInteger();
+    private final AtomicInteger mStuckActions = new AtomicInteger();
+    private final AtomicInteger mDispatcherRestarts = new AtomicInteger();
+
+    // state of the current connection, as confirmed by the band
+    private final Map<UUID, Boolean> mNotificationStates = new ConcurrentHashMap<>();
+    private final AtomicInteger mEliminatedOperations = new AtomicInteger();
+    private volatile ConnectionProfile mConnectionProfile = ConnectionProfile.BALANCED;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile int mPhyMask = BluetoothDevice.PHY_LE_1M_MASK;
+    // asked once per connection, whatever the band answered
+    private volatile boolean mMtuNegotiated;
+    private volatile boolean mPhyNegotiated;
+    // acknowledged characteristic and descriptor operations, in microseconds
+    private final Map<ConnectionProfile, LatencyRecorder> mRoundTripTimes = new EnumMap<>(ConnectionProfile.class);
+    private volatile GattLayoutCache mLayoutCache;
+    private volatile long mLastDisconnectTime;
+
+    // one credit per write without response, given back by the stack's write callback
+    private volatile Semaphore mWriteCredits = new Semaphore(WRITE_WINDOW);
+    private final AtomicInteger mWritesInFlight = new AtomicInteger();
+    // only used by the dispatcher thread
+    private WriteAction mLastWriteWithoutResponse;
+    private volatile long mWriteWithoutResponseCount;
+
+    private final Metrics mMetrics = Metrics.getInstance();
+    // from being queued to being taken by the dispatcher
+    private final Histogram mWaitTime = mMetrics.histogram("gatt.wait.us");
+    // the dispatcher waiting for the next transaction
+    private final Histogram mIdleTime = mMetrics.histogram("gatt.dispatcher.idle.us");
+    private final Metrics.Counter mTimedOutActions = mMetrics.counter("gatt.aborts.timeout");
+    private final Metrics.Counter mRejectedActions = mMetrics.counter("gatt.aborts.rejected");
+    private final Metrics.Counter mFailedActions = mMetrics.counter("gatt.aborts.failed");
+    private final Metrics.Counter mNotifications = mMetrics.counter("gatt.notifications");
+    // from running an action to its callback, by action type and characteristic, only used by
+    // the dispatcher thread
+    private final Map<Class<? extends BtLEAction>, Map<UUID, Histogram>> mActionLatencies = new HashMap<>();
+
     public BluetoothQueue(BluetoothAdapter bluetoothAdapter, MiBandDevice device, BluetoothGattCallback externalGattCallback, Context context) {
         mBluetoothAdapter = bluetoothAdapter;
         mDevice = device;
         internalGattCallback = new InternalGattCallback(externalGattCallback);
         mContext = context;
+        for (ConnectionProfile profile : ConnectionProfile.values()) {
+            mRoundTripTimes.put(profile, new LatencyRecorder(ROUND_TRIP_SAMPLES));
+        }
+        registerGauges();
+
+        mDispatchThread = createDispatchThread();
+        mDispatchThread.start();
+
+        mWatchdogThread = new Thread("GATT Watchdog") {
+            @Override
+            public void run() {
+                while (!mDisposed) {
+                    try {
+                        Thread.sleep(WATCHDOG_INTERVAL_MILLIS);
+                        checkDispatcher();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        mWatchdogThread.setDaemon(true);
+        mWatchdogThread.start();
+    }
 
-        // Run all actions of the transaction until one doesn't succeed
-        // got disconnected
-        // this special action overwrites the transaction gatt listener (if any), it must
-        // always be the last action in the transaction
-        // check again, maybe due to some condition, action did not need to write, so we can't wait
-        // abort the transaction
-        Thread dispatchThread = new Thread("GATT Dispatcher") {
+    private Thread createDispatchThread() {
+        return new Thread("GATT Dispatcher") {
 
             @Override
             public void run() {
                 Log.d(BluetoothQueue.TAG, "Queue Dispatch Thread started.");
 
-                while (!mCrashed) {
+                while (!mDisposed) {
                     try {
+                        long idleStart = System.nanoTime();
                         Transaction qTransaction = mTransactions.take();
+                        long taken = System.nanoTime();
+                        mIdleTime.record((taken - idleStart) / 1000);
+                        mWaitTime.record((taken - qTransaction.getQueuedAt()) / 1000);
 
                         if (!mDevice.isConnected()) {
                             Log.d(BluetoothQueue.TAG, "not connected, waiting for connection...");
                             internalGattCallback.reset();
 
                             mConnectionLatch = new CountDownLatch(1);
-                            mConnectionLatch.await();
+                            // the connection may have come up before the latch was there
+                            boolean connected = mDevice.isConnected()
+                                    || mConnectionLatch.await(CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
                             mConnectionLatch = null;
+                            if (!connected) {
+                                Log.d(BluetoothQueue.TAG, "No connection after " + CONNECTION_TIMEOUT_MILLIS + " ms, dropping transaction: " + qTransaction);
+                                mConnectionTimeouts.incrementAndGet();
+                                continue;
+                            }
                         }
 
                         if (qTransaction != null) {
@@ -85,12 +197,39 @@ public class BluetoothQueue {
                             for (BtLEAction action : qTransaction.getActions()) {
                                 if (mAbortTransaction) { // got disconnected
                                     Log.d(BluetoothQueue.TAG, "Aborting running transaction");
+                                    mFailedActions.increment();
                                     break;
                                 }
+                                if (isRedundant(action)) {
+                                    mEliminatedOperations.incrementAndGet();
+                                    if (EventTrace.ENABLED) {
+                                        EventTrace.record(EventTrace.Event.ACTION_SKIPPED, getTraceUuid(action));
+                                    }
+                                    continue;
+                                }
                                 mWaitCharacteristic = action.getCharacteristic();
                                 mWaitForActionResultLatch = new CountDownLatch(1);
+                                mCurrentActionStart = System.currentTimeMillis();
+                                mCurrentAction = action;
 
-                                Log.d(BluetoothQueue.TAG, "About to run action: " + action);
+                                if (EventTrace.ENABLED) {
+                                    EventTrace.record(EventTrace.Event.ACTION_RUN, getTraceUuid(action));
+                                }
+
+                                if (action instanceof WriteAction && ((WriteAction) action).isWithoutResponse()) {
+                                    if (!runWriteWithoutResponse((WriteAction) action)) {
+                                        Log.d(BluetoothQueue.TAG, "Action returned false: " + action);
+                                        mRejectedActions.increment();
+                                        break;
+                                    }
+                                    mOperationCount++;
+                                    rememberState(action);
+                                    continue;
+                                }
+                                // anything else needs the stack to itself
+                                if (action.getCharacteristic() != null && !awaitWritesInFlight(action.getTimeoutMillis())) {
+                                    break;
+                                }
 
                                 if (action instanceof AbstractGattListenerWriteAction) {
                                     // this special action overwrites the transaction gatt listener (if any), it must
@@ -98,30 +237,49 @@ public class BluetoothQueue {
                                     internalGattCallback.setTransactionGattCallback(((AbstractGattListenerWriteAction) action).getGattCallback());
                                 }
 
+                                ConnectionProfile profile = mConnectionProfile;
+                                long start = System.nanoTime();
                                 if (action.run(mBluetoothGatt)) {
+                                    mOperationCount++;
                                     // check again, maybe due to some condition, action did not need to write
                                     boolean waitForResult = action.expectsResult();
                                     if (waitForResult) {
-                                        mWaitForActionResultLatch.await();
+                                        if (!mWaitForActionResultLatch.await(action.getTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                                            // the callback got lost, the rest of the transaction may depend on it
+                                            onActionTimeout(action);
+                                            break;
+                                        }
                                         mWaitForActionResultLatch = null;
                                         if (mAbortTransaction) {
+                                            mFailedActions.increment();
                                             break;
                                         }
+                                        long latency = (System.nanoTime() - start) / 1000;
+                                        getActionLatency(action).record(latency);
+                                        if (action.getCharacteristic() != null) {
+                                            mRoundTripTimes.get(profile).record(latency);
+                                        }
                                     }
+                                    rememberState(action);
                                 } else {
                                     Log.d(BluetoothQueue.TAG, "Action returned false: " + action);
+                                    mRejectedActions.increment();
                                     break; // abort the transaction
                                 }
                             }
+                            // the write callbacks still go to this transaction's callback
+                            awaitWritesInFlight(BtLEAction.DEFAULT_TIMEOUT_MILLIS);
                         }
                     } catch (InterruptedException ignored) {
                         mConnectionLatch = null;
                         Log.d(BluetoothQueue.TAG, "Thread interrupted");
                     } catch (Throwable ex) {
+                        // the watchdog starts a new dispatcher
                         Log.d(BluetoothQueue.TAG, "Queue Dispatch Thread died: " + ex.getMessage(), ex);
-                        mCrashed = true;
                         mConnectionLatch = null;
+                        return;
                     } finally {
+                        mCurrentAction = null;
                         mWaitForActionResultLatch = null;
                         mWaitCharacteristic = null;
                     }
@@ -129,7 +287,403 @@ public class BluetoothQueue {
                 Log.d(BluetoothQueue.TAG, "Queue Dispatch Thread terminated.");
             }
         };
-        dispatchThread.start();
+    }
+
+    private void onActionTimeout(BtLEAction action) {
+        mTimedOutActions.increment();
+        // by action type, created on first use
+        mMetrics.counter("gatt.aborts.timeout." + action.getClass().getSimpleName()).increment();
+        Log.d(BluetoothQueue.TAG, "No result after " + action.getTimeoutMillis() + " ms, aborting transaction: " + action);
+    }
+
+    /**
+     * Returns the latency histogram of the action's type and characteristic, registered on first
+     * use.
+     */
+    private Histogram getActionLatency(BtLEAction action) {
+        Map<UUID, Histogram> latencies = mActionLatencies.get(action.getClass());
+        if (latencies == null) {
+            latencies = new HashMap<>();
+            mActionLatencies.put(action.getClass(), latencies);
+        }
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        UUID uuid = characteristic != null ? characteristic.getUuid() : NO_CHARACTERISTIC;
+        Histogram latency = latencies.get(uuid);
+        if (latency == null) {
+            String name = "gatt.latency." + action.getClass().getSimpleName();
+            if (characteristic != null) {
+                name += "." + getShortUuid(uuid);
+            }
+            latency = mMetrics.histogram(name + ".us");
+            latencies.put(uuid, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * Returns the 16 bit form of UUIDs based on the Bluetooth base UUID, others in full.
+     */
+    private static String getShortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() == BLUETOOTH_BASE_UUID_LSB && (msb & 0xffff0000ffffffffL) == 0x1000L) {
+            return String.format(Locale.ROOT, "%04x", msb >>> 32);
+        }
+        return uuid.toString();
+    }
+
+    /**
+     * Returns the characteristic of the action as recorded in the {@link EventTrace}.
+     */
+    private static long getTraceUuid(BtLEAction action) {
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        return characteristic != null ? characteristic.getUuid().getMostSignificantBits() : 0;
+    }
+
+    private void registerGauges() {
+        mMetrics.register("gatt.queue.depth", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mTransactions.size();
+            }
+        });
+        for (final TransactionScheduler.Priority priority : TransactionScheduler.Priority.values()) {
+            mMetrics.register("gatt.queue.depth." + priority.name().toLowerCase(Locale.ROOT), new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return mTransactions.size(priority);
+                }
+            });
+        }
+        mMetrics.register("gatt.operations", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mOperationCount;
+            }
+        });
+        mMetrics.register("gatt.operations.eliminated", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mEliminatedOperations.get();
+            }
+        });
+        mMetrics.register("gatt.operations.without_response", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mWriteWithoutResponseCount;
+            }
+        });
+        mMetrics.register("gatt.writes_in_flight", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mWritesInFlight.get();
+            }
+        });
+        mMetrics.register("gatt.connection_timeouts", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mConnectionTimeouts.get();
+            }
+        });
+        mMetrics.register("gatt.dispatcher.stuck", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mStuckActions.get();
+            }
+        });
+        mMetrics.register("gatt.dispatcher.restarts", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDispatcherRestarts.get();
+            }
+        });
+        mMetrics.register("gatt.mtu", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMtu;
+            }
+        });
+    }
+
+    /**
+     * Hands a write without response to the stack as soon as a credit is free, without waiting
+     * for its callback. Android versions that take only one operation at a time reject the write
+     * while others are in flight, it is tried again once they are done.
+     */
+    private boolean runWriteWithoutResponse(WriteAction action) throws InterruptedException {
+        Semaphore credits = mWriteCredits;
+        if (!credits.tryAcquire(action.getTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+            onActionTimeout(mLastWriteWithoutResponse != null ? mLastWriteWithoutResponse : action);
+            resetWriteCredits();
+            return false;
+        }
+        if (mAbortTransaction) {
+            credits.release();
+            return false;
+        }
+        mWritesInFlight.incrementAndGet();
+        boolean result = action.run(mBluetoothGatt);
+        if (!result && mWritesInFlight.get() > 1) {
+            mWritesInFlight.decrementAndGet();
+            credits.release();
+            if (!awaitWritesInFlight(action.getTimeoutMillis())) {
+                return false;
+            }
+            credits = mWriteCredits;
+            if (!credits.tryAcquire()) {
+                return false;
+            }
+            mWritesInFlight.incrementAndGet();
+            result = action.run(mBluetoothGatt);
+        }
+        if (result) {
+            mLastWriteWithoutResponse = action;
+            mWriteWithoutResponseCount++;
+        } else {
+            mWritesInFlight.decrementAndGet();
+            credits.release();
+        }
+        return result;
+    }
+
+    /**
+     * Waits until the stack returned all write credits.
+     *
+     * @return false if a write callback got lost
+     */
+    private boolean awaitWritesInFlight(long timeoutMillis) throws InterruptedException {
+        if (mWritesInFlight.get() == 0) {
+            return true;
+        }
+        Semaphore credits = mWriteCredits;
+        if (credits.tryAcquire(WRITE_WINDOW, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            credits.release(WRITE_WINDOW);
+            return true;
+        }
+        if (mLastWriteWithoutResponse != null) {
+            onActionTimeout(mLastWriteWithoutResponse);
+        }
+        resetWriteCredits();
+        return false;
+    }
+
+    /**
+     * Called for every write callback of a write without response.
+     *
+     * @return false if no such write was in flight, e.g. it belonged to the previous connection
+     */
+    private boolean releaseWriteCredit() {
+        int inFlight;
+        do {
+            inFlight = mWritesInFlight.get();
+            if (inFlight == 0) {
+                return false;
+            }
+        } while (!mWritesInFlight.compareAndSet(inFlight, inFlight - 1));
+        mWriteCredits.release();
+        return true;
+    }
+
+    private void resetWriteCredits() {
+        Semaphore credits = mWriteCredits;
+        mWritesInFlight.set(0);
+        mWriteCredits = new Semaphore(WRITE_WINDOW);
+        // wakes up the dispatcher if it waits for the old ones
+        credits.release(WRITE_WINDOW);
+    }
+
+    /**
+     * Returns true if the action would only set what the band already has, i.e. notifications
+     * that are already in the requested state or a connection parameter that is already set.
+     */
+    boolean isRedundant(BtLEAction action) {
+        if (action instanceof ConnectionPriorityAction) {
+            return ((ConnectionPriorityAction) action).getConnectionPriority() == mConnectionProfile.getConnectionPriority();
+        }
+        if (action instanceof RequestMtuAction) {
+            return mMtuNegotiated || ((RequestMtuAction) action).getMtu() <= mMtu;
+        }
+        if (action instanceof SetPhyAction) {
+            return mPhyNegotiated || ((SetPhyAction) action).getPhyMask() == mPhyMask;
+        }
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        if (characteristic == null) {
+            return false;
+        }
+        if (action instanceof NotifyAction) {
+            Boolean enabled = mNotificationStates.get(characteristic.getUuid());
+            return enabled != null && enabled == ((NotifyAction) action).isEnable();
+        }
+        return false;
+    }
+
+    void rememberState(BtLEAction action) {
+        if (action instanceof ConnectionPriorityAction) {
+            mConnectionProfile = ConnectionProfile.forConnectionPriority(((ConnectionPriorityAction) action).getConnectionPriority());
+            return;
+        }
+        if (action instanceof RequestMtuAction) {
+            mMtuNegotiated = true;
+            return;
+        }
+        if (action instanceof SetPhyAction) {
+            mPhyNegotiated = true;
+            return;
+        }
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        if (characteristic == null) {
+            return;
+        }
+        if (action instanceof NotifyAction) {
+            NotifyAction notifyAction = (NotifyAction) action;
+            Boolean enabled = mNotificationStates.put(characteristic.getUuid(), notifyAction.isEnable());
+            GattLayoutCache layoutCache = mLayoutCache;
+            if (layoutCache != null && !notifyAction.isRegisterOnly()
+                    && (enabled == null || enabled != notifyAction.isEnable())) {
+                layoutCache.setNotification(mDevice.getAddress(), characteristic.getUuid(), notifyAction.isEnable());
+            }
+        }
+    }
+
+    /**
+     * Forgets which notifications are enabled, so they are written again even if the queue
+     * already thinks the band has them.
+     */
+    public void forgetNotifications() {
+        mNotificationStates.clear();
+    }
+
+    /**
+     * Sets the cache the enabled notifications are stored in, for the next connection.
+     */
+    public void setLayoutCache(GattLayoutCache layoutCache) {
+        mLayoutCache = layoutCache;
+    }
+
+    /**
+     * Returns when the connection was last lost, 0 if it never was.
+     */
+    public long getLastDisconnectTime() {
+        return mLastDisconnectTime;
+    }
+
+    /**
+     * Forgets the notification and connection state, a new connection starts without any. Android
+     * registers notifications per BluetoothGatt instance, so they must be enabled again.
+     */
+    void resetConnectionState() {
+        mNotificationStates.clear();
+        resetWriteCredits();
+        mConnectionProfile = ConnectionProfile.BALANCED;
+        mMtu = DEFAULT_MTU;
+        mPhyMask = BluetoothDevice.PHY_LE_1M_MASK;
+        mMtuNegotiated = false;
+        mPhyNegotiated = false;
+    }
+
+    /**
+     * Called by the watchdog: restarts the dispatcher if it died and aborts an action that keeps
+     * it busy for longer than its timeout allows.
+     */
+    private void checkDispatcher() {
+        if (mDisposed) {
+            return;
+        }
+        Thread dispatcher = mDispatchThread;
+        if (!dispatcher.isAlive()) {
+            Log.d(BluetoothQueue.TAG, "Restarting dead Queue Dispatch Thread");
+            mDispatcherRestarts.incrementAndGet();
+            mDispatchThread = createDispatchThread();
+            mDispatchThread.start();
+            return;
+        }
+
+        BtLEAction action = mCurrentAction;
+        if (action != null) {
+            long running = System.currentTimeMillis() - mCurrentActionStart;
+            if (running > action.getTimeoutMillis() + WATCHDOG_GRACE_MILLIS && action == mCurrentAction) {
+                Log.d(BluetoothQueue.TAG, "Dispatcher stuck for " + running + " ms, aborting transaction: " + action);
+                mStuckActions.incrementAndGet();
+                // report it once
+                mCurrentAction = null;
+                mAbortTransaction = true;
+                CountDownLatch latch = mWaitForActionResultLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+                dispatcher.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the dispatcher and the watchdog and closes the connection.
+     */
+    public void dispose() {
+        if (mDisposed) {
+            return;
+        }
+        mDisposed = true;
+        mTransactions.clear();
+        mDispatchThread.interrupt();
+        mWatchdogThread.interrupt();
+        disconnect();
+    }
+
+    /**
+     * Returns the number of transactions dropped because the connection didn't come up in time.
+     */
+    public int getConnectionTimeoutCount() {
+        return mConnectionTimeouts.get();
+    }
+
+    /**
+     * Returns the number of actions the watchdog had to abort.
+     */
+    public int getStuckActionCount() {
+        return mStuckActions.get();
+    }
+
+    public int getDispatcherRestartCount() {
+        return mDispatcherRestarts.get();
+    }
+
+    public ConnectionProfile getConnectionProfile() {
+        return mConnectionProfile;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Returns the round trip times of acknowledged reads and writes while the given profile was
+     * in use, in microseconds.
+     */
+    public LatencyRecorder getRoundTripTime(ConnectionProfile profile) {
+        return mRoundTripTimes.get(profile);
+    }
+
+    /**
+     * Returns the callback the stack reports to.
+     */
+    BluetoothGattCallback getInternalGattCallback() {
+        return internalGattCallback;
+    }
+
+    /**
+     * Returns the number of writes without response that were not waited for.
+     */
+    public long getWriteWithoutResponseCount() {
+        return mWriteWithoutResponseCount;
+    }
+
+    /**
+     * Returns the number of GATT operations that were not run because they were redundant:
+     * actions of transactions dropped while an equivalent one was pending, and actions skipped
+     * because the band already was in the state they would set.
+     */
+    public int getEliminatedOperationCount() {
+        return mEliminatedOperations.get();
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -163,21 +717,60 @@ public class BluetoothQueue {
     }
 
     void add(Transaction transaction) {
-        Log.d(BluetoothQueue.TAG, "about to add: " + transaction);
+        if (EventTrace.ENABLED) {
+            EventTrace.record(EventTrace.Event.TRANSACTION_QUEUED, transaction.getActions().size(),
+                    transaction.getPriority().ordinal());
+        }
         if (transaction.hasElements()) {
-            mTransactions.add(transaction);
+            transaction.setQueuedAt(System.nanoTime());
+            mTransactions.addLast(transaction, transaction.getPriority());
+        }
+    }
+
+    /**
+     * Queues the transaction, unless it or an equivalent one is still waiting in the queue. Only
+     * for transactions that may be coalesced, like the keep-alive ping, {@link #add(Transaction)}
+     * keeps every transaction, e.g. a start after a stop after a start. The transaction must be
+     * a new one, not one that may still be queued or running.
+     *
+     * @return false if the transaction was dropped
+     */
+    boolean addIfAbsent(Transaction transaction) {
+        if (EventTrace.ENABLED) {
+            EventTrace.record(EventTrace.Event.TRANSACTION_QUEUED, transaction.getActions().size(),
+                    transaction.getPriority().ordinal());
+        }
+        if (!transaction.hasElements()) {
+            return false;
+        }
+        transaction.setQueuedAt(System.nanoTime());
+        if (!mTransactions.addLastIfAbsent(transaction, transaction.getPriority(), TRANSACTION_EQUIVALENCE)) {
+            mEliminatedOperations.addAndGet(transaction.getActions().size());
+            if (EventTrace.ENABLED) {
+                EventTrace.record(EventTrace.Event.TRANSACTION_DROPPED, transaction.getActions().size());
+            }
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Returns the number of GATT operations started since the queue was created.
+     */
+    public long getOperationCount() {
+        return mOperationCount;
     }
 
+    /**
+     * Queues the transaction before all others, e.g. to answer the band during authentication.
+     */
     public void insert(Transaction transaction) {
-        Log.d(BluetoothQueue.TAG, "about to insert: " + transaction);
+        if (EventTrace.ENABLED) {
+            EventTrace.record(EventTrace.Event.TRANSACTION_INSERTED, transaction.getActions().size());
+        }
         if (transaction.hasElements()) {
-            List<Transaction> tail = new ArrayList<>(mTransactions.size() + 2);
-
-            tail.addAll(mTransactions);
-            mTransactions.clear();
-            mTransactions.add(transaction);
-            mTransactions.addAll(tail);
+            transaction.setQueuedAt(System.nanoTime());
+            mTransactions.addFirst(transaction, TransactionScheduler.Priority.AUTH);
         }
     }
 
@@ -220,6 +813,7 @@ public class BluetoothQueue {
                 Log.d(BluetoothQueue.TAG, "Disconnecting BluetoothQueue from GATT device");
                 gatt.disconnect();
                 gatt.close();
+                resetConnectionState();
                 setDeviceConnectionState(MiBandDevice.State.NOT_CONNECTED);
             }
         }
@@ -227,12 +821,14 @@ public class BluetoothQueue {
 
     private void handleDisconnected(int status) {
         Log.d(BluetoothQueue.TAG, "handleDisconnected: " + status);
+        mLastDisconnectTime = System.currentTimeMillis();
         internalGattCallback.reset();
         mTransactions.clear();
         mAbortTransaction = true;
         if (mWaitForActionResultLatch != null) {
             mWaitForActionResultLatch.countDown();
         }
+        resetConnectionState();
 
         boolean wasInitialized = mDevice.isInitialized();
 
@@ -344,13 +940,22 @@ public class BluetoothQueue {
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(BluetoothQueue.TAG, "characteristic write: " + characteristic.getUuid() + getStatusString(status));
+            if (EventTrace.ENABLED) {
+                EventTrace.record(EventTrace.Event.CHARACTERISTIC_WRITTEN, characteristic.getUuid().getMostSignificantBits(), status);
+            }
             if (checkCorrectGattInstance(gatt, "characteristic write")) {
                 return;
             }
             if (getCallbackToUse() != null) {
                 getCallbackToUse().onCharacteristicWrite(gatt, characteristic, status);
             }
+            if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE && releaseWriteCredit()) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.d(BluetoothQueue.TAG, "failed write without response, aborting transaction: " + characteristic.getUuid() + getStatusString(status));
+                    mAbortTransaction = true;
+                }
+                return;
+            }
             checkWaitingCharacteristic(characteristic, status);
         }
 
@@ -394,6 +999,9 @@ public class BluetoothQueue {
             if (checkCorrectGattInstance(gatt, "descriptor write")) {
                 return;
             }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                stampNotificationsEnabled(descriptor);
+            }
             if (getCallbackToUse() != null) {
                 try {
                     getCallbackToUse().onDescriptorWrite(gatt, descriptor, status);
@@ -404,11 +1012,62 @@ public class BluetoothQueue {
             checkWaitingCharacteristic(descriptor.getCharacteristic(), status);
         }
 
+        private void stampNotificationsEnabled(BluetoothGattDescriptor descriptor) {
+            if (!BtLEAction.UUID_DESCRIPTOR_GATT_CLIENT_CHARACTERISTIC_CONFIGURATION.equals(descriptor.getUuid())
+                    || !Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, descriptor.getValue())) {
+                return;
+            }
+            UUID characteristic = descriptor.getCharacteristic().getUuid();
+            if (MiBandService.UUID_CHARACTERISTIC_AUTH.equals(characteristic)) {
+                PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.AUTH_CCCD_WRITTEN);
+            } else if (MiBandService.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT.equals(characteristic)) {
+                PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.HEART_RATE_CCCD_WRITTEN);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.d(BluetoothQueue.TAG, "mtu changed: " + mtu + getStatusString(status));
+            if (checkCorrectGattInstance(gatt, "mtu changed")) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            // not supported by every band, the transaction goes on without it
+            releaseConnectionAction(RequestMtuAction.class);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.d(BluetoothQueue.TAG, "phy update: tx " + txPhy + ", rx " + rxPhy + getStatusString(status));
+            if (checkCorrectGattInstance(gatt, "phy update")) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // PHY_LE_1M, PHY_LE_2M and PHY_LE_CODED to their masks
+                mPhyMask = 1 << (txPhy - 1);
+            }
+            releaseConnectionAction(SetPhyAction.class);
+        }
+
+        private void releaseConnectionAction(Class<? extends BtLEAction> type) {
+            CountDownLatch latch = mWaitForActionResultLatch;
+            if (type.isInstance(mCurrentAction) && latch != null) {
+                latch.countDown();
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
 
-            Log.d(BluetoothQueue.TAG, "characteristic changed: " + characteristic.getUuid() + " value: " + Arrays.toString(characteristic.getValue()));
+            mNotifications.increment();
+            if (EventTrace.ENABLED) {
+                byte[] value = characteristic.getValue();
+                EventTrace.record(EventTrace.Event.CHARACTERISTIC_CHANGED, characteristic.getUuid().getMostSignificantBits(),
+                        value != null ? value.length : 0, EventTrace.packBytes(value));
+            }
 
             if (checkCorrectGattInstance(gatt, "characteristic changed")) {
                 return;
@@ -0,0 +1,64 @@
+package com.example.miband.Bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Connection parameters the queue can switch between, see
+ * {@link TransactionBuilder#requestConnectionProfile(ConnectionProfile)}. MTU and PHY are
+ * negotiated once per connection, the profiles that don't ask for them keep what was negotiated.
+ */
+public enum ConnectionProfile {
+    /**
+     * Shortest connection interval, for the handshake and bursts of commands.
+     */
+    LOW_LATENCY(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 247, BluetoothDevice.PHY_LE_2M_MASK),
+    /**
+     * Android's default, enough for one heart rate notification per second.
+     */
+    BALANCED(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 0, 0),
+    /**
+     * Longest connection interval, while connected without measuring.
+     */
+    LOW_POWER(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, 0, 0);
+
+    private final int mConnectionPriority;
+    private final int mMtu;
+    private final int mPhy;
+
+    ConnectionProfile(int connectionPriority, int mtu, int phy) {
+        mConnectionPriority = connectionPriority;
+        mMtu = mtu;
+        mPhy = phy;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Returns the MTU to ask for, or 0 to keep the current one.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Returns the PHY mask to ask for, or 0 to keep the current PHY.
+     */
+    public int getPhy() {
+        return mPhy;
+    }
+
+    /**
+     * Returns the profile using the given connection priority.
+     */
+    public static ConnectionProfile forConnectionPriority(int connectionPriority) {
+        for (ConnectionProfile profile : values()) {
+            if (profile.mConnectionPriority == connectionPriority) {
+                return profile;
+            }
+        }
+        return BALANCED;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.miband.Bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers per band address which characteristics were discovered and which notifications
+ * were enabled. A bonded band keeps its notification settings between connections, so when it
+ * still has the same characteristics they only need to be registered with Android again.
+ */
+public class GattLayoutCache {
+    private static final String PREFERENCES_NAME = "gatt_layout";
+    private static final String LAYOUT_SUFFIX = ".layout";
+    private static final String NOTIFICATIONS_SUFFIX = ".notifications";
+
+    private final SharedPreferences mPreferences;
+
+    public GattLayoutCache(Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+
+    GattLayoutCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Returns true if the band had exactly these characteristics the last time.
+     */
+    public synchronized boolean matches(String address, Collection<UUID> characteristics) {
+        Set<String> layout = mPreferences.getStringSet(address + LAYOUT_SUFFIX, null);
+        return layout != null && layout.equals(toStrings(characteristics));
+    }
+
+    /**
+     * Stores a new layout, the notifications stored for the previous one are dropped.
+     */
+    public synchronized void saveLayout(String address, Collection<UUID> characteristics) {
+        mPreferences.edit()
+                .putStringSet(address + LAYOUT_SUFFIX, toStrings(characteristics))
+                .remove(address + NOTIFICATIONS_SUFFIX)
+                .apply();
+    }
+
+    public synchronized Set<UUID> getNotifications(String address) {
+        Set<UUID> notifications = new HashSet<>();
+        for (String uuid : mPreferences.getStringSet(address + NOTIFICATIONS_SUFFIX, new HashSet<String>())) {
+            notifications.add(UUID.fromString(uuid));
+        }
+        return notifications;
+    }
+
+    public synchronized void setNotification(String address, UUID characteristic, boolean enabled) {
+        // the returned set must not be modified
+        Set<String> notifications = new HashSet<>(mPreferences.getStringSet(address + NOTIFICATIONS_SUFFIX, new HashSet<String>()));
+        boolean changed = enabled ? notifications.add(characteristic.toString()) : notifications.remove(characteristic.toString());
+        if (changed) {
+            mPreferences.edit().putStringSet(address + NOTIFICATIONS_SUFFIX, notifications).apply();
+        }
+    }
+
+    /**
+     * Forgets the notifications, e.g. because the band turned out not to have them anymore.
+     */
+    public synchronized void clearNotifications(String address) {
+        mPreferences.edit().remove(address + NOTIFICATIONS_SUFFIX).apply();
+    }
+
+    private static Set<String> toStrings(Collection<UUID> uuids) {
+        Set<String> strings = new HashSet<>(uuids.size());
+        for (UUID uuid : uuids) {
+            strings.add(uuid.toString());
+        }
+        return strings;
+    }
+}
@@ -9,16 +9,16 @@ import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
-import com.example.miband.Activities.DeviceControlActivity;
-import com.example.miband.DataStructures.HeartRate;
+import com.example.miband.DataStructures.SampleBus;
 import com.example.miband.Device.MiBandDevice;
 import com.example.miband.Device.MiBandService;
 import com.example.miband.Device.MiBandSupport;
-import com.example.miband.Tasks.SendPulseTask;
+import com.example.miband.Device.PhaseTimer;
+import com.example.miband.Processing.ArtifactFilter;
+import com.example.miband.Tasks.PulseBatch;
+import com.example.miband.Utils.EventTrace;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.UUID;
 
 @RequiresApi(api = Build.VERSION_CODES.M)
@@ -32,11 +32,32 @@ public class HeartRateGattCallback extends BluetoothGattCallback {
     private MiBandSupport mSupport;
     private Context mContext;
 
-    private boolean heartRateNotifyEnabled;
+    private final HeartRateMeasurement mMeasurement = new HeartRateMeasurement();
+    private final ArtifactFilter mArtifactFilter = new ArtifactFilter();
+    private volatile SampleBus mSampleBus;
+    private final HeartRateKeepAlive mKeepAlive;
 
     public HeartRateGattCallback(MiBandSupport support, Context context){
         mSupport = support;
         mContext = context;
+        mKeepAlive = new HeartRateKeepAlive(support, this);
+    }
+
+    /**
+     * Sets the bus every measurement is published to, accepted ones as samples. Measurement
+     * consumers get the RR intervals and artifacts whatever the filter mode. Consumers run on
+     * their own threads, so nothing slows down the delivery of further notifications.
+     */
+    public void setSampleBus(SampleBus sampleBus) {
+        mSampleBus = sampleBus;
+    }
+
+    public ArtifactFilter getArtifactFilter() {
+        return mArtifactFilter;
+    }
+
+    public HeartRateKeepAlive getKeepAlive() {
+        return mKeepAlive;
     }
 
     MiBandDevice getDevice(){
@@ -59,16 +80,33 @@ public class HeartRateGattCallback extends BluetoothGattCallback {
     }
 
     private void enableNotifyHeartRateMeasurements(boolean enable, TransactionBuilder builder) {
-        if (heartRateNotifyEnabled != enable) {
-            BluetoothGattCharacteristic heartrateCharacteristic = getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT);
-            if (heartrateCharacteristic != null) {
-                builder.notify(heartrateCharacteristic, enable);
-                heartRateNotifyEnabled = enable;
-            }
+        BluetoothGattCharacteristic heartrateCharacteristic = getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT);
+        if (heartrateCharacteristic != null) {
+            // skipped by the queue if the notifications already are in that state
+            builder.notify(heartrateCharacteristic, enable);
         }
     }
 
+    /**
+     * Starts or stops continuous measurement. Once started, the {@link HeartRateKeepAlive} keeps
+     * it running, this only needs to be called again to stop it.
+     */
     public void enableRealtimeHeartRateMeasurement(boolean enable) {
+        if (enable) {
+            startRealtimeHeartRateMeasurement();
+            mKeepAlive.start();
+        } else {
+            mKeepAlive.stop();
+            sendHeartRateCommands(false);
+        }
+    }
+
+    void startRealtimeHeartRateMeasurement() {
+        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.MEASUREMENT_STARTED);
+        sendHeartRateCommands(true);
+    }
+
+    private void sendHeartRateCommands(boolean enable) {
         BluetoothGattCharacteristic characteristicHRControlPoint = getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT);
         if (characteristicHRControlPoint == null) {
             return;
@@ -82,6 +120,7 @@ public class HeartRateGattCallback extends BluetoothGattCallback {
             } else {
                 builder.write(characteristicHRControlPoint, stopHeartMeasurementContinuous);
             }
+            builder.requestConnectionProfile(enable ? ConnectionProfile.BALANCED : ConnectionProfile.LOW_POWER);
             builder.queue(getQueue());
         } catch (IOException ex) {
             Log.d(HeartRateGattCallback.TAG, "Unable to enable realtime heart rate measurement", ex);
@@ -90,12 +129,8 @@ public class HeartRateGattCallback extends BluetoothGattCallback {
 
     public void onCharacteristicChanged(BluetoothGatt gatt,
                                            BluetoothGattCharacteristic characteristic) {
-
-        Log.d(HeartRateGattCallback.TAG, "On characteristic changed");
-
         UUID characteristicUUID = characteristic.getUuid();
         if (MiBandService.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT.equals(characteristicUUID)) {
-            Log.d(MiBandSupport.TAG, "Heart rate characteristic captured");
             handleHeartRate(characteristic.getValue());
         }else {
             mSupport.onCharacteristicChanged(gatt, characteristic);
@@ -103,27 +138,30 @@ public class HeartRateGattCallback extends BluetoothGattCallback {
     }
 
     private void handleHeartRate(byte[] value) {
-        if (value.length == 2 && value[0] == 0) {
-            int hrValue = (value[1] & 0xff);
-
-            Log.d(HeartRateGattCallback.TAG, "heart rate: " + hrValue);
-
-            DeviceControlActivity activity = (DeviceControlActivity) mContext;
-
-            if (hrValue > 0) {
-                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                HeartRate heartRate = new HeartRate(hrValue, Calendar.getInstance().getTime());
-                activity.addEntry(heartRate);
+        if (mMeasurement.parse(value)) {
+            int hrValue = mMeasurement.getHeartRate();
+            long timestamp = System.currentTimeMillis();
+            mKeepAlive.onNotification(timestamp);
+
+            boolean valid = hrValue > 0 && mMeasurement.hasSensorContact();
+            boolean artifact = valid && mArtifactFilter.isArtifact(timestamp, hrValue);
+            if (valid) {
+                // ends the session if one is running
+                PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.FIRST_SAMPLE);
+            }
 
-                Log.d(HeartRateGattCallback.TAG, dateFormat.format(heartRate.getTime()));
+            if (EventTrace.ENABLED) {
+                EventTrace.record(EventTrace.Event.HEART_RATE, hrValue, artifact ? 1 : 0);
+            }
 
-                new SendPulseTask()
-                        .execute(
-                                ((DeviceControlActivity) mContext).getServerUrl(),
-                                ((DeviceControlActivity) mContext).getSimulationId(),
-                                dateFormat.format(heartRate.getTime()),
-                                String.valueOf(heartRate.getValue()));
+            SampleBus sampleBus = mSampleBus;
+            if (sampleBus != null) {
+                int flags = (artifact ? PulseBatch.FLAG_ARTIFACT : 0) | (mMeasurement.hasSensorContact() ? 0 : SampleBus.FLAG_NO_CONTACT);
+                boolean sample = valid && (!artifact || mArtifactFilter.getMode() == ArtifactFilter.Mode.FLAG);
+                sampleBus.publish(timestamp, hrValue, flags, mMeasurement.getRrIntervals(), mMeasurement.getRrIntervalCount(), sample);
             }
+        } else {
+            Log.d(HeartRateGattCallback.TAG, "Ignoring malformed heart rate measurement of " + (value == null ? 0 : value.length) + " bytes");
         }
     }
 }
@@ -0,0 +1,325 @@
+package com.example.miband.Bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.miband.Bluetooth.Actions.WriteAction;
+import com.example.miband.Device.MiBandService;
+import com.example.miband.Device.MiBandSupport;
+import com.example.miband.Device.PhaseTimer;
+import com.example.miband.Utils.LatencyRecorder;
+import com.example.miband.Utils.Metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps continuous heart rate measurement running by sending the one byte ping command to the
+ * heart rate control point. Every ping is a new transaction, it is dropped if the previous one is
+ * still waiting in the queue.
+ * <p/>
+ * The interval adapts to the notifications: it grows while they arrive steadily and is halved
+ * when a gap shows the band was about to stop. Only if notifications stopped altogether, or the
+ * connection was lost, measurement is started again with the full command set. After a
+ * reconnect it is started as soon as the band is ready again, without waiting for the next ping.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class HeartRateKeepAlive {
+    public static String TAG = "MiBand: HeartRateKeepAlive";
+
+    private static final byte[] pingHeartMeasurement = new byte[]{MiBandService.COMMAND_PING_HR};
+
+    static final long MIN_INTERVAL_MILLIS = 4000;
+    static final long MAX_INTERVAL_MILLIS = 12000;
+    static final long INITIAL_INTERVAL_MILLIS = 8000;
+    static final long INTERVAL_STEP_MILLIS = 1000;
+    // the band sends about one notification per second, a longer gap means it was slowing down
+    static final long GAP_WARNING_MILLIS = 5000;
+    // no notification for longer than this, measurement has stopped
+    static final long RESTART_MILLIS = 20000;
+
+    private static final long PING_TIMEOUT_MILLIS = 2000;
+    private static final long REPORT_MILLIS = 60000;
+    private static final int RESUME_SAMPLES = 64;
+
+    private final MiBandSupport mSupport;
+    private final HeartRateGattCallback mCallback;
+
+    private ScheduledExecutorService mExecutor;
+    // only used on the keep-alive thread
+    private BluetoothGattCharacteristic mPingCharacteristic;
+
+    private volatile long mLastNotification;
+    private volatile long mMaxGap;
+    private volatile long mIntervalMillis = INITIAL_INTERVAL_MILLIS;
+
+    private volatile long mPingCount;
+    private volatile long mRestartCount;
+    private long mReportStart;
+    private long mReportOperations;
+    private volatile long mOperationsPerMinute = -1;
+
+    // time from a lost connection to the first heart rate after it, in milliseconds
+    private final LatencyRecorder mResumeLatency = new LatencyRecorder(RESUME_SAMPLES);
+    private volatile long mLastMeasuredDisconnect;
+
+    private final MiBandSupport.ReconnectListener mReconnectListener = new MiBandSupport.ReconnectListener() {
+        @Override
+        public void onReconnected() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    restart("Reconnected");
+                }
+            });
+        }
+    };
+
+    HeartRateKeepAlive(MiBandSupport support, HeartRateGattCallback callback) {
+        mSupport = support;
+        mCallback = callback;
+        registerGauges();
+    }
+
+    private void registerGauges() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("hr.keepalive.interval.ms", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mIntervalMillis;
+            }
+        });
+        metrics.register("hr.keepalive.pings", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mPingCount;
+            }
+        });
+        metrics.register("hr.keepalive.restarts", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRestartCount;
+            }
+        });
+        metrics.register("hr.keepalive.operations_per_minute", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mOperationsPerMinute;
+            }
+        });
+        metrics.register("hr.resume.p50.ms", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mResumeLatency.getPercentile(50);
+            }
+        });
+        metrics.register("hr.resume.p99.ms", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mResumeLatency.getPercentile(99);
+            }
+        });
+    }
+
+    /**
+     * Starts pinging, does nothing if already running.
+     */
+    synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        reset(System.currentTimeMillis());
+        mSupport.setReconnectListener(mReconnectListener);
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "HR Keep-Alive");
+            }
+        });
+        schedule();
+        Log.d(HeartRateKeepAlive.TAG, "Started");
+    }
+
+    /**
+     * Starts over as if a notification just arrived.
+     */
+    void reset(long now) {
+        mLastNotification = now;
+        mMaxGap = 0;
+        mIntervalMillis = INITIAL_INTERVAL_MILLIS;
+        mReportStart = now;
+        mReportOperations = getOperationCount();
+        BluetoothQueue queue = mSupport.getQueue();
+        mLastMeasuredDisconnect = queue != null ? queue.getLastDisconnectTime() : 0;
+    }
+
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mSupport.setReconnectListener(null);
+            mExecutor.shutdownNow();
+            mExecutor = null;
+            Log.d(HeartRateKeepAlive.TAG, "Stopped after " + mPingCount + " pings and " + mRestartCount + " restarts");
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mExecutor != null;
+    }
+
+    /**
+     * Called for every heart rate notification, on the Bluetooth callback thread.
+     */
+    void onNotification(long timestamp) {
+        long gap = timestamp - mLastNotification;
+        if (gap > mMaxGap) {
+            mMaxGap = gap;
+        }
+        mLastNotification = timestamp;
+
+        BluetoothQueue queue = mSupport.getQueue();
+        long disconnect = queue != null ? queue.getLastDisconnectTime() : 0;
+        if (disconnect > mLastMeasuredDisconnect) {
+            mLastMeasuredDisconnect = disconnect;
+            mResumeLatency.record(timestamp - disconnect);
+            Log.d(HeartRateKeepAlive.TAG, "First heart rate " + (timestamp - disconnect) + " ms after the connection was lost, " + mResumeLatency);
+        }
+    }
+
+    private synchronized void execute(Runnable runnable) {
+        if (mExecutor != null) {
+            mExecutor.execute(runnable);
+        }
+    }
+
+    private synchronized void schedule() {
+        if (mExecutor != null) {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    tick(System.currentTimeMillis());
+                }
+            }, mIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns a new ping transaction. The control point is looked up on first use, as it is only
+     * known once the services have been discovered.
+     */
+    private Transaction createPing() {
+        if (mPingCharacteristic == null) {
+            mPingCharacteristic = mSupport.getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT);
+            if (mPingCharacteristic == null) {
+                return null;
+            }
+        }
+        WriteAction action = new WriteAction(mPingCharacteristic, pingHeartMeasurement);
+        // a lost acknowledgement must not hold up the queue until the next ping is due
+        action.setTimeoutMillis(PING_TIMEOUT_MILLIS);
+        TransactionBuilder builder = new TransactionBuilder();
+        builder.add(action);
+        // keeps the heart rate notifications routed to the callback
+        builder.setGattCallback(mCallback);
+        return builder.getTransaction();
+    }
+
+    // only called on the keep-alive thread
+    void tick(long now) {
+        long sinceLast = now - mLastNotification;
+        long maxGap = Math.max(mMaxGap, sinceLast);
+        mMaxGap = 0;
+
+        BluetoothQueue queue = mSupport.getQueue();
+        Transaction ping = createPing();
+        if (mSupport.getDevice().isConnected() && !mSupport.getDevice().isInitialized()) {
+            // the handshake is running, the reconnect listener starts measurement once it is done
+            mIntervalMillis = MIN_INTERVAL_MILLIS;
+        } else if (queue == null || ping == null || !mSupport.getDevice().isConnected() || sinceLast > RESTART_MILLIS) {
+            restart("No heart rate for " + sinceLast + " ms");
+        } else {
+            if (queue.addIfAbsent(ping)) {
+                mPingCount++;
+                // only the first one of a session counts
+                PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.FIRST_KEEPALIVE);
+            }
+            mIntervalMillis = nextInterval(mIntervalMillis, maxGap);
+        }
+
+        report(now);
+        schedule();
+    }
+
+    // only called on the keep-alive thread
+    private void restart(String reason) {
+        Log.d(HeartRateKeepAlive.TAG, reason + ", restarting measurement");
+        mRestartCount++;
+        mIntervalMillis = MIN_INTERVAL_MILLIS;
+        // the characteristic belongs to the previous connection if it was lost
+        mPingCharacteristic = null;
+        // connects again if needed
+        mCallback.startRealtimeHeartRateMeasurement();
+        // counts as a notification, so the restart gets time to take effect
+        mLastNotification = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the ping interval following the given one, when the longest gap between two
+     * notifications since the last ping was maxGap.
+     */
+    static long nextInterval(long intervalMillis, long maxGap) {
+        if (maxGap > GAP_WARNING_MILLIS) {
+            return Math.max(MIN_INTERVAL_MILLIS, intervalMillis / 2);
+        }
+        return Math.min(MAX_INTERVAL_MILLIS, intervalMillis + INTERVAL_STEP_MILLIS);
+    }
+
+    private void report(long now) {
+        if (now - mReportStart < REPORT_MILLIS) {
+            return;
+        }
+        long operations = getOperationCount();
+        mOperationsPerMinute = (operations - mReportOperations) * REPORT_MILLIS / (now - mReportStart);
+        Log.d(HeartRateKeepAlive.TAG, "GATT operations per minute: " + mOperationsPerMinute
+                + ", ping interval " + mIntervalMillis + " ms");
+        mReportStart = now;
+        mReportOperations = operations;
+    }
+
+    private long getOperationCount() {
+        BluetoothQueue queue = mSupport.getQueue();
+        return queue != null ? queue.getOperationCount() : 0;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public long getPingCount() {
+        return mPingCount;
+    }
+
+    public long getRestartCount() {
+        return mRestartCount;
+    }
+
+    /**
+     * Returns the time from a lost connection to the first heart rate after it, in milliseconds.
+     */
+    public LatencyRecorder getResumeLatency() {
+        return mResumeLatency;
+    }
+
+    /**
+     * Returns the GATT operations of the whole connection during the last full minute, or -1
+     * before the first minute is over.
+     */
+    public long getOperationsPerMinute() {
+        return mOperationsPerMinute;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.miband.Bluetooth;
+
+/**
+ * Parser for the Heart Rate Measurement characteristic (0x2A37).
+ * <p/>
+ * Layout: flags (uint8), heart rate (uint8 or uint16), energy expended (uint16, optional),
+ * RR intervals (uint16 each in 1/1024 s, optional). One instance is reused for every
+ * notification, {@link #parse(byte[])} does not allocate.
+ */
+public class HeartRateMeasurement {
+    public static final int FLAG_HEART_RATE_UINT16 = 0x01;
+    public static final int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    // a notification can't be longer than the maximum attribute value (512 bytes)
+    private static final int MAX_RR_INTERVALS = 256;
+
+    private final int[] mRrIntervals = new int[MAX_RR_INTERVALS];
+    private int mFlags;
+    private int mHeartRate;
+    private int mEnergyExpended;
+    private int mRrCount;
+
+    /**
+     * Decodes the characteristic value.
+     *
+     * @return false if the value is too short for the fields announced by its flags,
+     * the previous content is undefined in that case
+     */
+    public boolean parse(byte[] value) {
+        if (value == null || value.length < 2) {
+            return false;
+        }
+        int flags = value[0] & 0xff;
+        int offset = 1;
+
+        if ((flags & FLAG_HEART_RATE_UINT16) != 0) {
+            if (value.length < offset + 2) {
+                return false;
+            }
+            mHeartRate = uint16(value, offset);
+            offset += 2;
+        } else {
+            mHeartRate = value[offset] & 0xff;
+            offset += 1;
+        }
+
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (value.length < offset + 2) {
+                return false;
+            }
+            mEnergyExpended = uint16(value, offset);
+            offset += 2;
+        } else {
+            mEnergyExpended = -1;
+        }
+
+        mRrCount = 0;
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            // a trailing odd byte is ignored
+            while (offset + 2 <= value.length && mRrCount < MAX_RR_INTERVALS) {
+                mRrIntervals[mRrCount++] = uint16(value, offset);
+                offset += 2;
+            }
+        }
+        mFlags = flags;
+        return true;
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | ((value[offset + 1] & 0xff) << 8);
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    public boolean isSensorContactSupported() {
+        return (mFlags & FLAG_SENSOR_CONTACT_SUPPORTED) != 0;
+    }
+
+    /**
+     * Returns false only if the sensor supports contact detection and reports no skin contact.
+     */
+    public boolean hasSensorContact() {
+        return !isSensorContactSupported() || (mFlags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+    }
+
+    /**
+     * Returns the accumulated energy expended in kJ, or -1 if not present.
+     */
+    public int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    public int getRrIntervalCount() {
+        return mRrCount;
+    }
+
+    /**
+     * Returns an RR interval in 1/1024 s, as sent by the sensor.
+     */
+    public int getRrInterval(int index) {
+        return mRrIntervals[index];
+    }
+
+    /**
+     * Returns the RR intervals in 1/1024 s up to {@link #getRrIntervalCount()}, the array is
+     * reused for the next notification.
+     */
+    public int[] getRrIntervals() {
+        return mRrIntervals;
+    }
+
+    public int getRrIntervalMillis(int index) {
+        return (int) ((mRrIntervals[index] * 1000L + 512) / 1024);
+    }
+}
@@ -15,6 +15,9 @@ class Transaction {
     private
     @Nullable
     BluetoothGattCallback gattCallback;
+    private TransactionScheduler.Priority priority = TransactionScheduler.Priority.REALTIME;
+    // System.nanoTime() when it was last queued
+    private volatile long queuedAt;
 
     void add(BtLEAction action) {
         mActions.add(action);
@@ -32,6 +35,42 @@ class Transaction {
         gattCallback = callback;
     }
 
+    void setPriority(TransactionScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
+    TransactionScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * Returns true if the other transaction runs equivalent actions in the same order, with the
+     * same callback and priority.
+     */
+    boolean isEquivalent(Transaction other) {
+        if (other == this) {
+            return true;
+        }
+        if (other.gattCallback != gattCallback || other.priority != priority
+                || other.mActions.size() != mActions.size()) {
+            return false;
+        }
+        for (int i = 0; i < mActions.size(); i++) {
+            if (!mActions.get(i).isEquivalent(other.mActions.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the GattCallback for this transaction, or null if none.
      */
@@ -2,12 +2,16 @@ package com.example.miband.Bluetooth;
 
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import com.example.miband.Bluetooth.Actions.BtLEAction;
+import com.example.miband.Bluetooth.Actions.ConnectionPriorityAction;
 import com.example.miband.Bluetooth.Actions.NotifyAction;
+import com.example.miband.Bluetooth.Actions.RequestMtuAction;
+import com.example.miband.Bluetooth.Actions.SetPhyAction;
 import com.example.miband.Bluetooth.Actions.WriteAction;
 
 public class TransactionBuilder {
@@ -42,6 +46,23 @@ public class TransactionBuilder {
         return new NotifyAction(characteristic, enable);
     }
 
+    /**
+     * Adds the actions switching the connection to the given profile. What the Android version
+     * doesn't support is left out.
+     */
+    public void requestConnectionProfile(ConnectionProfile profile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        add(new ConnectionPriorityAction(profile.getConnectionPriority()));
+        if (profile.getMtu() > 0) {
+            add(new RequestMtuAction(profile.getMtu()));
+        }
+        if (profile.getPhy() != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            add(new SetPhyAction(profile.getPhy()));
+        }
+    }
+
     public void add(BtLEAction action) {
         mTransaction.add(action);
     }
@@ -50,6 +71,14 @@ public class TransactionBuilder {
         mTransaction.setGattCallback(callback);
     }
 
+    /**
+     * Sets the lane the transaction is queued in, {@link TransactionScheduler.Priority#REALTIME}
+     * by default.
+     */
+    public void setPriority(TransactionScheduler.Priority priority) {
+        mTransaction.setPriority(priority);
+    }
+
     public void queue(BluetoothQueue queue) {
         if (mQueued) {
             throw new IllegalStateException("This builder had already been queued. You must not reuse it.");
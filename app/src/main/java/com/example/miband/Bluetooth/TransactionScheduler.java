@@ -0,0 +1,168 @@
+package com.example.miband.Bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking queue of transactions with one lane per {@link Priority}. Transactions can be added
+ * at either end of their lane in constant time.
+ * <p/>
+ * Authentication always goes first. Realtime transactions go before bulk ones, but a waiting
+ * bulk transaction gets its turn after {@link #REALTIME_BURST} realtime ones, so neither lane can
+ * starve the other and a large bulk job delays realtime control by one transaction at most.
+ */
+public class TransactionScheduler<T> {
+
+    public enum Priority {
+        /**
+         * Authentication and handshake, the band drops the connection if they are late.
+         */
+        AUTH,
+        /**
+         * Measurement control and keep-alives.
+         */
+        REALTIME,
+        /**
+         * Everything that may wait, e.g. the notifications that aren't needed to measure.
+         * Transactions in other lanes may overtake it, so nothing that must stay in order
+         * with them, like a connection profile change, belongs here.
+         */
+        BULK
+    }
+
+    /**
+     * Decides whether two transactions have the same effect.
+     */
+    public interface Equivalence<T> {
+        boolean isEquivalent(T a, T b);
+    }
+
+    static final int REALTIME_BURST = 4;
+
+    private final ArrayDeque<T> mAuth = new ArrayDeque<>();
+    private final ArrayDeque<T> mRealtime = new ArrayDeque<>();
+    private final ArrayDeque<T> mBulk = new ArrayDeque<>();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    // realtime transactions taken in a row while bulk ones were waiting
+    private int mRealtimeStreak;
+
+    private ArrayDeque<T> getLane(Priority priority) {
+        switch (priority) {
+            case AUTH:
+                return mAuth;
+            case BULK:
+                return mBulk;
+            default:
+                return mRealtime;
+        }
+    }
+
+    public void addLast(T transaction, Priority priority) {
+        mLock.lock();
+        try {
+            getLane(priority).addLast(transaction);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the transaction at the end of its lane, unless an equivalent one is still waiting in
+     * that lane.
+     *
+     * @return false if the transaction was dropped
+     */
+    public boolean addLastIfAbsent(T transaction, Priority priority, Equivalence<? super T> equivalence) {
+        mLock.lock();
+        try {
+            ArrayDeque<T> lane = getLane(priority);
+            for (T pending : lane) {
+                if (equivalence.isEquivalent(pending, transaction)) {
+                    return false;
+                }
+            }
+            lane.addLast(transaction);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Puts the transaction in front of all others of the same priority.
+     */
+    public void addFirst(T transaction, Priority priority) {
+        mLock.lock();
+        try {
+            getLane(priority).addFirst(transaction);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next transaction and removes it.
+     */
+    public T take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            T transaction;
+            while ((transaction = next()) == null) {
+                mNotEmpty.await();
+            }
+            return transaction;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private T next() {
+        if (!mAuth.isEmpty()) {
+            return mAuth.pollFirst();
+        }
+        if (!mRealtime.isEmpty() && (mBulk.isEmpty() || mRealtimeStreak < REALTIME_BURST)) {
+            if (!mBulk.isEmpty()) {
+                mRealtimeStreak++;
+            }
+            return mRealtime.pollFirst();
+        }
+        mRealtimeStreak = 0;
+        return mBulk.pollFirst();
+    }
+
+    public void clear() {
+        mLock.lock();
+        try {
+            mAuth.clear();
+            mRealtime.clear();
+            mBulk.clear();
+            mRealtimeStreak = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mAuth.size() + mRealtime.size() + mBulk.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size(Priority priority) {
+        mLock.lock();
+        try {
+            return getLane(priority).size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
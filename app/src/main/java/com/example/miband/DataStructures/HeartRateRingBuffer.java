@@ -0,0 +1,110 @@
+package com.example.miband.DataStructures;
+
+/**
+ * Fixed capacity store of the most recent heart rate samples, kept in parallel primitive arrays.
+ * <p/>
+ * Every sample gets an increasing sequence number. Readers keep the sequence of the last sample
+ * they have seen and read newer ones in place with {@link #read(long, long, Visitor)}, nothing is
+ * copied or allocated. There must only be a single writer, readers may be on any thread.
+ */
+public class HeartRateRingBuffer {
+
+    public interface Visitor {
+        void visit(long sequence, long timestamp, int value);
+    }
+
+    private final long[] mTimestamps;
+    private final short[] mValues;
+    private final int mMask;
+
+    // sequence of the next sample to be written, published after the sample has been written
+    private volatile long mNextSequence;
+
+    /**
+     * @param capacity number of samples to keep, rounded up to a power of two
+     */
+    public HeartRateRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mTimestamps = new long[size];
+        mValues = new short[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * @return the sequence number of the appended sample
+     */
+    public long append(long timestamp, int value) {
+        long sequence = mNextSequence;
+        int index = (int) (sequence & mMask);
+        mTimestamps[index] = timestamp;
+        mValues[index] = (short) value;
+        mNextSequence = sequence + 1;
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * Returns the sequence number the next appended sample will get.
+     */
+    public long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest sample still stored.
+     */
+    public long getOldestSequence() {
+        return Math.max(0, mNextSequence - mTimestamps.length);
+    }
+
+    public boolean isEmpty() {
+        return mNextSequence == 0;
+    }
+
+    /**
+     * Returns the timestamp of the given sample, only valid while the sequence is between
+     * {@link #getOldestSequence()} and {@link #getNextSequence()}.
+     */
+    public long getTimestamp(long sequence) {
+        return mTimestamps[(int) (sequence & mMask)];
+    }
+
+    public int getValue(long sequence) {
+        return mValues[(int) (sequence & mMask)];
+    }
+
+    /**
+     * Visits the stored samples with sequence numbers from (inclusive) to (exclusive), samples
+     * that have been overwritten already are skipped.
+     *
+     * @return the sequence to continue reading from
+     */
+    public long read(long from, long to, Visitor visitor) {
+        long next = mNextSequence;
+        long end = Math.min(to, next);
+        long start = Math.max(from, next - mTimestamps.length);
+        for (long sequence = start; sequence < end; sequence++) {
+            int index = (int) (sequence & mMask);
+            long timestamp = mTimestamps[index];
+            int value = mValues[index];
+            if (sequence <= mNextSequence - mTimestamps.length) {
+                // the writer lapped us while reading, or is overwriting this slot right now
+                continue;
+            }
+            visitor.visit(sequence, timestamp, value);
+        }
+        return Math.max(end, from);
+    }
+
+    /**
+     * Visits the samples appended since the given sequence.
+     *
+     * @return the sequence to continue reading from
+     */
+    public long readFrom(long from, Visitor visitor) {
+        return read(from, Long.MAX_VALUE, visitor);
+    }
+}
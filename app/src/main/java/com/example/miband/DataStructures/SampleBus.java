@@ -0,0 +1,323 @@
+package com.example.miband.DataStructures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands heart rate samples from the Bluetooth callback to several consumers, each on its own
+ * thread.
+ * <p/>
+ * Samples are written to a preallocated ring of primitive arrays and published by advancing a
+ * single cursor. Every consumer follows the cursor with its own sequence, so a slow consumer
+ * only delays itself. The producer never waits: a consumer that falls a whole ring behind
+ * skips the overwritten samples and counts them as lost. There must only be a single producer.
+ * <p/>
+ * Consumer threads don't log, a consumer that throws is counted and keeps running with the next
+ * sample.
+ * <p/>
+ * A slot may also carry a whole measurement with its RR intervals, for consumers subscribed with
+ * {@link #subscribe(String, MeasurementConsumer)}. Measurements that are no sample, e.g. without
+ * sensor contact, are skipped by the other consumers.
+ */
+public class SampleBus {
+    public static String TAG = "MiBand: SampleBus";
+
+    // a waiting consumer yields this often before it parks, parking and unparking costs far more during bursts
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * RR intervals kept per slot, a 20 byte notification holds 9, further ones are dropped.
+     */
+    public static final int MAX_RR_INTERVALS = 16;
+
+    /**
+     * Set on measurements without sensor contact, never on samples.
+     */
+    public static final int FLAG_NO_CONTACT = 0x4000;
+
+    public interface Consumer {
+        /**
+         * Called on the consumer's thread for every sample, in order.
+         */
+        void onSample(long timestamp, int value, int flags);
+    }
+
+    public interface MeasurementConsumer {
+        /**
+         * Called on the consumer's thread for every measurement, in order. The intervals array is
+         * reused for the next measurement.
+         */
+        void onMeasurement(long timestamp, int value, int flags, int[] rrIntervals, int rrCount);
+    }
+
+    private final long[] mTimestamps;
+    private final short[] mValues;
+    private final short[] mFlags;
+    private final boolean[] mSample;
+    private final byte[] mRrCounts;
+    private final int[] mRrIntervals;
+    private final int mMask;
+
+    // number of published samples, i.e. the sequence of the next one
+    private volatile long mCursor;
+    private volatile boolean mRunning;
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+    // copied on start, so publish() does not iterate a list
+    private Subscription[] mActive = new Subscription[0];
+
+    /**
+     * @param capacity number of samples a consumer may fall behind before it loses samples,
+     *                 rounded up to a power of two
+     */
+    public SampleBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mTimestamps = new long[size];
+        mValues = new short[size];
+        mFlags = new short[size];
+        mSample = new boolean[size];
+        mRrCounts = new byte[size];
+        mRrIntervals = new int[size * MAX_RR_INTERVALS];
+        mMask = size - 1;
+    }
+
+    /**
+     * Registers a consumer, must be called before {@link #start()}.
+     */
+    public synchronized Subscription subscribe(String name, Consumer consumer) {
+        if (mRunning) {
+            throw new IllegalStateException("Consumers must be added before the bus is started.");
+        }
+        Subscription subscription = new Subscription(name, consumer, null);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Registers a consumer of all measurements, must be called before {@link #start()}.
+     */
+    public synchronized Subscription subscribe(String name, MeasurementConsumer consumer) {
+        if (mRunning) {
+            throw new IllegalStateException("Consumers must be added before the bus is started.");
+        }
+        Subscription subscription = new Subscription(name, null, consumer);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mActive = mSubscriptions.toArray(new Subscription[mSubscriptions.size()]);
+        for (Subscription subscription : mActive) {
+            subscription.start();
+        }
+    }
+
+    /**
+     * Stops the consumer threads, samples they have not seen yet are not delivered.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        for (Subscription subscription : mActive) {
+            LockSupport.unpark(subscription.mThread);
+        }
+    }
+
+    /**
+     * Publishes a sample and returns right away.
+     */
+    public void publish(long timestamp, int value, int flags) {
+        publish(timestamp, value, flags, null, 0, true);
+    }
+
+    /**
+     * Publishes a measurement and returns right away.
+     *
+     * @param sample false if only measurement consumers should see it
+     */
+    public void publish(long timestamp, int value, int flags, int[] rrIntervals, int rrCount, boolean sample) {
+        long sequence = mCursor;
+        int index = (int) (sequence & mMask);
+        mTimestamps[index] = timestamp;
+        mValues[index] = (short) value;
+        mFlags[index] = (short) flags;
+        mSample[index] = sample;
+        int count = Math.min(rrCount, MAX_RR_INTERVALS);
+        mRrCounts[index] = (byte) count;
+        if (count > 0) {
+            System.arraycopy(rrIntervals, 0, mRrIntervals, index * MAX_RR_INTERVALS, count);
+        }
+        mCursor = sequence + 1;
+
+        Subscription[] active = mActive;
+        for (int i = 0; i < active.length; i++) {
+            if (active[i].mWaiting) {
+                LockSupport.unpark(active[i].mThread);
+            }
+        }
+    }
+
+    public long getPublishedCount() {
+        return mCursor;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * Returns the largest lag of all consumers right now.
+     */
+    public long getMaxLag() {
+        long lag = 0;
+        for (Subscription subscription : mActive) {
+            lag = Math.max(lag, subscription.getLag());
+        }
+        return lag;
+    }
+
+    /**
+     * Returns the number of samples any consumer threw an exception for.
+     */
+    public long getFailureCount() {
+        long failures = 0;
+        for (Subscription subscription : mActive) {
+            failures += subscription.getFailureCount();
+        }
+        return failures;
+    }
+
+    public class Subscription {
+        private final String mName;
+        private final Consumer mConsumer;
+        private final MeasurementConsumer mMeasurementConsumer;
+        private final int[] mIntervals;
+        private Thread mThread;
+        // sequence of the next sample this consumer reads
+        private volatile long mSequence;
+        private volatile boolean mWaiting;
+        private volatile long mLost;
+        private volatile long mMaxLag;
+        private volatile long mFailures;
+        private volatile RuntimeException mLastFailure;
+
+        Subscription(String name, Consumer consumer, MeasurementConsumer measurementConsumer) {
+            mName = name;
+            mConsumer = consumer;
+            mMeasurementConsumer = measurementConsumer;
+            mIntervals = measurementConsumer != null ? new int[MAX_RR_INTERVALS] : null;
+        }
+
+        void start() {
+            mSequence = mCursor;
+            mThread = new Thread("SampleBus: " + mName) {
+                @Override
+                public void run() {
+                    consume();
+                }
+            };
+            mThread.start();
+        }
+
+        private void consume() {
+            long sequence = mSequence;
+            while (mRunning) {
+                long available = mCursor;
+                if (sequence == available) {
+                    for (int i = 0; i < SPIN_TRIES && mCursor == sequence; i++) {
+                        Thread.yield();
+                    }
+                    if (mCursor != sequence) {
+                        continue;
+                    }
+                    mWaiting = true;
+                    // checked again after announcing the wait, so a concurrent publish is not missed
+                    if (mCursor == sequence && mRunning) {
+                        LockSupport.park(this);
+                    }
+                    mWaiting = false;
+                    continue;
+                }
+
+                long lag = available - sequence;
+                if (lag > mMaxLag) {
+                    mMaxLag = lag;
+                }
+                for (; sequence < available; sequence++) {
+                    int index = (int) (sequence & mMask);
+                    long timestamp = mTimestamps[index];
+                    int value = mValues[index];
+                    int flags = mFlags[index];
+                    boolean sample = mSample[index];
+                    int rrCount = 0;
+                    if (mMeasurementConsumer != null) {
+                        rrCount = mRrCounts[index];
+                        System.arraycopy(mRrIntervals, index * MAX_RR_INTERVALS, mIntervals, 0, rrCount);
+                    }
+                    long oldest = mCursor - mTimestamps.length;
+                    if (sequence <= oldest) {
+                        // lapped by the producer, continue with the oldest sample still intact
+                        mLost += oldest + 1 - sequence;
+                        sequence = oldest;
+                        mSequence = oldest + 1;
+                        continue;
+                    }
+                    try {
+                        if (mMeasurementConsumer != null) {
+                            mMeasurementConsumer.onMeasurement(timestamp, value, flags, mIntervals, rrCount);
+                        } else if (sample) {
+                            mConsumer.onSample(timestamp, value, flags);
+                        }
+                    } catch (RuntimeException e) {
+                        mLastFailure = e;
+                        mFailures++;
+                    }
+                    mSequence = sequence + 1;
+                }
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns how many published samples this consumer has not processed yet.
+         */
+        public long getLag() {
+            return Math.max(0, mCursor - mSequence);
+        }
+
+        /**
+         * Returns the largest backlog this consumer has seen when it picked up samples.
+         */
+        public long getMaxLag() {
+            return mMaxLag;
+        }
+
+        /**
+         * Returns the number of samples this consumer missed because it fell a whole ring behind.
+         */
+        public long getLostCount() {
+            return mLost;
+        }
+
+        /**
+         * Returns the number of samples the consumer threw an exception for.
+         */
+        public long getFailureCount() {
+            return mFailures;
+        }
+
+        /**
+         * Returns the last exception thrown by the consumer, or null if it never threw one.
+         */
+        public RuntimeException getLastFailure() {
+            return mLastFailure;
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package com.example.miband.Device;
 
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.core.app.NotificationCompat;
 
+import com.example.miband.Activities.DeviceControlActivity;
 import com.example.miband.MainActivity;
+import com.example.miband.Processing.PulseAggregator;
+import com.example.miband.R;
 import com.example.miband.Utils.AndroidUtils;
 
+import java.io.File;
+
 public class DeviceService extends Service {
     public static String TAG = "MiBand: DeviceService";
 
@@ -26,7 +38,18 @@ public class DeviceService extends Service {
     final String ACTION_START = PREFIX + ".action.start";
     final String ACTION_CONNECT = PREFIX + ".action.connect";
     String ACTION_DISCONNECT = PREFIX + ".action.disconnect";
+    final String ACTION_START_MEASUREMENT = PREFIX + ".action.start_measurement";
+    final String ACTION_STOP_MEASUREMENT = PREFIX + ".action.stop_measurement";
     String EXTRA_CONNECT_FIRST_TIME = "connect_first_time";
+    String EXTRA_SERVER_ADDRESS = "server_address";
+    String EXTRA_SIMULATION_ID = "simulation_id";
+    String EXTRA_RESOLUTION = "resolution";
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String NOTIFICATION_CHANNEL_ID = "measurement";
+
+    @SuppressLint("StaticFieldLeak")
+    private static MeasurementSession measurementSession;
 
     @Deprecated
     String EXTRA_REALTIME_STEPS = "realtime_steps";
@@ -40,6 +63,34 @@ public class DeviceService extends Service {
         return null;
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        measurementSession = new MeasurementSession(this);
+        // readable with adb from the phone's shared storage
+        File exportDirectory = getExternalFilesDir(null);
+        PhaseTimer.getInstance().setExportDirectory(exportDirectory != null ? exportDirectory : getFilesDir());
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onDestroy() {
+        if (measurementSession != null) {
+            measurementSession.close();
+            measurementSession = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Returns the measurement session of the running service, or null if the service isn't running.
+     */
+    @Nullable
+    public static MeasurementSession getMeasurementSession() {
+        return measurementSession;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public synchronized int onStartCommand(Intent intent, int flags, int startId) {
@@ -96,6 +147,12 @@ public class DeviceService extends Service {
                     device.sendDeviceUpdateIntent(this);
                 }
                 break;
+            case ACTION_START_MEASUREMENT:
+                startMeasurement(intent);
+                break;
+            case ACTION_STOP_MEASUREMENT:
+                stopMeasurement();
+                break;
             default:
                 Log.d(DeviceService.TAG, "Unable to recognize action: " + action);
 
@@ -104,6 +161,52 @@ public class DeviceService extends Service {
         return START_STICKY;
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void startMeasurement(Intent intent) {
+        if (mMiBandSupport == null) {
+            AndroidUtils.toast(this, "Brak połączenia z opaską", Toast.LENGTH_SHORT);
+            return;
+        }
+        String simulationId = intent.getStringExtra(EXTRA_SIMULATION_ID);
+        PulseAggregator.Resolution resolution = PulseAggregator.Resolution.values()[
+                intent.getIntExtra(EXTRA_RESOLUTION, PulseAggregator.Resolution.NONE.ordinal())];
+
+        // keeps the measurement running with the screen off and the activity gone
+        startForeground(NOTIFICATION_ID, createNotification(simulationId));
+        measurementSession.start(mMiBandSupport, intent.getStringExtra(EXTRA_SERVER_ADDRESS), simulationId, resolution);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void stopMeasurement() {
+        measurementSession.stop();
+        stopForeground(true);
+    }
+
+    private Notification createNotification(String simulationId) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.measurement_notification_channel), NotificationManager.IMPORTANCE_LOW);
+            NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(channel);
+        }
+
+        Intent intent = new Intent(this, DeviceControlActivity.class);
+        if (mDevice != null) {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(MiBandDevice.EXTRA_DEVICE, mDevice);
+            intent.putExtra("bundle", bundle);
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_watch)
+                .setContentTitle(getString(R.string.measurement_notification_title))
+                .setContentText(getString(R.string.measurement_notification_text, simulationId))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
     private void start() {
         if (!mStarted) {
             mStarted = true;
@@ -0,0 +1,362 @@
+package com.example.miband.Device;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.miband.Bluetooth.HeartRateGattCallback;
+import com.example.miband.DataStructures.HeartRateRingBuffer;
+import com.example.miband.DataStructures.SampleBus;
+import com.example.miband.Processing.AlertEngine;
+import com.example.miband.Processing.AlertRule;
+import com.example.miband.Processing.HrvCalculator;
+import com.example.miband.Processing.PulseAggregator;
+import com.example.miband.Processing.RollingStatistics;
+import com.example.miband.R;
+import com.example.miband.Tasks.LivePulsePublisher;
+import com.example.miband.Tasks.PulseBatch;
+import com.example.miband.Tasks.PulseUploader;
+import com.example.miband.Tasks.UplinkBuffer;
+import com.example.miband.Utils.AndroidUtils;
+import com.example.miband.Utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Heart rate measurement with everything downstream of the band: processing, upload and the
+ * live stream. Owned by the {@link DeviceService}, so it keeps running while no activity is
+ * shown. Activities only subscribe with a {@link Listener} and read the stored samples and
+ * statistics, they are never on the data path.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class MeasurementSession {
+    public static String TAG = "MiBand: MeasurementSession";
+
+    private static final int SAMPLE_CAPACITY = 4 * 60 * 60; // 4 hours at 1 Hz
+    private static final long HRV_WINDOW = 5 * 60 * 1000; // 5 minutes
+    private static final long STATISTICS_WINDOW = 60 * 1000; // 1 minute
+    private static final int STATISTICS_CAPACITY = 1024;
+    private static final int SAMPLE_BUS_CAPACITY = 1024;
+    private static final int ALERT_MAX_PULSE = 180;
+
+    /**
+     * Called on the bus threads, implementations must not block.
+     */
+    public interface Listener {
+        void onSample(long timestamp, int value);
+
+        void onAlert(AlertRule rule, long timestamp, int value, boolean raised);
+    }
+
+    private final Context mContext;
+
+    private final HeartRateRingBuffer mSamples = new HeartRateRingBuffer(SAMPLE_CAPACITY);
+    private final HrvCalculator mHrv = new HrvCalculator(HRV_WINDOW);
+    private final SampleBus mSampleBus = new SampleBus(SAMPLE_BUS_CAPACITY);
+    private final AlertEngine mAlertEngine = new AlertEngine();
+    private final PulseAggregator mAggregator = new PulseAggregator(new PulseAggregator.Sink() {
+        @Override
+        public void onAggregate(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+            PulseUploader uploader = mPulseUploader;
+            if (uploader != null) {
+                uploader.addAggregate(timestamp, sum, count, min, max, last, flags);
+            }
+        }
+    });
+    private final RollingStatistics mStatistics = new RollingStatistics(STATISTICS_WINDOW, STATISTICS_CAPACITY);
+
+    private HeartRateGattCallback mHeartRateGattCallback;
+    private volatile PulseUploader mPulseUploader;
+    private volatile LivePulsePublisher mLivePublisher;
+    private volatile Listener mListener;
+
+    private String mSimulationId;
+    private PulseAggregator.Resolution mResolution = PulseAggregator.Resolution.NONE;
+    private boolean mRunning;
+
+    MeasurementSession(Context context) {
+        mContext = context;
+        setupAlerts();
+        subscribeToSamples();
+        registerGauges();
+    }
+
+    /**
+     * Starts measuring for the given simulation, a running measurement is restarted.
+     */
+    public synchronized void start(MiBandSupport support, String serverAddress, String simulationId,
+                                   PulseAggregator.Resolution resolution) {
+        stopHeartRateMeasurement();
+
+        mSimulationId = simulationId;
+        mResolution = resolution;
+        // flushes the last window of the previous session before the simulation id changes
+        mAggregator.setResolution(resolution);
+        startPulseUploader("http://" + serverAddress + "/mibandpulse/sendPulse.php");
+        startLivePublisher("http://" + serverAddress + "/mibandpulse/pusherAuth.php");
+
+        mHrv.reset();
+        mStatistics.reset();
+        mAlertEngine.reset();
+        mHeartRateGattCallback = new HeartRateGattCallback(support, mContext);
+        mHeartRateGattCallback.setSampleBus(mSampleBus);
+        // pinged by the keep-alive from now on
+        mHeartRateGattCallback.enableRealtimeHeartRateMeasurement(true);
+        mRunning = true;
+        Log.d(MeasurementSession.TAG, "Started measurement for simulation " + simulationId);
+    }
+
+    /**
+     * Stops measuring, samples not sent yet stay in the outbox.
+     */
+    public synchronized void stop() {
+        if (mHeartRateGattCallback != null) {
+            mHeartRateGattCallback.enableRealtimeHeartRateMeasurement(false);
+            mHeartRateGattCallback = null;
+        }
+        // the last window would otherwise wait for the next session
+        mAggregator.flush();
+        mRunning = false;
+        Log.d(MeasurementSession.TAG, "Stopped measurement for simulation " + mSimulationId);
+    }
+
+    private void stopHeartRateMeasurement() {
+        if (mHeartRateGattCallback != null) {
+            // the band stops measuring by itself without pings
+            mHeartRateGattCallback.getKeepAlive().stop();
+            mHeartRateGattCallback = null;
+        }
+    }
+
+    /**
+     * Releases everything, the session can't be started again.
+     */
+    synchronized void close() {
+        stopHeartRateMeasurement();
+        mRunning = false;
+        mSampleBus.stop();
+        mAggregator.flush();
+        if (mPulseUploader != null) {
+            // pending samples stay in the outbox and are sent with the next session
+            mPulseUploader.close();
+            mPulseUploader = null;
+        }
+        if (mLivePublisher != null) {
+            mLivePublisher.close();
+            mLivePublisher = null;
+        }
+    }
+
+    /**
+     * Lets the listener, the uploader, the live stream and the statistics each take samples from
+     * the bus on their own thread, so none of them can hold up the Bluetooth callback or each other.
+     */
+    private void subscribeToSamples() {
+        mSampleBus.subscribe("UI", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                mSamples.append(timestamp, value);
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onSample(timestamp, value);
+                }
+            }
+        });
+        mSampleBus.subscribe("Uplink", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                mAggregator.add(timestamp, value, flags);
+            }
+        });
+        mSampleBus.subscribe("Alerts", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                if ((flags & PulseBatch.FLAG_ARTIFACT) == 0) {
+                    mAlertEngine.evaluate(timestamp, value);
+                }
+            }
+        });
+        mSampleBus.subscribe("Live", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                LivePulsePublisher livePublisher = mLivePublisher;
+                if (livePublisher != null && (flags & PulseBatch.FLAG_ARTIFACT) == 0) {
+                    livePublisher.publish(timestamp, value);
+                }
+            }
+        });
+        // the UI reads both while holding their locks, that must not hold up the Bluetooth callback
+        mSampleBus.subscribe("Measurements", new SampleBus.MeasurementConsumer() {
+            @Override
+            public void onMeasurement(long timestamp, int value, int flags, int[] rrIntervals, int rrCount) {
+                if ((flags & (SampleBus.FLAG_NO_CONTACT | PulseBatch.FLAG_ARTIFACT)) != 0) {
+                    mHrv.addGap();
+                    return;
+                }
+                if (value > 0) {
+                    mStatistics.add(timestamp, value);
+                }
+                for (int i = 0; i < rrCount; i++) {
+                    mHrv.addInterval(rrIntervals[i]);
+                }
+            }
+        });
+        mSampleBus.start();
+    }
+
+    private void registerGauges() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("samples.bus.max_lag", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mSampleBus.getMaxLag();
+            }
+        });
+        metrics.register("samples.bus.failures", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mSampleBus.getFailureCount();
+            }
+        });
+        metrics.register("samples.alerts_raised", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mAlertEngine.getAlertsRaised();
+            }
+        });
+        metrics.register("upload.queue.depth", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                PulseUploader uploader = mPulseUploader;
+                return uploader != null ? uploader.getQueueDepth() : 0;
+            }
+        });
+        metrics.register("upload.dropped", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                PulseUploader uploader = mPulseUploader;
+                return uploader != null ? uploader.getDroppedCount() : 0;
+            }
+        });
+        metrics.register("upload.latency.p99.ms", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                PulseUploader uploader = mPulseUploader;
+                return uploader != null ? uploader.getRequestLatency().getPercentile(99) : -1;
+            }
+        });
+    }
+
+    private void setupAlerts() {
+        mAlertEngine.addRule(AlertRule.above("Puls powyżej " + ALERT_MAX_PULSE, ALERT_MAX_PULSE, 10000));
+        mAlertEngine.addRule(AlertRule.rising("Gwałtowny wzrost pulsu", 30, 60000));
+        mAlertEngine.addListener(new AlertEngine.Listener() {
+            @Override
+            public void onAlert(AlertRule rule, long timestamp, int value, boolean raised) {
+                Log.d(MeasurementSession.TAG, "Alert " + rule.getName() + (raised ? " raised" : " cleared") + " at " + value + " bpm");
+                LivePulsePublisher livePublisher = mLivePublisher;
+                if (livePublisher != null) {
+                    livePublisher.publishAlert(rule.getName(), timestamp, value, raised);
+                }
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onAlert(rule, timestamp, value, raised);
+                }
+            }
+        });
+    }
+
+    private void startPulseUploader(String serverUrl) {
+        try {
+            if (mPulseUploader == null) {
+                mPulseUploader = new PulseUploader(new File(mContext.getFilesDir(), "outbox"));
+                // only once, a fallback to form encoding holds for the lifetime of the uploader
+                mPulseUploader.setBinaryFormat(mContext.getResources().getBoolean(R.bool.upload_binary_format));
+                mPulseUploader.setOverflowPolicy(getOverflowPolicy());
+            }
+            mPulseUploader.setHrvCalculator(mHrv);
+            mPulseUploader.start(serverUrl, mSimulationId);
+        } catch (IOException e) {
+            Log.d(MeasurementSession.TAG, "Unable to open pulse outbox", e);
+            AndroidUtils.toast(mContext, "Nie można zapisywać pomiarów: " + e.getMessage(), Toast.LENGTH_LONG);
+        }
+    }
+
+    private UplinkBuffer.Policy getOverflowPolicy() {
+        String policy = mContext.getResources().getString(R.string.upload_overflow_policy);
+        try {
+            return UplinkBuffer.Policy.valueOf(policy);
+        } catch (IllegalArgumentException e) {
+            Log.d(MeasurementSession.TAG, "Unknown overflow policy " + policy + ", using " + UplinkBuffer.Policy.COALESCE);
+            return UplinkBuffer.Policy.COALESCE;
+        }
+    }
+
+    private void startLivePublisher(String authUrl) {
+        String appKey = mContext.getResources().getString(R.string.pusher_app_key);
+        if (appKey.isEmpty()) {
+            return;
+        }
+        if (mLivePublisher == null) {
+            mLivePublisher = new LivePulsePublisher(appKey,
+                    mContext.getResources().getString(R.string.pusher_host),
+                    mContext.getResources().getInteger(R.integer.pusher_ws_port),
+                    authUrl);
+        }
+        mLivePublisher.start(mSimulationId);
+    }
+
+    /**
+     * Sets the listener notified of new samples and alerts, null to unsubscribe.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized String getSimulationId() {
+        return mSimulationId;
+    }
+
+    public synchronized PulseAggregator.Resolution getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Returns the samples of this and previous measurements, for as long as they fit.
+     */
+    public HeartRateRingBuffer getSamples() {
+        return mSamples;
+    }
+
+    public RollingStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    public HrvCalculator getHrv() {
+        return mHrv;
+    }
+
+    public AlertEngine getAlertEngine() {
+        return mAlertEngine;
+    }
+
+    public SampleBus getSampleBus() {
+        return mSampleBus;
+    }
+
+    public PulseUploader getPulseUploader() {
+        return mPulseUploader;
+    }
+
+    public LivePulsePublisher getLivePublisher() {
+        return mLivePublisher;
+    }
+}
@@ -24,7 +24,7 @@ public class MiBandDevice implements Parcelable {
     public MiBandDevice(BluetoothDevice device, String address){
         mBluetoothDevice = device;
         mAddress = address;
-        mName = device.getName();
+        mName = device != null ? device.getName() : null;
     }
 
     public String getName() {
@@ -107,6 +107,9 @@ public class MiBandDevice implements Parcelable {
 
 
     public void setState(State state) {
+        if (state != mState) {
+            PhaseTimer.getInstance().stamp(state);
+        }
         mState = state;
     }
 
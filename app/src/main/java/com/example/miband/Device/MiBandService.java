@@ -7,6 +7,8 @@ import android.content.Intent;
 
 import androidx.annotation.Nullable;
 
+import com.example.miband.Processing.PulseAggregator;
+
 import java.util.UUID;
 
 public class MiBandService extends DeviceService{
@@ -42,6 +44,8 @@ public class MiBandService extends DeviceService{
 
     public static final byte COMMAND_SET__HR_CONTINUOUS = 0x1;
     public static final byte COMMAND_SET_HR_MANUAL = 0x2;
+    // keeps continuous measurement running, the band stops it after about 15 seconds without one
+    public static final byte COMMAND_PING_HR = 0x16;
 
     public MiBandService(Context context) {
         mContext = context;
@@ -63,6 +67,19 @@ public class MiBandService extends DeviceService{
         mContext.startService(intent);
     }
 
+    public void startMeasurement(String serverAddress, String simulationId, PulseAggregator.Resolution resolution) {
+        Intent intent = createIntent().setAction(ACTION_START_MEASUREMENT)
+                .putExtra(EXTRA_SERVER_ADDRESS, serverAddress)
+                .putExtra(EXTRA_SIMULATION_ID, simulationId)
+                .putExtra(EXTRA_RESOLUTION, resolution.ordinal());
+        invokeService(intent);
+    }
+
+    public void stopMeasurement() {
+        Intent intent = createIntent().setAction(ACTION_STOP_MEASUREMENT);
+        invokeService(intent);
+    }
+
     public void disconnect() {
         Intent intent = createIntent().setAction(ACTION_DISCONNECT);
         invokeService(intent);
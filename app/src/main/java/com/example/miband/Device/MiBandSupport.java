@@ -2,20 +2,27 @@ package com.example.miband.Device;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.RequiresApi;
 
+import com.example.miband.Bluetooth.Actions.NotifyAction;
 import com.example.miband.Bluetooth.Actions.SetDeviceStateAction;
 import com.example.miband.Bluetooth.BluetoothQueue;
+import com.example.miband.Bluetooth.ConnectionProfile;
+import com.example.miband.Bluetooth.GattLayoutCache;
 import com.example.miband.Bluetooth.TransactionBuilder;
+import com.example.miband.Bluetooth.TransactionScheduler;
 import com.example.miband.Utils.AndroidUtils;
 import com.example.miband.Utils.BleNamesResolver;
 import com.example.miband.Utils.CalendarUtils;
@@ -23,13 +30,16 @@ import com.example.miband.Utils.CalendarUtils;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -40,6 +50,17 @@ import javax.crypto.spec.SecretKeySpec;
 public class MiBandSupport extends BluetoothGattCallback {
     public static String TAG = "MiBand: MiBandSupport";
 
+    // a band that lost its notification settings never answers the resumed handshake, a slow
+    // one answers the first step within this time
+    private static final long RESUME_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * Told on the Bluetooth thread when the band is ready again after the connection was lost.
+     */
+    public interface ReconnectListener {
+        void onReconnected();
+    }
+
     private BluetoothQueue mQueue;
     private MiBandDevice mDevice;
 
@@ -50,10 +71,34 @@ public class MiBandSupport extends BluetoothGattCallback {
     private BluetoothAdapter mBtAdapter;
     private Context mContext;
 
+    private GattLayoutCache mLayoutCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // cleared by whichever comes first, the band's first answer or the resume check
+    private final AtomicBoolean mResuming = new AtomicBoolean();
+    private volatile boolean mInitializedBefore;
+    private volatile ReconnectListener mReconnectListener;
+
+    private final Runnable mResumeCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (getDevice().isConnected() && !getDevice().isInitialized() && mResuming.compareAndSet(true, false)) {
+                Log.d(MiBandSupport.TAG, "No answer to the resumed handshake, enabling notifications again");
+                mLayoutCache.clearNotifications(getDevice().getAddress());
+                getQueue().forgetNotifications();
+                initializeDevice(createTransactionBuilder()).queue(getQueue());
+            }
+        }
+    };
+
     void setContext(MiBandDevice device, BluetoothAdapter btAdapter, Context context) {
         mDevice = device;
         mBtAdapter = btAdapter;
         mContext = context;
+        mLayoutCache = new GattLayoutCache(context);
+    }
+
+    public void setReconnectListener(ReconnectListener listener) {
+        mReconnectListener = listener;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -69,8 +114,10 @@ public class MiBandSupport extends BluetoothGattCallback {
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     boolean connect() {
+        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.CONNECT_ATTEMPT);
         if (mQueue == null) {
             mQueue = new BluetoothQueue(getBluetoothAdapter(), getDevice(), this, getContext());
+            mQueue.setLayoutCache(mLayoutCache);
         }
         return mQueue.connect();
     }
@@ -86,6 +133,11 @@ public class MiBandSupport extends BluetoothGattCallback {
 
     void dispose() {
         Log.d(MiBandSupport.TAG, "Dispose");
+        mHandler.removeCallbacks(mResumeCheck);
+        if (mQueue != null) {
+            mQueue.dispose();
+            mQueue = null;
+        }
     }
 
     private byte[] requestAuthNumber() {
@@ -130,10 +182,15 @@ public class MiBandSupport extends BluetoothGattCallback {
         if (MiBandService.UUID_CHARACTERISTIC_AUTH.equals(characteristicUUID)) {
             try {
                 byte[] value = characteristic.getValue();
+                if (mResuming.compareAndSet(true, false)) {
+                    // the notifications are still enabled, a slow handshake must not be started twice
+                    mHandler.removeCallbacks(mResumeCheck);
+                }
 
                 if (value[0] == MiBandService.AUTH_RESPONSE &&
                         value[1] == MiBandService.AUTH_SEND_KEY &&
                         value[2] == MiBandService.AUTH_SUCCESS) {
+                    PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.AUTH_NUMBER_REQUESTED);
                     TransactionBuilder builder = createTransactionBuilder();
                     builder.write(characteristic, requestAuthNumber());
                     performImmediately(builder);
@@ -144,6 +201,7 @@ public class MiBandSupport extends BluetoothGattCallback {
                     byte[] responseValue = org.apache.commons.lang3.ArrayUtils.addAll(
                             new byte[]{(byte) (MiBandService.AUTH_SEND_ENCRYPTED_AUTH_NUMBER | MiBandService.CRYPT_FLAGS), MiBandService.AUTH_BYTE}, eValue);
 
+                    PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.AUTH_NUMBER_SENT);
                     TransactionBuilder builder = createTransactionBuilder();
                     builder.write(characteristic, responseValue);
                     setCurrentTimeWithService(builder);
@@ -153,9 +211,24 @@ public class MiBandSupport extends BluetoothGattCallback {
                         value[2] == MiBandService.AUTH_SUCCESS) {
                     TransactionBuilder builder = createTransactionBuilder();
                     builder.add(new SetDeviceStateAction(getDevice(), MiBandDevice.State.INITIALIZING, getContext()));
-                    enableFurtherNotifications(builder);
                     setInitialized(builder);
+                    // idle until a measurement is started, before it so it can't undo the
+                    // measurement's profile
+                    builder.requestConnectionProfile(ConnectionProfile.LOW_POWER);
                     performImmediately(builder);
+                    // not needed to measure, so they don't hold up the heart rate start
+                    TransactionBuilder notificationBuilder = createTransactionBuilder();
+                    notificationBuilder.setPriority(TransactionScheduler.Priority.BULK);
+                    enableFurtherNotifications(notificationBuilder);
+                    notificationBuilder.queue(getQueue());
+                    if (mInitializedBefore) {
+                        ReconnectListener listener = mReconnectListener;
+                        if (listener != null) {
+                            // queued behind the handshake, which goes first
+                            listener.onReconnected();
+                        }
+                    }
+                    mInitializedBefore = true;
                 }
             } catch (Exception e) {
                 AndroidUtils.toast(getContext(), "Error authenticating device", Toast.LENGTH_LONG);
@@ -167,13 +240,67 @@ public class MiBandSupport extends BluetoothGattCallback {
     }
 
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        PhaseTimer.getInstance().stamp(PhaseTimer.Milestone.SERVICES_DISCOVERED);
         gattServicesDiscovered(gatt.getServices());
 
         if (getDevice().getState().compareTo(MiBandDevice.State.INITIALIZING) >= 0) {
             Log.d(MiBandSupport.TAG, "Services discovered, but device state is already " + getDevice().getState() + " for device: " + getDevice() + ", so ignoring");
             return;
         }
-        initializeDevice(createTransactionBuilder()).queue(getQueue());
+        // the handshake runs on the shortest interval, in a transaction of its own as a band that
+        // doesn't answer the MTU or PHY request must not hold up authentication
+        TransactionBuilder profileBuilder = createTransactionBuilder();
+        profileBuilder.setPriority(TransactionScheduler.Priority.AUTH);
+        profileBuilder.requestConnectionProfile(ConnectionProfile.LOW_LATENCY);
+        profileBuilder.queue(getQueue());
+
+        TransactionBuilder builder = createTransactionBuilder();
+        if (canResume()) {
+            Log.d(MiBandSupport.TAG, "Known layout, resuming without enabling notifications");
+            mResuming.set(true);
+            registerStoredNotifications(builder);
+            mHandler.removeCallbacks(mResumeCheck);
+            mHandler.postDelayed(mResumeCheck, RESUME_TIMEOUT_MILLIS);
+        }
+        initializeDevice(builder).queue(getQueue());
+    }
+
+    /**
+     * Returns true if the band is bonded and has the characteristics it had the last time, so
+     * it still has the notifications enabled then. Otherwise the new layout is stored.
+     */
+    private boolean canResume() {
+        List<UUID> layout;
+        synchronized (characteristicsMonitor) {
+            if (mAvailableCharacteristics == null) {
+                return false;
+            }
+            layout = new ArrayList<>(mAvailableCharacteristics.keySet());
+        }
+        String address = getDevice().getAddress();
+        if (mLayoutCache.matches(address, layout)) {
+            BluetoothDevice device = getDevice().getDevice();
+            return device != null && device.getBondState() == BluetoothDevice.BOND_BONDED
+                    && !mLayoutCache.getNotifications(address).isEmpty();
+        }
+        mLayoutCache.saveLayout(address, layout);
+        return false;
+    }
+
+    /**
+     * Registers the stored notifications with Android only. The queue then knows they are
+     * enabled and skips the descriptor writes of the handshake and of the heart rate start.
+     */
+    private void registerStoredNotifications(TransactionBuilder builder) {
+        Set<UUID> notifications = mLayoutCache.getNotifications(getDevice().getAddress());
+        for (UUID uuid : notifications) {
+            BluetoothGattCharacteristic characteristic = getCharacteristic(uuid);
+            if (characteristic != null) {
+                NotifyAction action = new NotifyAction(characteristic, true);
+                action.setRegisterOnly(true);
+                builder.add(action);
+            }
+        }
     }
 
     private TransactionBuilder createTransactionBuilder() {
@@ -209,6 +336,8 @@ public class MiBandSupport extends BluetoothGattCallback {
 
 
     private TransactionBuilder initializeDevice(TransactionBuilder builder) {
+        // the handshake must not wait behind anything queued before the connection was up
+        builder.setPriority(TransactionScheduler.Priority.AUTH);
         enableNotifications(builder);
 
         builder.add(new SetDeviceStateAction(getDevice(), MiBandDevice.State.AUTHENTICATING, getContext()));
@@ -0,0 +1,310 @@
+package com.example.miband.Device;
+
+import android.util.Log;
+
+import com.example.miband.Utils.Histogram;
+import com.example.miband.Utils.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Follows a band from being picked in the list, or from the start of a reconnect, to the first
+ * heart rate and the first keep-alive ping, so it shows where the time goes. Every
+ * {@link MiBandDevice.State} change and milestone in between is stamped with a monotonic clock,
+ * and the time since the previous one is added to the histogram of the milestone.
+ * <p/>
+ * Each session is appended to {@code phase_sessions.csv} in the export directory and the
+ * histograms are written to {@code phase_histograms.txt}. The sessions of earlier runs of the app
+ * are read back into the histograms, so they cover every session on the phone.
+ */
+public class PhaseTimer {
+    public static String TAG = "MiBand: PhaseTimer";
+
+    private static final String SESSIONS_FILE = "phase_sessions.csv";
+    private static final String HISTOGRAMS_FILE = "phase_histograms.txt";
+
+    public enum Milestone {
+        DEVICE_SELECTED,
+        BONDING,
+        BONDED,
+        CONNECT_ATTEMPT,
+        // the device states, in the same order
+        NOT_CONNECTED,
+        WAITING_FOR_RECONNECT,
+        CONNECTING,
+        CONNECTED,
+        INITIALIZING,
+        AUTHENTICATING,
+        INITIALIZED,
+        SERVICES_DISCOVERED,
+        // skipped when notifications are resumed without writing the descriptor
+        AUTH_CCCD_WRITTEN,
+        AUTH_NUMBER_REQUESTED,
+        AUTH_NUMBER_SENT,
+        MEASUREMENT_STARTED,
+        HEART_RATE_CCCD_WRITTEN,
+        FIRST_SAMPLE,
+        FIRST_KEEPALIVE
+    }
+
+    private static final PhaseTimer sInstance = new PhaseTimer();
+
+    static {
+        sInstance.registerMetrics(Metrics.getInstance());
+    }
+
+    private final Map<Milestone, Histogram> mHistograms = new EnumMap<>(Milestone.class);
+    // from the start of the session to the first heart rate
+    private final Histogram mTotal = new Histogram();
+
+    private final EnumSet<Milestone> mSeen = EnumSet.noneOf(Milestone.class);
+    private final StringBuilder mTimeline = new StringBuilder();
+    private boolean mActive;
+    private long mSessionStart;
+    private long mSessionStartTime;
+    private long mLastStamp;
+    private int mSessions;
+
+    private File mExportDirectory;
+    private ExecutorService mExecutor;
+
+    PhaseTimer() {
+        for (Milestone milestone : Milestone.values()) {
+            mHistograms.put(milestone, new Histogram());
+        }
+    }
+
+    /**
+     * Adds the histograms to the metrics, in milliseconds.
+     */
+    void registerMetrics(Metrics metrics) {
+        for (Milestone milestone : Milestone.values()) {
+            metrics.register("phase." + milestone.name().toLowerCase(Locale.ROOT) + ".ms", mHistograms.get(milestone));
+        }
+        metrics.register("phase.total.ms", mTotal);
+    }
+
+    public static PhaseTimer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets where sessions and histograms are written, and reads back the sessions written there
+     * before.
+     */
+    public synchronized void setExportDirectory(File directory) {
+        if (directory == null || directory.equals(mExportDirectory)) {
+            return;
+        }
+        mExportDirectory = directory;
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "Phase Export");
+                }
+            });
+        }
+        final File sessions = new File(directory, SESSIONS_FILE);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readSessions(sessions);
+            }
+        });
+    }
+
+    public void stamp(MiBandDevice.State state) {
+        stamp(Milestone.valueOf(state.name()));
+    }
+
+    public synchronized void stamp(Milestone milestone) {
+        long now = System.nanoTime();
+        if (mActive && (milestone == Milestone.DEVICE_SELECTED
+                || mSeen.contains(Milestone.FIRST_SAMPLE) && startsSession(milestone))) {
+            // a session that never pinged ends when the next one starts
+            finish(mSeen.contains(Milestone.FIRST_SAMPLE));
+        }
+        if (!mActive) {
+            if (!startsSession(milestone)) {
+                return;
+            }
+            mActive = true;
+            mSessionStart = now;
+            mSessionStartTime = System.currentTimeMillis();
+            mLastStamp = now;
+            mSeen.clear();
+            mTimeline.setLength(0);
+        }
+
+        long sinceStart = (now - mSessionStart) / 1000000;
+        long sincePrevious = (now - mLastStamp) / 1000000;
+        mLastStamp = now;
+        mTimeline.append(',').append(milestone.name()).append('=').append(sinceStart);
+        if (mSeen.add(milestone)) {
+            mHistograms.get(milestone).record(sincePrevious);
+        }
+
+        if (milestone == Milestone.FIRST_SAMPLE) {
+            mTotal.record(sinceStart);
+            Log.d(PhaseTimer.TAG, "First heart rate after " + sinceStart + " ms:" + mTimeline);
+        }
+        if (mSeen.contains(Milestone.FIRST_SAMPLE) && mSeen.contains(Milestone.FIRST_KEEPALIVE)) {
+            finish(true);
+        } else if (milestone == Milestone.NOT_CONNECTED) {
+            finish(mSeen.contains(Milestone.FIRST_SAMPLE));
+        }
+    }
+
+    private static boolean startsSession(Milestone milestone) {
+        switch (milestone) {
+            case DEVICE_SELECTED:
+            case CONNECT_ATTEMPT:
+            case WAITING_FOR_RECONNECT:
+            case CONNECTING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void finish(boolean complete) {
+        mActive = false;
+        mSessions++;
+        if (mExecutor == null) {
+            return;
+        }
+        final String line = mSessionStartTime + (complete ? ",complete" : ",incomplete") + mTimeline;
+        final File directory = mExportDirectory;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                append(new File(directory, SESSIONS_FILE), line);
+                writeHistograms(new File(directory, HISTOGRAMS_FILE));
+            }
+        });
+    }
+
+    private void readSessions(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        int count = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (replay(line)) {
+                        count++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.d(PhaseTimer.TAG, "Unable to read " + file, e);
+        }
+        Log.d(PhaseTimer.TAG, "Read " + count + " earlier sessions");
+    }
+
+    /**
+     * Adds a session written by {@link #finish(boolean)} to the histograms.
+     */
+    synchronized boolean replay(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 2) {
+            return false;
+        }
+        EnumSet<Milestone> seen = EnumSet.noneOf(Milestone.class);
+        long previous = 0;
+        try {
+            for (int i = 2; i < fields.length; i++) {
+                int separator = fields[i].indexOf('=');
+                Milestone milestone = Milestone.valueOf(fields[i].substring(0, separator));
+                long sinceStart = Long.parseLong(fields[i].substring(separator + 1));
+                if (seen.add(milestone)) {
+                    mHistograms.get(milestone).record(sinceStart - previous);
+                }
+                if (milestone == Milestone.FIRST_SAMPLE) {
+                    mTotal.record(sinceStart);
+                }
+                previous = sinceStart;
+            }
+        } catch (RuntimeException e) {
+            Log.d(PhaseTimer.TAG, "Skipping malformed session: " + line);
+            return false;
+        }
+        mSessions++;
+        return true;
+    }
+
+    private static void append(File file, String line) {
+        try {
+            Writer writer = new FileWriter(file, true);
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.d(PhaseTimer.TAG, "Unable to write " + file, e);
+        }
+    }
+
+    private void writeHistograms(File file) {
+        String summary = getSummary();
+        try {
+            Writer writer = new FileWriter(file, false);
+            try {
+                writer.write(summary);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.d(PhaseTimer.TAG, "Unable to write " + file, e);
+        }
+    }
+
+    public Histogram getHistogram(Milestone milestone) {
+        return mHistograms.get(milestone);
+    }
+
+    /**
+     * Returns the histogram of the time from the start of a session to the first heart rate.
+     */
+    public Histogram getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns every histogram in milliseconds, one per line, with the time each milestone took
+     * after the one before it.
+     */
+    public synchronized String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("sessions ").append(mSessions).append('\n');
+        builder.append("TOTAL ").append(mTotal).append(" buckets ").append(mTotal.getBuckets()).append('\n');
+        for (Milestone milestone : Milestone.values()) {
+            Histogram histogram = mHistograms.get(milestone);
+            if (histogram.getCount() > 0) {
+                builder.append(milestone.name()).append(' ').append(histogram)
+                        .append(" buckets ").append(histogram.getBuckets()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
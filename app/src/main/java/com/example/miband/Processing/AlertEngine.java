@@ -0,0 +1,99 @@
+package com.example.miband.Processing;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Evaluates {@link AlertRule}s on every heart rate sample and tells listeners when a rule is
+ * raised or cleared.
+ * <p/>
+ * The engine runs wherever it is fed, normally on its own sample bus consumer thread, so it
+ * does not depend on the chart being visible. Listeners are called on that thread, with the
+ * engine locked, and should hand anything slow to another thread.
+ */
+public class AlertEngine {
+    public static String TAG = "MiBand: AlertEngine";
+
+    public interface Listener {
+        /**
+         * @param raised true when the rule starts to hold, false when it stops
+         */
+        void onAlert(AlertRule rule, long timestamp, int value, boolean raised);
+    }
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile AlertRule[] mRules = new AlertRule[0];
+
+    private long mEvaluations;
+    private long mAlertsRaised;
+
+    public synchronized void addRule(AlertRule rule) {
+        AlertRule[] rules = new AlertRule[mRules.length + 1];
+        System.arraycopy(mRules, 0, rules, 0, mRules.length);
+        rules[mRules.length] = rule;
+        mRules = rules;
+    }
+
+    public synchronized void removeRule(AlertRule rule) {
+        for (int i = 0; i < mRules.length; i++) {
+            if (mRules[i] == rule) {
+                AlertRule[] rules = new AlertRule[mRules.length - 1];
+                System.arraycopy(mRules, 0, rules, 0, i);
+                System.arraycopy(mRules, i + 1, rules, i, rules.length - i);
+                mRules = rules;
+                return;
+            }
+        }
+    }
+
+    public AlertRule[] getRules() {
+        return mRules.clone();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Evaluates all rules on the next sample.
+     */
+    public synchronized void evaluate(long timestamp, int value) {
+        AlertRule[] rules = mRules;
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i].evaluate(timestamp, value)) {
+                notifyListeners(rules[i], timestamp, value);
+            }
+        }
+        mEvaluations++;
+    }
+
+    private void notifyListeners(AlertRule rule, long timestamp, int value) {
+        boolean raised = rule.isRaised();
+        if (raised) {
+            mAlertsRaised++;
+        }
+        for (Listener listener : mListeners) {
+            listener.onAlert(rule, timestamp, value, raised);
+        }
+    }
+
+    /**
+     * Clears the state of all rules, e.g. for a new session.
+     */
+    public synchronized void reset() {
+        for (AlertRule rule : mRules) {
+            rule.reset();
+        }
+    }
+
+    public synchronized long getEvaluations() {
+        return mEvaluations;
+    }
+
+    public synchronized long getAlertsRaised() {
+        return mAlertsRaised;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.miband.Processing;
+
+/**
+ * A condition on the heart rate evaluated by the {@link AlertEngine}.
+ * <p/>
+ * Threshold rules hold once the pulse has been above (or below) the threshold for the given
+ * duration. Slope rules hold while the pulse rises (or falls) faster than the threshold in bpm
+ * per minute, as the least squares slope of the samples of the last window. Both keep running
+ * integer sums only, so evaluating a sample costs O(1) (amortized for slope rules).
+ * <p/>
+ * Rules keep state and must only be evaluated by one engine.
+ */
+public class AlertRule {
+
+    public enum Type {
+        ABOVE,
+        BELOW,
+        RISING,
+        FALLING,
+    }
+
+    // timestamps of slope rules are kept in deciseconds, which keeps the sums well inside a long
+    private static final long TIME_UNIT = 100;
+    private static final int SLOPE_CAPACITY = 1024;
+
+    private final String mName;
+    private final Type mType;
+    private final int mThreshold;
+    private final long mDuration;
+
+    private boolean mRaised;
+
+    // threshold rules: start of the current run of samples meeting the condition, -1 if none
+    private long mConditionSince = -1;
+
+    // slope rules: samples of the window and their sums
+    private long[] mTimes;
+    private short[] mValues;
+    private int mHead;
+    private int mSize;
+    private long mOrigin = -1;
+    private long mSumT;
+    private long mSumV;
+    private long mSumTT;
+    private long mSumTV;
+
+    private AlertRule(String name, Type type, int threshold, long duration) {
+        mName = name;
+        mType = type;
+        mThreshold = threshold;
+        mDuration = duration;
+        if (type == Type.RISING || type == Type.FALLING) {
+            mTimes = new long[SLOPE_CAPACITY];
+            mValues = new short[SLOPE_CAPACITY];
+        }
+    }
+
+    /**
+     * Holds once the pulse has been above bpm for durationMillis.
+     */
+    public static AlertRule above(String name, int bpm, long durationMillis) {
+        return new AlertRule(name, Type.ABOVE, bpm, durationMillis);
+    }
+
+    /**
+     * Holds once the pulse has been below bpm for durationMillis.
+     */
+    public static AlertRule below(String name, int bpm, long durationMillis) {
+        return new AlertRule(name, Type.BELOW, bpm, durationMillis);
+    }
+
+    /**
+     * Holds while the pulse of the last windowMillis rises faster than bpmPerMinute.
+     */
+    public static AlertRule rising(String name, int bpmPerMinute, long windowMillis) {
+        return new AlertRule(name, Type.RISING, bpmPerMinute, windowMillis);
+    }
+
+    /**
+     * Holds while the pulse of the last windowMillis falls faster than bpmPerMinute.
+     */
+    public static AlertRule falling(String name, int bpmPerMinute, long windowMillis) {
+        return new AlertRule(name, Type.FALLING, bpmPerMinute, windowMillis);
+    }
+
+    /**
+     * Evaluates the next sample.
+     *
+     * @return true if the rule changed between raised and cleared
+     */
+    boolean evaluate(long timestamp, int value) {
+        boolean holds;
+        switch (mType) {
+            case ABOVE:
+            case BELOW:
+                holds = evaluateThreshold(timestamp, value);
+                break;
+            default:
+                holds = evaluateSlope(timestamp, value);
+                break;
+        }
+        if (holds == mRaised) {
+            return false;
+        }
+        mRaised = holds;
+        return true;
+    }
+
+    private boolean evaluateThreshold(long timestamp, int value) {
+        boolean condition = mType == Type.ABOVE ? value > mThreshold : value < mThreshold;
+        if (!condition) {
+            mConditionSince = -1;
+            return false;
+        }
+        if (mConditionSince < 0) {
+            mConditionSince = timestamp;
+        }
+        return timestamp - mConditionSince >= mDuration;
+    }
+
+    private boolean evaluateSlope(long timestamp, int value) {
+        if (mOrigin < 0) {
+            mOrigin = timestamp;
+        }
+        long time = (timestamp - mOrigin) / TIME_UNIT;
+        if (mSize == SLOPE_CAPACITY) {
+            removeOldest();
+        }
+        int index = (mHead + mSize++) % SLOPE_CAPACITY;
+        mTimes[index] = time;
+        mValues[index] = (short) value;
+        mSumT += time;
+        mSumV += value;
+        mSumTT += time * time;
+        mSumTV += time * value;
+        while (mSize > 1 && (time - mTimes[mHead]) * TIME_UNIT > mDuration) {
+            removeOldest();
+        }
+
+        // only judge a window that is mostly covered by samples
+        if (mSize < 3 || (time - mTimes[mHead]) * TIME_UNIT * 2 < mDuration) {
+            return false;
+        }
+        long denominator = mSize * mSumTT - mSumT * mSumT;
+        if (denominator == 0) {
+            return false;
+        }
+        // bpm per time unit, scaled to bpm per minute
+        double slope = (double) (mSize * mSumTV - mSumT * mSumV) / denominator * (60000 / TIME_UNIT);
+        return mType == Type.RISING ? slope > mThreshold : slope < -mThreshold;
+    }
+
+    private void removeOldest() {
+        long time = mTimes[mHead];
+        int value = mValues[mHead];
+        mSumT -= time;
+        mSumV -= value;
+        mSumTT -= time * time;
+        mSumTV -= time * value;
+        mHead = (mHead + 1) % SLOPE_CAPACITY;
+        mSize--;
+    }
+
+    void reset() {
+        mRaised = false;
+        mConditionSince = -1;
+        mHead = 0;
+        mSize = 0;
+        mOrigin = -1;
+        mSumT = 0;
+        mSumV = 0;
+        mSumTT = 0;
+        mSumTV = 0;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    public boolean isRaised() {
+        return mRaised;
+    }
+}
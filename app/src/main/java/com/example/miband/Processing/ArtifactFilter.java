@@ -0,0 +1,217 @@
+package com.example.miband.Processing;
+
+/**
+ * Online artifact detection for heart rate samples from the wrist sensor.
+ * <p/>
+ * A sample is an artifact if it is outside the physiologic range, changes faster than
+ * {@link #DEFAULT_MAX_RATE} bpm per second compared to the last accepted sample, or is a
+ * Hampel outlier: further than threshold * 1.4826 * MAD from the median of the recent samples.
+ * The window is bounded, so each sample costs constant time; the samples are kept in two
+ * primitive arrays, in arrival order and sorted.
+ * <p/>
+ * The filter is fed from the Bluetooth thread only, the counters may be read from any thread.
+ */
+public class ArtifactFilter {
+
+    public enum Mode {
+        /**
+         * Artifacts are kept and marked with {@link com.example.miband.Tasks.PulseBatch#FLAG_ARTIFACT}.
+         */
+        FLAG,
+        /**
+         * Artifacts are dropped.
+         */
+        SUPPRESS,
+    }
+
+    public static final int MIN_VALUE = 30;
+    public static final int MAX_VALUE = 220;
+    public static final int DEFAULT_WINDOW_SIZE = 7;
+    public static final double DEFAULT_THRESHOLD = 3;
+    public static final int DEFAULT_MAX_RATE = 20; // bpm per second
+
+    private static final int MAX_WINDOW_SIZE = 31;
+    // scales the MAD to the standard deviation of normally distributed samples
+    private static final double MAD_SCALE = 1.4826;
+    // below this deviation from the median a sample is never an outlier, a steady pulse has a MAD of 0
+    private static final double MIN_DEVIATION = 5;
+    // after longer gaps the last accepted sample says nothing about the next one
+    private static final long MAX_RATE_GAP = 10000; // 10s
+
+    private final int[] mWindow;
+    private final int[] mSorted;
+    private final double mThreshold;
+    private final int mMaxRate;
+    private int mHead;
+    private int mSize;
+
+    private volatile Mode mMode = Mode.SUPPRESS;
+    private long mLastAcceptedTime = Long.MIN_VALUE;
+    private int mLastAcceptedValue;
+
+    private volatile long mRawCount;
+    private volatile long mRangeArtifacts;
+    private volatile long mRateArtifacts;
+    private volatile long mOutliers;
+
+    public ArtifactFilter() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_THRESHOLD, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * @param windowSize number of recent samples the median is taken over, at most 31
+     * @param threshold  outlier threshold in (scaled) median absolute deviations
+     * @param maxRate    largest plausible change in bpm per second
+     */
+    public ArtifactFilter(int windowSize, double threshold, int maxRate) {
+        if (windowSize < 3 || windowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Window size must be between 3 and " + MAX_WINDOW_SIZE);
+        }
+        mWindow = new int[windowSize];
+        mSorted = new int[windowSize];
+        mThreshold = threshold;
+        mMaxRate = maxRate;
+    }
+
+    public void setMode(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Checks the next sample.
+     *
+     * @return true if the sample is an artifact
+     */
+    public boolean isArtifact(long timestamp, int value) {
+        mRawCount++;
+        if (value < MIN_VALUE || value > MAX_VALUE) {
+            mRangeArtifacts++;
+            return true;
+        }
+
+        add(value);
+        if (mSize >= 3 && isOutlier(value)) {
+            mOutliers++;
+            return true;
+        }
+
+        long elapsed = timestamp - mLastAcceptedTime;
+        if (mLastAcceptedTime != Long.MIN_VALUE && elapsed < MAX_RATE_GAP
+                && Math.abs(value - mLastAcceptedValue) * 1000L > mMaxRate * Math.max(1000, elapsed)) {
+            mRateArtifacts++;
+            return true;
+        }
+
+        mLastAcceptedTime = timestamp;
+        mLastAcceptedValue = value;
+        return false;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+        mLastAcceptedTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a value to the window, replacing the oldest one if it is full.
+     */
+    private void add(int value) {
+        int position;
+        if (mSize == mWindow.length) {
+            int oldest = mWindow[mHead];
+            mWindow[mHead] = value;
+            mHead = (mHead + 1) % mWindow.length;
+            position = indexOf(oldest);
+            // move the gap left by the removed value towards the new value's place
+            while (position > 0 && mSorted[position - 1] > value) {
+                mSorted[position] = mSorted[position - 1];
+                position--;
+            }
+            while (position < mSize - 1 && mSorted[position + 1] < value) {
+                mSorted[position] = mSorted[position + 1];
+                position++;
+            }
+        } else {
+            mWindow[(mHead + mSize) % mWindow.length] = value;
+            position = mSize++;
+            while (position > 0 && mSorted[position - 1] > value) {
+                mSorted[position] = mSorted[position - 1];
+                position--;
+            }
+        }
+        mSorted[position] = value;
+    }
+
+    private int indexOf(int value) {
+        for (int i = 0; i < mSize; i++) {
+            if (mSorted[i] == value) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Value missing from sorted window: " + value);
+    }
+
+    private boolean isOutlier(int value) {
+        double median = median();
+        // median of the absolute deviations, merging both halves outwards from the median
+        int left = (mSize - 1) / 2;
+        int right = left + 1;
+        double previous = 0;
+        double current = 0;
+        for (int i = 0; i <= mSize / 2; i++) {
+            previous = current;
+            double leftDeviation = left >= 0 ? median - mSorted[left] : Double.MAX_VALUE;
+            double rightDeviation = right < mSize ? mSorted[right] - median : Double.MAX_VALUE;
+            if (leftDeviation <= rightDeviation) {
+                current = leftDeviation;
+                left--;
+            } else {
+                current = rightDeviation;
+                right++;
+            }
+        }
+        double mad = mSize % 2 == 1 ? current : (previous + current) / 2;
+        double deviation = Math.abs(value - median);
+        return deviation > MIN_DEVIATION && deviation > mThreshold * MAD_SCALE * mad;
+    }
+
+    private double median() {
+        int middle = mSize / 2;
+        return mSize % 2 == 1 ? mSorted[middle] : (mSorted[middle - 1] + mSorted[middle]) / 2.0;
+    }
+
+    /**
+     * Returns the number of samples checked.
+     */
+    public long getRawCount() {
+        return mRawCount;
+    }
+
+    /**
+     * Returns the number of samples that passed the filter.
+     */
+    public long getAcceptedCount() {
+        return mRawCount - getArtifactCount();
+    }
+
+    public long getArtifactCount() {
+        return mRangeArtifacts + mRateArtifacts + mOutliers;
+    }
+
+    public long getRangeArtifactCount() {
+        return mRangeArtifacts;
+    }
+
+    public long getRateArtifactCount() {
+        return mRateArtifacts;
+    }
+
+    public long getOutlierCount() {
+        return mOutliers;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.miband.Processing;
+
+/**
+ * Heart rate variability over a sliding window of RR intervals.
+ * <p/>
+ * RMSSD, SDNN and pNN50 are kept as running integer sums of the intervals in the window, so
+ * adding an interval costs O(1) (amortized over the intervals falling out of the window) and
+ * nothing is allocated. Intervals are in 1/1024 s as sent by the sensor; intervals outside
+ * 30-240 bpm are treated as artifacts and break the chain of successive differences.
+ * <p/>
+ * All methods are synchronized, the calculator is fed on a sample bus thread and read by
+ * the upload thread. Hold the calculator's lock to read several values consistently.
+ */
+public class HrvCalculator {
+    private static final int MIN_INTERVAL = 256; // 250ms, 240 bpm
+    private static final int MAX_INTERVAL = 2048; // 2s, 30 bpm
+    // successive differences above 50ms count for pNN50
+    private static final long NN50_THRESHOLD = 50 * 1024;
+    private static final int NO_DIFFERENCE = Integer.MIN_VALUE;
+
+    private final int[] mIntervals;
+    // difference of an interval to its predecessor, NO_DIFFERENCE for the oldest interval or after a gap
+    private final int[] mDifferences;
+    private final int mMask;
+    private final long mWindow;
+    private int mHead;
+    private int mSize;
+    private boolean mGap = true;
+
+    private long mSum;
+    private long mSumOfSquares;
+    private int mDifferenceCount;
+    private long mDifferenceSquares;
+    private int mNn50Count;
+    private long mRejected;
+
+    /**
+     * @param windowMillis length of the sliding window, e.g. 30 s to 5 min
+     */
+    public HrvCalculator(long windowMillis) {
+        mWindow = windowMillis * 1024 / 1000;
+        int capacity = (int) (mWindow / MIN_INTERVAL) + 2;
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mIntervals = new int[size];
+        mDifferences = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds an RR interval in 1/1024 s.
+     */
+    public synchronized void addInterval(int interval) {
+        if (interval < MIN_INTERVAL || interval > MAX_INTERVAL) {
+            mRejected++;
+            mGap = true;
+            return;
+        }
+        int difference = NO_DIFFERENCE;
+        if (!mGap && mSize > 0) {
+            difference = interval - mIntervals[(mHead + mSize - 1) & mMask];
+        }
+        if (mSize == mIntervals.length) {
+            removeOldest();
+        }
+
+        int index = (mHead + mSize) & mMask;
+        mIntervals[index] = interval;
+        mDifferences[index] = difference;
+        mSize++;
+        mSum += interval;
+        mSumOfSquares += (long) interval * interval;
+        if (difference != NO_DIFFERENCE) {
+            addDifference(difference, 1);
+        }
+        mGap = false;
+
+        while (mSize > 1 && mSum - mIntervals[mHead] >= mWindow) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Marks a gap in the intervals, e.g. lost sensor contact. The next interval is not
+     * compared to the previous one.
+     */
+    public synchronized void addGap() {
+        mGap = true;
+    }
+
+    public synchronized void reset() {
+        mHead = 0;
+        mSize = 0;
+        mGap = true;
+        mSum = 0;
+        mSumOfSquares = 0;
+        mDifferenceCount = 0;
+        mDifferenceSquares = 0;
+        mNn50Count = 0;
+    }
+
+    private void removeOldest() {
+        int interval = mIntervals[mHead];
+        mSum -= interval;
+        mSumOfSquares -= (long) interval * interval;
+        mHead = (mHead + 1) & mMask;
+        mSize--;
+        // the new oldest interval loses its predecessor
+        if (mSize > 0 && mDifferences[mHead] != NO_DIFFERENCE) {
+            addDifference(mDifferences[mHead], -1);
+            mDifferences[mHead] = NO_DIFFERENCE;
+        }
+    }
+
+    private void addDifference(int difference, int sign) {
+        mDifferenceCount += sign;
+        mDifferenceSquares += sign * (long) difference * difference;
+        if (Math.abs(difference) * 1000L > NN50_THRESHOLD) {
+            mNn50Count += sign;
+        }
+    }
+
+    /**
+     * Returns true once there are enough intervals for all values to be meaningful.
+     */
+    public synchronized boolean isReady() {
+        return mSize >= 2 && mDifferenceCount > 0;
+    }
+
+    public synchronized int getIntervalCount() {
+        return mSize;
+    }
+
+    /**
+     * Returns the root mean square of successive differences in milliseconds.
+     */
+    public synchronized double getRmssd() {
+        if (mDifferenceCount == 0) {
+            return 0;
+        }
+        return Math.sqrt((double) mDifferenceSquares / mDifferenceCount) * 1000 / 1024;
+    }
+
+    /**
+     * Returns the standard deviation of the intervals in milliseconds.
+     */
+    public synchronized double getSdnn() {
+        if (mSize < 2) {
+            return 0;
+        }
+        // exact in integers: n * sum(x^2) - sum(x)^2 = n * (n - 1) * variance
+        long scaledVariance = mSize * mSumOfSquares - mSum * mSum;
+        return Math.sqrt((double) scaledVariance / ((long) mSize * (mSize - 1))) * 1000 / 1024;
+    }
+
+    /**
+     * Returns the percentage of successive differences above 50 ms.
+     */
+    public synchronized double getPnn50() {
+        if (mDifferenceCount == 0) {
+            return 0;
+        }
+        return 100.0 * mNn50Count / mDifferenceCount;
+    }
+
+    /**
+     * Returns the number of intervals rejected as artifacts.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.miband.Processing;
+
+/**
+ * Rolls heart rate samples up into tumbling windows of a second or a minute.
+ * <p/>
+ * For every window that received samples the sink gets one aggregate with the count, sum,
+ * minimum, maximum and last value, stamped with the start of the window. A window is emitted
+ * as soon as a sample of a later window arrives, or on {@link #flush()}. With
+ * {@link Resolution#NONE} every sample is passed through as an aggregate of one.
+ * <p/>
+ * Samples flagged as artifacts are passed through on their own instead of being mixed into
+ * a window.
+ */
+public class PulseAggregator {
+
+    public enum Resolution {
+        NONE(0),
+        SECOND(1000),
+        MINUTE(60 * 1000);
+
+        private final long mMillis;
+
+        Resolution(long millis) {
+            mMillis = millis;
+        }
+
+        public long getMillis() {
+            return mMillis;
+        }
+    }
+
+    public interface Sink {
+        void onAggregate(long timestamp, int sum, int count, int min, int max, int last, int flags);
+    }
+
+    private static final int MAX_COUNT = 0xffff;
+
+    private final Sink mSink;
+    private Resolution mResolution = Resolution.NONE;
+
+    private long mWindowStart;
+    private int mCount;
+    private int mSum;
+    private int mMin;
+    private int mMax;
+    private int mLast;
+
+    private long mSamplesIn;
+    private long mAggregatesOut;
+
+    public PulseAggregator(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Sets the window length for the following samples, the current window is emitted first.
+     */
+    public synchronized void setResolution(Resolution resolution) {
+        flush();
+        mResolution = resolution;
+    }
+
+    public synchronized Resolution getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * @param flags {@link com.example.miband.Tasks.PulseBatch} flags of the sample
+     */
+    public synchronized void add(long timestamp, int value, int flags) {
+        mSamplesIn++;
+        if (mResolution == Resolution.NONE || flags != 0) {
+            emit(timestamp, value, 1, value, value, value, flags);
+            return;
+        }
+
+        long windowStart = timestamp - floorMod(timestamp, mResolution.getMillis());
+        if (mCount > 0 && (windowStart != mWindowStart || mCount == MAX_COUNT)) {
+            flush();
+        }
+        if (mCount == 0) {
+            mWindowStart = windowStart;
+            mSum = 0;
+            mMin = Integer.MAX_VALUE;
+            mMax = Integer.MIN_VALUE;
+        }
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+        mLast = value;
+    }
+
+    /**
+     * Emits the current window, e.g. when the session ends.
+     */
+    public synchronized void flush() {
+        if (mCount > 0) {
+            emit(mWindowStart, mSum, mCount, mMin, mMax, mLast, 0);
+            mCount = 0;
+        }
+    }
+
+    private void emit(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+        mAggregatesOut++;
+        mSink.onAggregate(timestamp, sum, count, min, max, last, flags);
+    }
+
+    private static long floorMod(long x, long y) {
+        long mod = x % y;
+        return mod < 0 ? mod + y : mod;
+    }
+
+    public synchronized long getSamplesIn() {
+        return mSamplesIn;
+    }
+
+    public synchronized long getAggregatesOut() {
+        return mAggregatesOut;
+    }
+}
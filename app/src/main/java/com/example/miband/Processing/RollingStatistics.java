@@ -0,0 +1,199 @@
+package com.example.miband.Processing;
+
+/**
+ * Live statistics of the heart rate: minimum, maximum and mean over a sliding time window,
+ * and count, mean, standard deviation and percentiles of the whole session.
+ * <p/>
+ * Window minimum and maximum come from monotonic deques of sample sequence numbers, the
+ * session mean and variance are kept with Welford's method, and percentiles come from a
+ * Fenwick tree over one bin per bpm (0-255), which is exact for integer samples and takes a
+ * fixed 2 KB. Adding a sample is O(1) amortized, percentile queries are O(log 256), all other
+ * queries O(1). Nothing is allocated after construction.
+ * <p/>
+ * All methods are synchronized; the statistics are fed on a sample bus thread and may be
+ * queried from any thread.
+ */
+public class RollingStatistics {
+    private static final int BINS = 256;
+
+    private final long mWindow;
+
+    // samples inside the window, indexed by sequence number
+    private final long[] mTimestamps;
+    private final short[] mValues;
+    private final int mMask;
+    private long mOldest;
+    private long mNext;
+    private long mWindowSum;
+
+    // sequence numbers with increasing values (minimum at the head) and decreasing values (maximum at the head)
+    private final long[] mMinDeque;
+    private int mMinHead;
+    private int mMinSize;
+    private final long[] mMaxDeque;
+    private int mMaxHead;
+    private int mMaxSize;
+
+    private long mCount;
+    private double mMean;
+    private double mM2;
+    private int mSessionMin;
+    private int mSessionMax;
+    // 1-based Fenwick tree, bin i + 1 counts samples with value i
+    private final long[] mTree = new long[BINS + 1];
+
+    /**
+     * @param windowMillis length of the sliding window, relative to the newest sample
+     * @param capacity     maximum number of samples in the window, older samples are evicted early
+     */
+    public RollingStatistics(long windowMillis, int capacity) {
+        mWindow = windowMillis;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mTimestamps = new long[size];
+        mValues = new short[size];
+        mMask = size - 1;
+        mMinDeque = new long[size];
+        mMaxDeque = new long[size];
+        reset();
+    }
+
+    public synchronized void reset() {
+        mOldest = 0;
+        mNext = 0;
+        mWindowSum = 0;
+        mMinHead = 0;
+        mMinSize = 0;
+        mMaxHead = 0;
+        mMaxSize = 0;
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mSessionMin = Integer.MAX_VALUE;
+        mSessionMax = Integer.MIN_VALUE;
+        for (int i = 0; i < mTree.length; i++) {
+            mTree[i] = 0;
+        }
+    }
+
+    public synchronized void add(long timestamp, int value) {
+        value = Math.max(0, Math.min(BINS - 1, value));
+
+        if (mNext - mOldest == mTimestamps.length) {
+            removeOldest();
+        }
+        while (mOldest < mNext && timestamp - mTimestamps[(int) (mOldest & mMask)] >= mWindow) {
+            removeOldest();
+        }
+
+        long sequence = mNext++;
+        int index = (int) (sequence & mMask);
+        mTimestamps[index] = timestamp;
+        mValues[index] = (short) value;
+        mWindowSum += value;
+
+        while (mMinSize > 0 && valueAt(mMinDeque[(mMinHead + mMinSize - 1) & mMask]) >= value) {
+            mMinSize--;
+        }
+        mMinDeque[(mMinHead + mMinSize++) & mMask] = sequence;
+        while (mMaxSize > 0 && valueAt(mMaxDeque[(mMaxHead + mMaxSize - 1) & mMask]) <= value) {
+            mMaxSize--;
+        }
+        mMaxDeque[(mMaxHead + mMaxSize++) & mMask] = sequence;
+
+        mCount++;
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+        mSessionMin = Math.min(mSessionMin, value);
+        mSessionMax = Math.max(mSessionMax, value);
+        for (int i = value + 1; i <= BINS; i += i & -i) {
+            mTree[i]++;
+        }
+    }
+
+    private void removeOldest() {
+        long sequence = mOldest++;
+        mWindowSum -= valueAt(sequence);
+        if (mMinSize > 0 && mMinDeque[mMinHead] == sequence) {
+            mMinHead = (mMinHead + 1) & mMask;
+            mMinSize--;
+        }
+        if (mMaxSize > 0 && mMaxDeque[mMaxHead] == sequence) {
+            mMaxHead = (mMaxHead + 1) & mMask;
+            mMaxSize--;
+        }
+    }
+
+    private int valueAt(long sequence) {
+        return mValues[(int) (sequence & mMask)];
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     */
+    public synchronized int getWindowCount() {
+        return (int) (mNext - mOldest);
+    }
+
+    /**
+     * Returns the minimum of the window, or 0 if there are no samples.
+     */
+    public synchronized int getWindowMin() {
+        return mMinSize > 0 ? valueAt(mMinDeque[mMinHead]) : 0;
+    }
+
+    /**
+     * Returns the maximum of the window, or 0 if there are no samples.
+     */
+    public synchronized int getWindowMax() {
+        return mMaxSize > 0 ? valueAt(mMaxDeque[mMaxHead]) : 0;
+    }
+
+    public synchronized double getWindowMean() {
+        long count = mNext - mOldest;
+        return count > 0 ? (double) mWindowSum / count : 0;
+    }
+
+    /**
+     * Returns the number of samples of the session.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized int getMin() {
+        return mCount > 0 ? mSessionMin : 0;
+    }
+
+    public synchronized int getMax() {
+        return mCount > 0 ? mSessionMax : 0;
+    }
+
+    public synchronized double getMean() {
+        return mMean;
+    }
+
+    public synchronized double getStandardDeviation() {
+        return mCount > 1 ? Math.sqrt(mM2 / (mCount - 1)) : 0;
+    }
+
+    /**
+     * Returns the given percentile of the session (nearest rank), or 0 if there are no samples.
+     */
+    public synchronized int getPercentile(int percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (mCount * Math.max(0, Math.min(100, percentile)) + 99) / 100);
+        // find the first bin whose prefix count reaches the rank
+        int position = 0;
+        for (int step = BINS; step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= BINS && mTree[next] < rank) {
+                position = next;
+                rank -= mTree[next];
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.miband.Tasks;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.pusher.client.Pusher;
+import com.pusher.client.PusherOptions;
+import com.pusher.client.channel.PrivateChannel;
+import com.pusher.client.channel.PrivateChannelEventListener;
+import com.pusher.client.connection.ConnectionEventListener;
+import com.pusher.client.connection.ConnectionState;
+import com.pusher.client.connection.ConnectionStateChange;
+import com.pusher.client.util.HttpAuthorizer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes pulse samples to live viewers over a single Pusher connection, as client events
+ * on the private channel {@code private-simulation-<id>}.
+ * <p/>
+ * Samples arriving within {@link #BATCH_WINDOW} milliseconds of each other are sent as one
+ * event. This is a best effort stream next to the {@link PulseUploader}: samples that arrive
+ * while the channel is not subscribed are dropped.
+ */
+public class LivePulsePublisher {
+    public static String TAG = "MiBand: LivePulsePublisher";
+
+    public static final String EVENT_PULSE = "client-pulse";
+    public static final String EVENT_ALERT = "client-alert";
+
+    private static final long BATCH_WINDOW = 5; // 5ms
+    private static final int MAX_BATCH_SIZE = 32;
+
+    private final Object mLock = new Object();
+    private final Gson mGson = new Gson();
+    private final Pusher mPusher;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final long[] mTimestamps = new long[MAX_BATCH_SIZE];
+    private final int[] mValues = new int[MAX_BATCH_SIZE];
+    private int mPending;
+    private boolean mFlushScheduled;
+
+    private String mChannelName;
+    private PrivateChannel mChannel;
+    private volatile boolean mSubscribed;
+    private boolean mConnected;
+
+    // only written on the executor
+    private volatile long mEventsSent;
+    private volatile long mSamplesSent;
+    // by the publishing thread as well
+    private final AtomicLong mSamplesDropped = new AtomicLong();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param appKey       Pusher application key
+     * @param host         websocket host, or null to use the Pusher service
+     * @param port         websocket port, used together with host
+     * @param authEndpoint url of the server script authorizing private channels
+     */
+    public LivePulsePublisher(String appKey, String host, int port, String authEndpoint) {
+        PusherOptions options = new PusherOptions();
+        options.setAuthorizer(new HttpAuthorizer(authEndpoint));
+        if (host != null && !host.isEmpty()) {
+            // e.g. a local stand-in server for measurements
+            options.setHost(host);
+            options.setWsPort(port);
+            options.setEncrypted(false);
+        }
+        mPusher = new Pusher(appKey, options);
+        mPusher.getConnection().bind(ConnectionState.ALL, new ConnectionEventListener() {
+            @Override
+            public void onConnectionStateChange(ConnectionStateChange change) {
+                Log.d(LivePulsePublisher.TAG, "Connection state: " + change.getPreviousState() + " -> " + change.getCurrentState());
+            }
+
+            @Override
+            public void onError(String message, String code, Exception e) {
+                Log.d(LivePulsePublisher.TAG, "Connection error: " + message + " (" + code + ")", e);
+            }
+        });
+    }
+
+    /**
+     * Subscribes to the channel of the given simulation. The connection is opened on the first
+     * call and kept when the simulation changes.
+     */
+    public void start(String simulationId) {
+        final String channelName = "private-simulation-" + simulationId;
+        synchronized (mLock) {
+            if (channelName.equals(mChannelName)) {
+                return;
+            }
+            if (mChannelName != null) {
+                mPusher.unsubscribe(mChannelName);
+            }
+            mChannelName = channelName;
+            mSubscribed = false;
+            if (!mConnected) {
+                mConnected = true;
+                mPusher.connect();
+            }
+        }
+
+        PrivateChannel channel = mPusher.subscribePrivate(channelName, new PrivateChannelEventListener() {
+            @Override
+            public void onAuthenticationFailure(String message, Exception e) {
+                Log.d(LivePulsePublisher.TAG, "Channel authentication failed: " + message, e);
+            }
+
+            @Override
+            public void onSubscriptionSucceeded(String subscribedChannel) {
+                onSubscribed(subscribedChannel);
+            }
+
+            @Override
+            public void onEvent(String channelName, String eventName, String data) {
+            }
+        });
+        synchronized (mLock) {
+            if (channelName.equals(mChannelName)) {
+                mChannel = channel;
+            }
+        }
+    }
+
+    /**
+     * Called on the Pusher thread, the answer may still come for the channel of the previous
+     * simulation after the next one was started.
+     */
+    void onSubscribed(String channelName) {
+        Log.d(LivePulsePublisher.TAG, "Subscribed to " + channelName);
+        synchronized (mLock) {
+            if (channelName.equals(mChannelName)) {
+                mSubscribed = true;
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            if (mChannelName != null) {
+                mPusher.unsubscribe(mChannelName);
+                mChannelName = null;
+            }
+            mSubscribed = false;
+            mPending = 0;
+            mConnected = false;
+        }
+        mPusher.disconnect();
+    }
+
+    public void close() {
+        stop();
+        mExecutor.shutdownNow();
+    }
+
+    public void publish(long timestamp, int value) {
+        synchronized (mLock) {
+            if (!mSubscribed) {
+                mSamplesDropped.incrementAndGet();
+                return;
+            }
+            if (mPending == MAX_BATCH_SIZE) {
+                // the executor fell behind, send the full batch right away and start a new one
+                final PulseEvent event = takeBatch();
+                final PrivateChannel channel = mChannel;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(channel, event);
+                    }
+                });
+            }
+            mTimestamps[mPending] = timestamp;
+            mValues[mPending] = value;
+            mPending++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.schedule(mFlush, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends an alert right away, without waiting for the next batch of samples.
+     */
+    public void publishAlert(String rule, long timestamp, int value, boolean raised) {
+        if (!mSubscribed) {
+            return;
+        }
+        final AlertEvent event = new AlertEvent(rule, timestamp, value, raised);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PrivateChannel channel;
+                synchronized (mLock) {
+                    channel = mChannel;
+                }
+                event.sent = System.currentTimeMillis();
+                try {
+                    channel.trigger(EVENT_ALERT, mGson.toJson(event));
+                } catch (IllegalStateException e) {
+                    Log.d(LivePulsePublisher.TAG, "Unable to publish alert: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void flush() {
+        PulseEvent event;
+        PrivateChannel channel;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            event = takeBatch();
+            channel = mChannel;
+        }
+        if (event != null) {
+            send(channel, event);
+        }
+    }
+
+    /**
+     * Copies the pending samples out, so that new ones can be added while they are sent. Callers
+     * hold mLock.
+     *
+     * @return the event, or null if there is nothing to send
+     */
+    private PulseEvent takeBatch() {
+        if (mPending == 0 || !mSubscribed) {
+            mPending = 0;
+            return null;
+        }
+        PulseEvent event = new PulseEvent(mPending);
+        System.arraycopy(mTimestamps, 0, event.timestamps, 0, mPending);
+        System.arraycopy(mValues, 0, event.values, 0, mPending);
+        mPending = 0;
+        return event;
+    }
+
+    private void send(PrivateChannel channel, PulseEvent event) {
+        event.sent = System.currentTimeMillis();
+        try {
+            channel.trigger(EVENT_PULSE, mGson.toJson(event));
+            mEventsSent++;
+            mSamplesSent += event.values.length;
+        } catch (IllegalStateException e) {
+            // not connected or not subscribed (anymore)
+            Log.d(LivePulsePublisher.TAG, "Unable to publish pulse: " + e.getMessage());
+            mSamplesDropped.addAndGet(event.values.length);
+        }
+    }
+
+    public boolean isSubscribed() {
+        return mSubscribed;
+    }
+
+    public long getEventsSent() {
+        return mEventsSent;
+    }
+
+    public long getSamplesSent() {
+        return mSamplesSent;
+    }
+
+    public long getSamplesDropped() {
+        return mSamplesDropped.get();
+    }
+
+    /**
+     * Payload of a {@link #EVENT_PULSE} event. {@code sent} lets viewers measure the delivery latency.
+     */
+    private static class PulseEvent {
+        final long[] timestamps;
+        final int[] values;
+        long sent;
+
+        PulseEvent(int size) {
+            timestamps = new long[size];
+            values = new int[size];
+        }
+    }
+
+    /**
+     * Payload of a {@link #EVENT_ALERT} event.
+     */
+    private static class AlertEvent {
+        final String rule;
+        final long timestamp;
+        final int value;
+        final boolean raised;
+        long sent;
+
+        AlertEvent(String rule, long timestamp, int value, boolean raised) {
+            this.rule = rule;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.raised = raised;
+        }
+    }
+}
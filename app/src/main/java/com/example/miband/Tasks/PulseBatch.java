@@ -0,0 +1,170 @@
+package com.example.miband.Tasks;
+
+/**
+ * Reusable holder for a batch of pulse samples read from the {@link PulseOutbox}.
+ * All samples in one batch belong to the same simulation. A sample may stand for several
+ * measurements (see {@link com.example.miband.Processing.PulseAggregator}), its value is then
+ * their mean and minimum, maximum, last value and count are kept as well. A batch can carry the heart rate
+ * variability at the time it was sent, in hundredths of a millisecond / percent.
+ */
+public class PulseBatch {
+    /**
+     * The sample is the average of several samples merged by the {@link UplinkBuffer}.
+     */
+    public static final int FLAG_COALESCED = 0x01;
+    /**
+     * The sample was flagged as a motion artifact by the {@link com.example.miband.Processing.ArtifactFilter}.
+     */
+    public static final int FLAG_ARTIFACT = 0x02;
+
+    private final long[] mTimestamps;
+    private final short[] mValues;
+    private final short[] mFlags;
+    private final short[] mMins;
+    private final short[] mMaxs;
+    private final short[] mLasts;
+    private final int[] mCounts;
+    private int mSimulationId;
+    private int mSize;
+    private boolean mHasHrv;
+    private int mRmssd;
+    private int mSdnn;
+    private int mPnn50;
+
+    public PulseBatch(int capacity) {
+        mTimestamps = new long[capacity];
+        mValues = new short[capacity];
+        mFlags = new short[capacity];
+        mMins = new short[capacity];
+        mMaxs = new short[capacity];
+        mLasts = new short[capacity];
+        mCounts = new int[capacity];
+    }
+
+    void clear(int simulationId) {
+        mSimulationId = simulationId;
+        mSize = 0;
+        mHasHrv = false;
+    }
+
+    void setHrv(int rmssd, int sdnn, int pnn50) {
+        mRmssd = rmssd;
+        mSdnn = sdnn;
+        mPnn50 = pnn50;
+        mHasHrv = true;
+    }
+
+    void clearHrv() {
+        mHasHrv = false;
+    }
+
+    void add(long timestamp, short value, short flags) {
+        add(timestamp, value, flags, value, value, value, 1);
+    }
+
+    void add(long timestamp, short value, short flags, short min, short max, short last, int count) {
+        mTimestamps[mSize] = timestamp;
+        mValues[mSize] = value;
+        mFlags[mSize] = flags;
+        mMins[mSize] = min;
+        mMaxs[mSize] = max;
+        mLasts[mSize] = last;
+        mCounts[mSize] = count;
+        mSize++;
+    }
+
+    void setAggregate(int index, int count, int min, int max, int last) {
+        mCounts[index] = count;
+        mMins[index] = (short) min;
+        mMaxs[index] = (short) max;
+        mLasts[index] = (short) last;
+    }
+
+    void setFlags(int index, int flags) {
+        mFlags[index] = (short) flags;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    public int getSimulationId() {
+        return mSimulationId;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean hasHrv() {
+        return mHasHrv;
+    }
+
+    /**
+     * Returns the RMSSD in hundredths of a millisecond.
+     */
+    public int getRmssd() {
+        return mRmssd;
+    }
+
+    /**
+     * Returns the SDNN in hundredths of a millisecond.
+     */
+    public int getSdnn() {
+        return mSdnn;
+    }
+
+    /**
+     * Returns the pNN50 in hundredths of a percent.
+     */
+    public int getPnn50() {
+        return mPnn50;
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    public int getValue(int index) {
+        return mValues[index];
+    }
+
+    public int getFlags(int index) {
+        return mFlags[index];
+    }
+
+    public int getMin(int index) {
+        return mMins[index];
+    }
+
+    public int getMax(int index) {
+        return mMaxs[index];
+    }
+
+    public int getLast(int index) {
+        return mLasts[index];
+    }
+
+    /**
+     * Returns the number of measurements the sample stands for.
+     */
+    public int getCount(int index) {
+        return mCounts[index];
+    }
+
+    /**
+     * Returns true if any sample stands for more than one measurement.
+     */
+    public boolean isAggregated() {
+        for (int i = 0; i < mSize; i++) {
+            if (mCounts[i] != 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
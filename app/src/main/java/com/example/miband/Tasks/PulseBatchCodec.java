@@ -0,0 +1,179 @@
+package com.example.miband.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of a {@link PulseBatch}, sent with {@link #CONTENT_TYPE}.
+ * <p/>
+ * Layout:
+ * <pre>
+ * 'M' 'B' version(1)
+ * varint simulation id
+ * varint sample count
+ * varint timestamp of the first sample (ms since epoch)
+ * per sample: zigzag varint delta to the previous timestamp (ms), 1 byte bpm (0-255)
+ * optional: 'H' varint rmssd, varint sdnn (1/100 ms), varint pnn50 (1/100 %)
+ * optional: 'A' varint count, per artifact: varint index of the sample
+ * optional: 'G' per sample: varint count, 1 byte min, 1 byte max, 1 byte last (aggregates, bpm is the mean)
+ * </pre>
+ * At one sample per second a sample takes 3 bytes instead of roughly 70 for the form encoding.
+ */
+public class PulseBatchCodec {
+    public static final String CONTENT_TYPE = "application/x-miband-pulse";
+
+    private static final byte MAGIC_0 = 'M';
+    private static final byte MAGIC_1 = 'B';
+    private static final byte VERSION = 1;
+    private static final byte HRV_TAG = 'H';
+    private static final byte ARTIFACT_TAG = 'A';
+    private static final byte AGGREGATE_TAG = 'G';
+
+    private PulseBatchCodec() {
+    }
+
+    public static void encode(PulseBatch batch, ByteArrayOutputStream out) {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        writeVarint(out, batch.getSimulationId() & 0xffffffffL);
+        writeVarint(out, batch.size());
+        long previous = batch.size() > 0 ? batch.getTimestamp(0) : 0;
+        writeVarint(out, previous);
+        for (int i = 0; i < batch.size(); i++) {
+            long timestamp = batch.getTimestamp(i);
+            long delta = timestamp - previous;
+            writeVarint(out, (delta << 1) ^ (delta >> 63));
+            out.write(clamp(batch.getValue(i)));
+            previous = timestamp;
+        }
+        if (batch.hasHrv()) {
+            out.write(HRV_TAG);
+            writeVarint(out, Math.max(0, batch.getRmssd()));
+            writeVarint(out, Math.max(0, batch.getSdnn()));
+            writeVarint(out, Math.max(0, batch.getPnn50()));
+        }
+        if (batch.isAggregated()) {
+            out.write(AGGREGATE_TAG);
+            for (int i = 0; i < batch.size(); i++) {
+                writeVarint(out, batch.getCount(i));
+                out.write(clamp(batch.getMin(i)));
+                out.write(clamp(batch.getMax(i)));
+                out.write(clamp(batch.getLast(i)));
+            }
+        }
+        int artifacts = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if ((batch.getFlags(i) & PulseBatch.FLAG_ARTIFACT) != 0) {
+                artifacts++;
+            }
+        }
+        if (artifacts > 0) {
+            out.write(ARTIFACT_TAG);
+            writeVarint(out, artifacts);
+            for (int i = 0; i < batch.size(); i++) {
+                if ((batch.getFlags(i) & PulseBatch.FLAG_ARTIFACT) != 0) {
+                    writeVarint(out, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reference decoder for the server side.
+     *
+     * @throws IOException if the data is not a valid batch
+     */
+    public static PulseBatch decode(byte[] data, int offset, int length) throws IOException {
+        Reader reader = new Reader(data, offset, length);
+        if (reader.readByte() != MAGIC_0 || reader.readByte() != MAGIC_1) {
+            throw new IOException("Not a pulse batch");
+        }
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported pulse batch version: " + version);
+        }
+        int simulationId = (int) reader.readVarint();
+        long count = reader.readVarint();
+        if (count > length) {
+            throw new IOException("Invalid sample count: " + count);
+        }
+        PulseBatch batch = new PulseBatch((int) count);
+        batch.clear(simulationId);
+        long timestamp = reader.readVarint();
+        for (int i = 0; i < count; i++) {
+            long zigzag = reader.readVarint();
+            timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+            batch.add(timestamp, (short) reader.readByte(), (short) 0);
+        }
+        while (reader.hasMore()) {
+            int tag = reader.readByte();
+            if (tag == HRV_TAG) {
+                batch.setHrv((int) reader.readVarint(), (int) reader.readVarint(), (int) reader.readVarint());
+            } else if (tag == AGGREGATE_TAG) {
+                for (int i = 0; i < count; i++) {
+                    batch.setAggregate(i, (int) reader.readVarint(), reader.readByte(), reader.readByte(), reader.readByte());
+                }
+            } else if (tag == ARTIFACT_TAG) {
+                long artifacts = reader.readVarint();
+                for (long i = 0; i < artifacts; i++) {
+                    long index = reader.readVarint();
+                    if (index >= count) {
+                        throw new IOException("Invalid artifact index: " + index);
+                    }
+                    batch.setFlags((int) index, batch.getFlags((int) index) | PulseBatch.FLAG_ARTIFACT);
+                }
+            } else {
+                throw new IOException("Unexpected data after samples: " + tag);
+            }
+        }
+        return batch;
+    }
+
+    private static int clamp(int bpm) {
+        return Math.max(0, Math.min(255, bpm));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+
+        Reader(byte[] data, int offset, int length) {
+            mData = data;
+            mPosition = offset;
+            mEnd = offset + length;
+        }
+
+        boolean hasMore() {
+            return mPosition < mEnd;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mEnd) {
+                throw new IOException("Unexpected end of pulse batch");
+            }
+            return mData[mPosition++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.miband.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.TimeZone;
+
+/**
+ * Writes a {@link PulseBatch} as {@code idSimulation=..&datetime[]=..&value[]=..} straight into
+ * a byte stream, followed by {@code &rmssd=..&sdnn=..&pnn50=..} if the batch carries them and
+ * {@code &artifact[]=..} with the indices of samples flagged as artifacts. If samples of the
+ * batch are aggregates, every sample also gets {@code &min[]=..&max[]=..&last[]=..&count[]=..}
+ * and its value is the mean.
+ * <p/>
+ * Dates are formatted as {@code yyyy-MM-dd HH:mm:ss} in the default time zone without going
+ * through {@link java.text.SimpleDateFormat}; the date part is cached per day. Once the output
+ * stream has grown to the batch size, encoding does not allocate anything.
+ */
+public class PulseFormEncoder {
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private static final byte[] SIMULATION_KEY = ascii("idSimulation=");
+    private static final byte[] DATETIME_KEY = ascii("&datetime%5B%5D=");
+    private static final byte[] VALUE_KEY = ascii("&value%5B%5D=");
+    private static final byte[] MIN_KEY = ascii("&min%5B%5D=");
+    private static final byte[] MAX_KEY = ascii("&max%5B%5D=");
+    private static final byte[] LAST_KEY = ascii("&last%5B%5D=");
+    private static final byte[] COUNT_KEY = ascii("&count%5B%5D=");
+    private static final byte[] ARTIFACT_KEY = ascii("&artifact%5B%5D=");
+    private static final byte[] RMSSD_KEY = ascii("&rmssd=");
+    private static final byte[] SDNN_KEY = ascii("&sdnn=");
+    private static final byte[] PNN50_KEY = ascii("&pnn50=");
+    // url encoded ':' between hours, minutes and seconds
+    private static final byte[] TIME_SEPARATOR = ascii("%3A");
+
+    private final TimeZone mTimeZone;
+    private final byte[] mDigits = new byte[20];
+    // yyyy-MM-dd+ of the cached day
+    private final byte[] mDate = new byte[11];
+    private long mCachedDay = Long.MIN_VALUE;
+
+    public PulseFormEncoder() {
+        this(TimeZone.getDefault());
+    }
+
+    public PulseFormEncoder(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    public void encode(PulseBatch batch, ByteArrayOutputStream out) {
+        write(out, SIMULATION_KEY);
+        writeNumber(out, batch.getSimulationId());
+        boolean aggregated = batch.isAggregated();
+        for (int i = 0; i < batch.size(); i++) {
+            write(out, DATETIME_KEY);
+            writeDateTime(out, batch.getTimestamp(i));
+            write(out, VALUE_KEY);
+            writeNumber(out, batch.getValue(i));
+            if (aggregated) {
+                write(out, MIN_KEY);
+                writeNumber(out, batch.getMin(i));
+                write(out, MAX_KEY);
+                writeNumber(out, batch.getMax(i));
+                write(out, LAST_KEY);
+                writeNumber(out, batch.getLast(i));
+                write(out, COUNT_KEY);
+                writeNumber(out, batch.getCount(i));
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if ((batch.getFlags(i) & PulseBatch.FLAG_ARTIFACT) != 0) {
+                write(out, ARTIFACT_KEY);
+                writeNumber(out, i);
+            }
+        }
+        if (batch.hasHrv()) {
+            write(out, RMSSD_KEY);
+            writeHundredths(out, batch.getRmssd());
+            write(out, SDNN_KEY);
+            writeHundredths(out, batch.getSdnn());
+            write(out, PNN50_KEY);
+            writeHundredths(out, batch.getPnn50());
+        }
+    }
+
+    /**
+     * Writes a non-negative fixed point value with two decimals, e.g. 4217 as 42.17.
+     */
+    private void writeHundredths(ByteArrayOutputStream out, int value) {
+        value = Math.max(0, value);
+        writeNumber(out, value / 100);
+        out.write('.');
+        writeTwoDigits(out, value % 100);
+    }
+
+    private void writeDateTime(ByteArrayOutputStream out, long timestamp) {
+        long local = timestamp + mTimeZone.getOffset(timestamp);
+        long day = floorDiv(local, MILLIS_PER_DAY);
+        if (day != mCachedDay) {
+            cacheDate(day);
+        }
+        out.write(mDate, 0, mDate.length);
+
+        int secondOfDay = (int) ((local - day * MILLIS_PER_DAY) / 1000);
+        writeTwoDigits(out, secondOfDay / 3600);
+        write(out, TIME_SEPARATOR);
+        writeTwoDigits(out, secondOfDay / 60 % 60);
+        write(out, TIME_SEPARATOR);
+        writeTwoDigits(out, secondOfDay % 60);
+    }
+
+    /**
+     * Converts days since 1970-01-01 to year, month and day of month (proleptic Gregorian).
+     */
+    private void cacheDate(long day) {
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        mDate[0] = (byte) ('0' + year / 1000 % 10);
+        mDate[1] = (byte) ('0' + year / 100 % 10);
+        mDate[2] = (byte) ('0' + year / 10 % 10);
+        mDate[3] = (byte) ('0' + year % 10);
+        mDate[4] = '-';
+        mDate[5] = (byte) ('0' + month / 10);
+        mDate[6] = (byte) ('0' + month % 10);
+        mDate[7] = '-';
+        mDate[8] = (byte) ('0' + dayOfMonth / 10);
+        mDate[9] = (byte) ('0' + dayOfMonth % 10);
+        mDate[10] = '+'; // url encoded space
+        mCachedDay = day;
+    }
+
+    private static void writeTwoDigits(ByteArrayOutputStream out, int value) {
+        out.write('0' + value / 10);
+        out.write('0' + value % 10);
+    }
+
+    private void writeNumber(ByteArrayOutputStream out, long value) {
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        int position = mDigits.length;
+        do {
+            mDigits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(mDigits, position, mDigits.length - position);
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            result--;
+        }
+        return result;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] result = new byte[value.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) value.charAt(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.miband.Tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only on-disk queue of pulse samples waiting to be uploaded.
+ * <p/>
+ * Samples are stored as fixed size records in {@code <name>.dat}, the number of records
+ * acknowledged by the server is kept in {@code <name>.ack}. Both files survive app restarts,
+ * so a sample is only removed once the server confirmed it. When everything has been
+ * acknowledged the files are truncated again.
+ * <p/>
+ * Not thread safe, callers are expected to synchronize.
+ */
+public class PulseOutbox {
+    public static String TAG = "MiBand: PulseOutbox";
+
+    private static final int MAGIC = 0x4D425058; // "MBPX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // timestamp (8), simulation id (4), value (2), flags (2), min (2), max (2), last (2), count (2)
+    static final int RECORD_SIZE = 24;
+
+    private final FileChannel mData;
+    private final FileChannel mAck;
+
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer mAckBuffer = ByteBuffer.allocate(8);
+
+    private long mWritten;
+    private long mAcked;
+
+    public PulseOutbox(File directory, String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create outbox directory: " + directory);
+        }
+        mData = new RandomAccessFile(new File(directory, name + ".dat"), "rw").getChannel();
+        mAck = new RandomAccessFile(new File(directory, name + ".ack"), "rw").getChannel();
+
+        if (mData.size() < HEADER_SIZE) {
+            writeHeader();
+        } else {
+            readHeader();
+        }
+
+        long records = (mData.size() - HEADER_SIZE) / RECORD_SIZE;
+        if (mData.size() != HEADER_SIZE + records * RECORD_SIZE) {
+            // the app died while appending, drop the partial record
+            mData.truncate(HEADER_SIZE + records * RECORD_SIZE);
+        }
+        mWritten = records;
+        mAcked = readAck();
+        if (mAcked > mWritten) {
+            // the app died while compacting, everything was acknowledged already
+            mAcked = 0;
+            writeAck();
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, int simulationId, long timestamp, int value, int flags,
+                                  int min, int max, int last, int count) {
+        buffer.putLong(timestamp);
+        buffer.putInt(simulationId);
+        buffer.putShort((short) value);
+        buffer.putShort((short) flags);
+        buffer.putShort((short) min);
+        buffer.putShort((short) max);
+        buffer.putShort((short) last);
+        buffer.putShort((short) Math.min(count, 0xffff));
+    }
+
+    private void writeHeader() throws IOException {
+        mHeaderBuffer.clear();
+        mHeaderBuffer.putInt(MAGIC);
+        mHeaderBuffer.putInt(VERSION);
+        mHeaderBuffer.flip();
+        mData.truncate(0);
+        mData.write(mHeaderBuffer, 0);
+        mData.force(false);
+    }
+
+    private void readHeader() throws IOException {
+        mHeaderBuffer.clear();
+        mData.read(mHeaderBuffer, 0);
+        mHeaderBuffer.flip();
+        int magic = mHeaderBuffer.getInt();
+        int version = mHeaderBuffer.getInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Unsupported outbox format: " + Integer.toHexString(magic) + " v" + version);
+        }
+    }
+
+    private long readAck() throws IOException {
+        if (mAck.size() < 8) {
+            return 0;
+        }
+        mAckBuffer.clear();
+        mAck.read(mAckBuffer, 0);
+        mAckBuffer.flip();
+        return mAckBuffer.getLong();
+    }
+
+    private void writeAck() throws IOException {
+        mAckBuffer.clear();
+        mAckBuffer.putLong(mAcked);
+        mAckBuffer.flip();
+        mAck.write(mAckBuffer, 0);
+        mAck.force(false);
+    }
+
+    public void append(int simulationId, long timestamp, int value, int flags) throws IOException {
+        append(simulationId, timestamp, value, flags, value, value, value, 1);
+    }
+
+    /**
+     * Appends a sample standing for count measurements, value being their mean.
+     */
+    public void append(int simulationId, long timestamp, int value, int flags,
+                       int min, int max, int last, int count) throws IOException {
+        mRecordBuffer.clear();
+        putRecord(mRecordBuffer, simulationId, timestamp, value, flags, min, max, last, count);
+        mRecordBuffer.flip();
+        mData.write(mRecordBuffer, HEADER_SIZE + mWritten * RECORD_SIZE);
+        mWritten++;
+    }
+
+    /**
+     * Makes sure all appended samples reached the disk.
+     */
+    public void sync() throws IOException {
+        mData.force(false);
+    }
+
+    /**
+     * Fills the batch with the oldest unacknowledged samples. A batch never mixes
+     * samples of different simulations.
+     *
+     * @return the number of samples read
+     */
+    public int peek(PulseBatch batch, int maxSamples) throws IOException {
+        long available = Math.min(getPendingCount(), Math.min(maxSamples, batch.getCapacity()));
+        long position = HEADER_SIZE + mAcked * RECORD_SIZE;
+        for (int i = 0; i < available; i++) {
+            mRecordBuffer.clear();
+            mData.read(mRecordBuffer, position);
+            mRecordBuffer.flip();
+            long timestamp = mRecordBuffer.getLong();
+            int simulationId = mRecordBuffer.getInt();
+            short value = mRecordBuffer.getShort();
+            short flags = mRecordBuffer.getShort();
+            short min = mRecordBuffer.getShort();
+            short max = mRecordBuffer.getShort();
+            short last = mRecordBuffer.getShort();
+            int count = mRecordBuffer.getShort() & 0xffff;
+            if (i == 0) {
+                batch.clear(simulationId);
+            } else if (simulationId != batch.getSimulationId()) {
+                break;
+            }
+            batch.add(timestamp, value, flags, min, max, last, count);
+            position += RECORD_SIZE;
+        }
+        if (available == 0) {
+            batch.clear(0);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Marks the given number of the oldest pending samples as delivered.
+     */
+    public void acknowledge(int count) throws IOException {
+        mAcked = Math.min(mWritten, mAcked + count);
+        if (mAcked == mWritten) {
+            mData.truncate(HEADER_SIZE);
+            mData.force(false);
+            mWritten = 0;
+            mAcked = 0;
+        }
+        writeAck();
+    }
+
+    public long getPendingCount() {
+        return mWritten - mAcked;
+    }
+
+    public void close() throws IOException {
+        try {
+            mData.close();
+        } finally {
+            mAck.close();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.example.miband.Tasks;
+
+import android.util.Log;
+
+import com.example.miband.Processing.HrvCalculator;
+import com.example.miband.Utils.LatencyRecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Uploads pulse samples to the server in batches.
+ * <p/>
+ * Samples are collected in a bounded {@link UplinkBuffer} and moved to a {@link PulseOutbox}
+ * by a single background thread, which also drains the outbox and posts batches bounded by {@link #MAX_BATCH_SIZE} samples or {@link #MAX_BATCH_DELAY}
+ * milliseconds. A batch is only acknowledged in the outbox after the server answered with
+ * HTTP 200, failed batches are retried with an increasing delay. The outbox holds at most
+ * {@link #MAX_PENDING} samples, once it is full the buffer's overflow policy applies.
+ * <p/>
+ * A batch is posted as {@code idSimulation=..&datetime[]=..&value[]=..}. The connection is
+ * kept alive between batches and warmed up as soon as the uploader is started.
+ * Optionally batches are sent in the binary {@link PulseBatchCodec} format. If a
+ * {@link HrvCalculator} is set, each batch carries its latest values.
+ */
+public class PulseUploader {
+    public static String TAG = "MiBand: PulseUploader";
+
+    private static final int MAX_BATCH_SIZE = 50;
+    private static final long MAX_BATCH_DELAY = 5000; // 5s
+    private static final int BUFFER_CAPACITY = 256;
+    private static final int MAX_PENDING = 24 * 60 * 60; // a day of samples at 1 Hz
+    private static final long MIN_RETRY_DELAY = 1000; // 1s
+    private static final long MAX_RETRY_DELAY = 60000; // 60s
+    private static final int TIMEOUT = 20000; // 20s
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private final Object mLock = new Object();
+    private final PulseOutbox mOutbox;
+    private final UplinkBuffer mBuffer = new UplinkBuffer(BUFFER_CAPACITY);
+    private final PulseBatch mBatch = new PulseBatch(MAX_BATCH_SIZE);
+    private final PulseFormEncoder mFormEncoder = new PulseFormEncoder();
+    private final byte[] mDrainBuffer = new byte[512];
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream(MAX_BATCH_SIZE * 64);
+    private final LatencyRecorder mRequestLatency = new LatencyRecorder(512);
+
+    private volatile HrvCalculator mHrvCalculator;
+    private volatile URL mUrl;
+    private volatile boolean mWarmUpRequested;
+    private volatile boolean mBinaryFormat;
+    private volatile int mSimulationId;
+    private volatile boolean mRunning;
+    private boolean mClosed;
+    private boolean mLoopActive;
+    private long mOldestPendingTime;
+    private long mRetryAt;
+    private Thread mUploadThread;
+
+    private volatile long mQueueDepth;
+    private volatile long mBatchesSent;
+    private volatile long mSamplesSent;
+    private volatile long mFailedBatches;
+    private volatile long mLastBatchDuration;
+    private volatile int mLastBatchSize;
+
+    private final UplinkBuffer.Sink mOutboxSink = new UplinkBuffer.Sink() {
+        @Override
+        public void accept(long timestamp, int value, int flags, int min, int max, int last, int count) throws IOException {
+            mOutbox.append(mSimulationId, timestamp, value, flags, min, max, last, count);
+        }
+    };
+
+    public PulseUploader(File directory) throws IOException {
+        mOutbox = new PulseOutbox(directory, "pulse-outbox");
+        mQueueDepth = mOutbox.getPendingCount();
+        Log.d(PulseUploader.TAG, "Opened outbox: " + mQueueDepth + " pending samples");
+    }
+
+    public void start(String serverUrl, String simulationId) {
+        try {
+            mUrl = new URL(serverUrl);
+            mWarmUpRequested = true;
+        } catch (MalformedURLException e) {
+            Log.d(PulseUploader.TAG, "Invalid server url: " + serverUrl);
+            mUrl = null;
+        }
+        int id;
+        try {
+            id = Integer.parseInt(simulationId);
+        } catch (NumberFormatException e) {
+            Log.d(PulseUploader.TAG, "Invalid simulation id: " + simulationId);
+            id = 0;
+        }
+
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("This uploader has been closed already.");
+            }
+            // buffered samples still belong to the previous simulation
+            drainBuffer();
+            mSimulationId = id;
+            mRetryAt = 0;
+            if (mRunning) {
+                mLock.notifyAll();
+                return;
+            }
+            if (mLoopActive) {
+                // the previous upload thread is still finishing its last batch
+                Log.d(PulseUploader.TAG, "Upload thread still active, reusing it");
+                mRunning = true;
+                mLock.notifyAll();
+                return;
+            }
+            mRunning = true;
+            mLoopActive = true;
+            // resend whatever is left over from previous sessions without waiting
+            mOldestPendingTime = mOutbox.getPendingCount() > 0 ? 0 : System.currentTimeMillis();
+            mUploadThread = new Thread("Pulse Uploader") {
+                @Override
+                public void run() {
+                    uploadLoop();
+                }
+            };
+            mUploadThread.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+        // not interrupting the thread on purpose, that would close the outbox file channels
+        mUploadThread = null;
+    }
+
+    /**
+     * Queues a sample for upload. Depending on the overflow policy this may wait for the
+     * upload thread if the buffer is full.
+     */
+    public void add(long timestamp, int value) {
+        add(timestamp, value, 0);
+    }
+
+    /**
+     * Queues a sample with {@link PulseBatch} flags, e.g. {@link PulseBatch#FLAG_ARTIFACT}.
+     */
+    public void add(long timestamp, int value, int flags) {
+        if (!mBuffer.offer(timestamp, value, flags)) {
+            Log.d(PulseUploader.TAG, "Uplink buffer full, sample dropped");
+        }
+        notifyIfBatchReady();
+    }
+
+    /**
+     * Queues a sample standing for count measurements, e.g. from a
+     * {@link com.example.miband.Processing.PulseAggregator}.
+     */
+    public void addAggregate(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+        if (!mBuffer.offer(timestamp, sum, count, min, max, last, flags)) {
+            Log.d(PulseUploader.TAG, "Uplink buffer full, aggregate dropped");
+        }
+        notifyIfBatchReady();
+    }
+
+    /**
+     * Wakes the upload thread for a full batch, and for the first sample so that the batch delay
+     * starts with it rather than when the thread wakes up by itself.
+     */
+    private void notifyIfBatchReady() {
+        int size = mBuffer.size();
+        if (size >= MAX_BATCH_SIZE || size == 1) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves buffered samples to the outbox as long as it has room. Must be called with mLock held.
+     */
+    private void drainBuffer() {
+        try {
+            long room = MAX_PENDING - mOutbox.getPendingCount();
+            if (room > 0 && mBuffer.size() > 0) {
+                if (mOutbox.getPendingCount() == 0) {
+                    mOldestPendingTime = System.currentTimeMillis();
+                }
+                mBuffer.drainTo(mOutboxSink, (int) Math.min(room, Integer.MAX_VALUE));
+            }
+        } catch (IOException e) {
+            Log.d(PulseUploader.TAG, "Unable to store pulse samples", e);
+        }
+        mQueueDepth = mOutbox.getPendingCount() + mBuffer.size();
+    }
+
+    private void uploadLoop() {
+        Log.d(PulseUploader.TAG, "Upload thread started.");
+        long retryDelay = MIN_RETRY_DELAY;
+
+        while (true) {
+            try {
+                synchronized (mLock) {
+                    drainBuffer();
+                    long waitTime = getWaitTime();
+                    while (mRunning && waitTime > 0) {
+                        mLock.wait(waitTime);
+                        drainBuffer();
+                        waitTime = getWaitTime();
+                    }
+                    if (!mRunning) {
+                        // checked under the lock, so start() either sees this thread alive or gone
+                        mLoopActive = false;
+                        if (mClosed) {
+                            closeOutbox();
+                        }
+                        break;
+                    }
+                    mOutbox.sync();
+                    mOutbox.peek(mBatch, MAX_BATCH_SIZE);
+                }
+
+                if (mWarmUpRequested) {
+                    mWarmUpRequested = false;
+                    warmUp();
+                    if (mBatch.isEmpty()) {
+                        continue;
+                    }
+                }
+
+                long start = System.currentTimeMillis();
+                boolean sent = postBatch(mBatch);
+                long duration = System.currentTimeMillis() - start;
+
+                if (sent) {
+                    synchronized (mLock) {
+                        mOutbox.acknowledge(mBatch.size());
+                        // anything still pending is a backlog, don't hold it back
+                        mOldestPendingTime = mOutbox.getPendingCount() > 0 ? 0 : System.currentTimeMillis();
+                        mQueueDepth = mOutbox.getPendingCount() + mBuffer.size();
+                    }
+                    mBatchesSent++;
+                    mSamplesSent += mBatch.size();
+                    mLastBatchDuration = duration;
+                    mLastBatchSize = mBatch.size();
+                    mRequestLatency.record(duration);
+                    retryDelay = MIN_RETRY_DELAY;
+                    Log.d(PulseUploader.TAG, "Sent batch of " + mBatch.size() + " samples in " + duration + " ms, queue depth: " + mQueueDepth + ", latency " + mRequestLatency);
+                } else {
+                    mFailedBatches++;
+                    Log.d(PulseUploader.TAG, "Batch upload failed, retrying in " + retryDelay + " ms, queue depth: " + mQueueDepth);
+                    retryDelay = backOff(retryDelay);
+                }
+            } catch (InterruptedException ignored) {
+                Log.d(PulseUploader.TAG, "Upload thread interrupted");
+            } catch (IOException e) {
+                Log.d(PulseUploader.TAG, "Outbox error: " + e.getMessage(), e);
+                retryDelay = backOff(retryDelay);
+            }
+        }
+        Log.d(PulseUploader.TAG, "Upload thread terminated.");
+    }
+
+    /**
+     * Holds back the next batch for retryDelay, the buffer keeps being drained in the meantime.
+     *
+     * @return the delay to use for the next failure
+     */
+    private long backOff(long retryDelay) {
+        synchronized (mLock) {
+            mRetryAt = System.currentTimeMillis() + retryDelay;
+        }
+        return Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+    }
+
+    private void closeOutbox() {
+        drainBuffer();
+        try {
+            mOutbox.sync();
+        } catch (IOException e) {
+            Log.d(PulseUploader.TAG, "Unable to sync outbox", e);
+        }
+        try {
+            mOutbox.close();
+        } catch (IOException e) {
+            Log.d(PulseUploader.TAG, "Unable to close outbox", e);
+        }
+    }
+
+    /**
+     * Returns how long to wait before the next batch should be sent, 0 to send it right away.
+     */
+    private long getWaitTime() {
+        long pending = mOutbox.getPendingCount();
+        if (mUrl == null) {
+            return MAX_BATCH_DELAY;
+        }
+        long now = System.currentTimeMillis();
+        if (now < mRetryAt) {
+            return Math.min(mRetryAt - now, MAX_BATCH_DELAY);
+        }
+        if (mWarmUpRequested) {
+            return 0;
+        }
+        if (pending == 0) {
+            return MAX_BATCH_DELAY;
+        }
+        if (pending >= MAX_BATCH_SIZE) {
+            return 0;
+        }
+        long age = now - mOldestPendingTime;
+        return Math.max(0, MAX_BATCH_DELAY - age);
+    }
+
+    private boolean postBatch(PulseBatch batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        attachHrv(batch);
+        HttpURLConnection conn = null;
+        try {
+            boolean binary = mBinaryFormat;
+            mBody.reset();
+            if (binary) {
+                PulseBatchCodec.encode(batch, mBody);
+            } else {
+                mFormEncoder.encode(batch, mBody);
+            }
+
+            conn = openConnection(mUrl, "POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(mBody.size());
+            conn.setRequestProperty("Content-Type", binary ? PulseBatchCodec.CONTENT_TYPE : FORM_CONTENT_TYPE);
+
+            OutputStream os = conn.getOutputStream();
+            mBody.writeTo(os);
+            os.close();
+
+            int responseCode = conn.getResponseCode();
+            drainResponse(conn, responseCode);
+            if (binary && responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                Log.d(PulseUploader.TAG, "Server does not accept " + PulseBatchCodec.CONTENT_TYPE + ", falling back to form encoding");
+                mBinaryFormat = false;
+                // the batch itself is fine, send it again right away
+                return postBatch(batch);
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(PulseUploader.TAG, "Server responded with " + responseCode);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(PulseUploader.TAG, "Unable to send batch: " + e.getMessage());
+            if (conn != null) {
+                // the socket is in an unknown state, don't let it go back to the pool
+                conn.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private void attachHrv(PulseBatch batch) {
+        HrvCalculator hrv = mHrvCalculator;
+        if (hrv == null) {
+            batch.clearHrv();
+            return;
+        }
+        synchronized (hrv) {
+            if (hrv.isReady()) {
+                batch.setHrv((int) Math.round(hrv.getRmssd() * 100),
+                        (int) Math.round(hrv.getSdnn() * 100),
+                        (int) Math.round(hrv.getPnn50() * 100));
+            } else {
+                batch.clearHrv();
+            }
+        }
+    }
+
+    /**
+     * Opens the connection to the server ahead of the first batch, so the first samples
+     * don't pay for connection setup. The request goes to the server root, as PHP runs the
+     * upload script for a HEAD request as well.
+     */
+    private void warmUp() {
+        HttpURLConnection conn = null;
+        long start = System.currentTimeMillis();
+        try {
+            conn = openConnection(new URL(mUrl, "/"), "HEAD");
+            drainResponse(conn, conn.getResponseCode());
+            Log.d(PulseUploader.TAG, "Connection to " + mUrl.getHost() + " warmed up in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.d(PulseUploader.TAG, "Unable to warm up connection: " + e.getMessage());
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(URL url, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setReadTimeout(TIMEOUT);
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setRequestMethod(method);
+        conn.setDoInput(true);
+        conn.setRequestProperty("Connection", "keep-alive");
+        return conn;
+    }
+
+    /**
+     * Reads the response to the end and closes it without calling {@link HttpURLConnection#disconnect()},
+     * which lets the underlying socket be reused by the next request.
+     */
+    private void drainResponse(HttpURLConnection conn, int responseCode) throws IOException {
+        InputStream in = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+        if (in == null) {
+            return;
+        }
+        try {
+            while (in.read(mDrainBuffer) != -1) {
+                // discard, the server does not send anything we need
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Sends batches in the compact {@link PulseBatchCodec} format instead of form encoding.
+     * If the server rejects the content type the uploader falls back to form encoding and sends
+     * the batch again, the rejection doesn't count as a failed batch.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        mBinaryFormat = binaryFormat;
+    }
+
+    public boolean isBinaryFormat() {
+        return mBinaryFormat;
+    }
+
+    /**
+     * Sends the latest heart rate variability of the given calculator with every batch,
+     * null to stop sending it.
+     */
+    public void setHrvCalculator(HrvCalculator hrvCalculator) {
+        mHrvCalculator = hrvCalculator;
+    }
+
+    /**
+     * Returns the recorded latencies of successful batch requests in milliseconds.
+     */
+    public LatencyRecorder getRequestLatency() {
+        return mRequestLatency;
+    }
+
+    /**
+     * Sets what happens to new samples when the outbox is full and the buffer in front of it
+     * has filled up as well.
+     */
+    public void setOverflowPolicy(UplinkBuffer.Policy policy) {
+        mBuffer.setPolicy(policy);
+    }
+
+    public UplinkBuffer.Policy getOverflowPolicy() {
+        return mBuffer.getPolicy();
+    }
+
+    public long getDroppedCount() {
+        return mBuffer.getDroppedCount();
+    }
+
+    public long getCoalescedCount() {
+        return mBuffer.getCoalescedCount();
+    }
+
+    public long getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public long getBatchesSent() {
+        return mBatchesSent;
+    }
+
+    public long getSamplesSent() {
+        return mSamplesSent;
+    }
+
+    public long getFailedBatches() {
+        return mFailedBatches;
+    }
+
+    /**
+     * Returns the throughput of the last successful batch in samples per second.
+     */
+    public float getLastBatchThroughput() {
+        long duration = mLastBatchDuration;
+        return duration > 0 ? mLastBatchSize * 1000f / duration : 0f;
+    }
+
+    /**
+     * Stops uploading and releases the outbox. If a batch is in flight the outbox is closed
+     * by the upload thread once the batch has been acknowledged.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            stop();
+            if (!mLoopActive) {
+                closeOutbox();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.miband.Tasks;
+
+import java.io.IOException;
+
+/**
+ * Bounded buffer between the heart rate callback and the upload thread.
+ * <p/>
+ * When the buffer is full the configured {@link Policy} decides what happens to new samples,
+ * so a slow or dead server can never make the phone run out of memory.
+ */
+public class UplinkBuffer {
+
+    public enum Policy {
+        /**
+         * The producer waits up to the block timeout for free space, then the sample is dropped.
+         */
+        BLOCK,
+        /**
+         * The oldest buffered sample is dropped to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Buffered samples are merged into per-window averages to make room, the oldest
+         * sample is only dropped if that does not free anything.
+         */
+        COALESCE,
+    }
+
+    public interface Sink {
+        /**
+         * @param value mean of the count measurements the sample stands for
+         */
+        void accept(long timestamp, int value, int flags, int min, int max, int last, int count) throws IOException;
+    }
+
+    // samples coalesced here or aggregated before never stand for more measurements than a record holds
+    private static final int MAX_COUNT = 0xffff;
+
+    private final long[] mTimestamps;
+    private final int[] mSums;
+    private final int[] mCounts;
+    private final short[] mFlags;
+    private final short[] mMins;
+    private final short[] mMaxs;
+    private final short[] mLasts;
+    private int mHead;
+    private int mSize;
+
+    private Policy mPolicy = Policy.COALESCE;
+    private long mBlockTimeout = 500;
+    private long mCoalesceWindow = 1000;
+
+    private long mDropped;
+    private long mCoalesced;
+
+    public UplinkBuffer(int capacity) {
+        mTimestamps = new long[capacity];
+        mSums = new int[capacity];
+        mCounts = new int[capacity];
+        mFlags = new short[capacity];
+        mMins = new short[capacity];
+        mMaxs = new short[capacity];
+        mLasts = new short[capacity];
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public synchronized Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public synchronized void setBlockTimeout(long blockTimeout) {
+        mBlockTimeout = blockTimeout;
+    }
+
+    public synchronized void setCoalesceWindow(long coalesceWindow) {
+        mCoalesceWindow = coalesceWindow;
+    }
+
+    /**
+     * Adds a sample, applying the overflow policy if the buffer is full.
+     *
+     * @param flags {@link PulseBatch} flags of the sample, only samples with equal flags are coalesced
+     * @return false if the sample was dropped
+     */
+    public synchronized boolean offer(long timestamp, int value, int flags) {
+        return offer(timestamp, value, 1, value, value, value, flags);
+    }
+
+    /**
+     * Adds a sample standing for count measurements with the given sum, e.g. from an aggregator.
+     *
+     * @return false if the sample was dropped
+     */
+    public synchronized boolean offer(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+        if (mSize == mTimestamps.length) {
+            switch (mPolicy) {
+                case BLOCK:
+                    if (!waitForSpace()) {
+                        mDropped++;
+                        return false;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    removeOldest();
+                    mDropped++;
+                    break;
+                case COALESCE:
+                    if (mergeIntoNewest(timestamp, sum, count, min, max, last, flags)) {
+                        return true;
+                    }
+                    if (!compact()) {
+                        removeOldest();
+                        mDropped++;
+                    }
+                    break;
+            }
+        }
+        int index = (mHead + mSize) % mTimestamps.length;
+        mTimestamps[index] = timestamp;
+        mSums[index] = sum;
+        mCounts[index] = count;
+        mFlags[index] = (short) flags;
+        mMins[index] = (short) min;
+        mMaxs[index] = (short) max;
+        mLasts[index] = (short) last;
+        mSize++;
+        return true;
+    }
+
+    private boolean waitForSpace() {
+        long deadline = System.currentTimeMillis() + mBlockTimeout;
+        long remaining = mBlockTimeout;
+        try {
+            while (mSize == mTimestamps.length && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mSize < mTimestamps.length;
+    }
+
+    private void removeOldest() {
+        mHead = (mHead + 1) % mTimestamps.length;
+        mSize--;
+    }
+
+    private boolean mergeIntoNewest(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+        int newest = (mHead + mSize - 1) % mTimestamps.length;
+        if (mSize == 0 || window(mTimestamps[newest]) != window(timestamp) || mCounts[newest] + count > MAX_COUNT
+                || (mFlags[newest] & ~PulseBatch.FLAG_COALESCED) != flags) {
+            return false;
+        }
+        mSums[newest] += sum;
+        mCounts[newest] += count;
+        mMins[newest] = (short) Math.min(mMins[newest], min);
+        mMaxs[newest] = (short) Math.max(mMaxs[newest], max);
+        mLasts[newest] = (short) last;
+        mFlags[newest] |= PulseBatch.FLAG_COALESCED;
+        mCoalesced++;
+        return true;
+    }
+
+    /**
+     * Merges neighbouring samples that fall into the same coalesce window.
+     *
+     * @return true if at least one slot was freed
+     */
+    private boolean compact() {
+        int capacity = mTimestamps.length;
+        int write = 0;
+        for (int read = 1; read < mSize; read++) {
+            int target = (mHead + write) % capacity;
+            int source = (mHead + read) % capacity;
+            if (window(mTimestamps[target]) == window(mTimestamps[source])
+                    && mCounts[target] + mCounts[source] <= MAX_COUNT
+                    && ((mFlags[target] ^ mFlags[source]) & ~PulseBatch.FLAG_COALESCED) == 0) {
+                mSums[target] += mSums[source];
+                mCounts[target] += mCounts[source];
+                mMins[target] = (short) Math.min(mMins[target], mMins[source]);
+                mMaxs[target] = (short) Math.max(mMaxs[target], mMaxs[source]);
+                mLasts[target] = mLasts[source];
+                mFlags[target] |= PulseBatch.FLAG_COALESCED;
+                mCoalesced++;
+            } else {
+                write++;
+                target = (mHead + write) % capacity;
+                mTimestamps[target] = mTimestamps[source];
+                mSums[target] = mSums[source];
+                mCounts[target] = mCounts[source];
+                mFlags[target] = mFlags[source];
+                mMins[target] = mMins[source];
+                mMaxs[target] = mMaxs[source];
+                mLasts[target] = mLasts[source];
+            }
+        }
+        int size = mSize == 0 ? 0 : write + 1;
+        boolean freed = size < mSize;
+        mSize = size;
+        return freed;
+    }
+
+    private long window(long timestamp) {
+        return timestamp / mCoalesceWindow;
+    }
+
+    /**
+     * Moves up to maxSamples of the oldest samples to the sink, samples coalesced here are passed
+     * as their average with {@link PulseBatch#FLAG_COALESCED} set.
+     *
+     * @return the number of samples moved
+     */
+    public synchronized int drainTo(Sink sink, int maxSamples) throws IOException {
+        int count = Math.min(mSize, maxSamples);
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = mHead;
+                int samples = mCounts[index];
+                sink.accept(mTimestamps[index], Math.round((float) mSums[index] / samples), mFlags[index],
+                        mMins[index], mMaxs[index], mLasts[index], samples);
+                removeOldest();
+            }
+        } finally {
+            notifyAll();
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.miband.Utils;
+
+import com.example.miband.BuildConfig;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records events of the hot paths, a notification or a write for example, into a preallocated
+ * ring as an event id, a timestamp and up to four numbers. Nothing is formatted until the ring
+ * is dumped, so recording neither allocates nor locks, and the oldest events are overwritten.
+ * <p/>
+ * Calls must be guarded with {@link #ENABLED}, which is set by the {@code TRACE} field of the
+ * build type. It is a constant, so the compiler drops the guarded calls from release builds.
+ */
+public class EventTrace {
+    public static String TAG = "MiBand: EventTrace";
+
+    public static final boolean ENABLED = BuildConfig.TRACE;
+
+    private static final int CAPACITY = 4096;
+    private static final int ARGS = 4;
+
+    /**
+     * How an argument is shown when the ring is dumped.
+     */
+    enum Arg {
+        NUMBER,
+        // the most significant bits of a UUID
+        UUID,
+        // a MAC address packed by packAddress
+        ADDRESS,
+        // the length of a byte array, followed by its first bytes packed by packBytes
+        LENGTH,
+        BYTES
+    }
+
+    public enum Event {
+        CHARACTERISTIC_CHANGED("characteristic changed", Arg.UUID, Arg.LENGTH, Arg.BYTES),
+        CHARACTERISTIC_WRITE("writing to characteristic", Arg.UUID, Arg.LENGTH, Arg.BYTES),
+        // characteristic, status
+        CHARACTERISTIC_WRITTEN("characteristic written", Arg.UUID, Arg.NUMBER),
+        // actions, lane
+        TRANSACTION_QUEUED("transaction queued", Arg.NUMBER, Arg.NUMBER),
+        // actions
+        TRANSACTION_INSERTED("transaction inserted", Arg.NUMBER),
+        // actions, an equivalent transaction is still pending
+        TRANSACTION_DROPPED("transaction dropped", Arg.NUMBER),
+        // characteristic, 0 if the action has none
+        ACTION_RUN("running action", Arg.UUID),
+        ACTION_SKIPPED("skipping redundant action", Arg.UUID),
+        // beats per minute, 1 if it is an artifact
+        HEART_RATE("heart rate", Arg.NUMBER, Arg.NUMBER),
+        SCAN_RESULT("scan result", Arg.ADDRESS, Arg.NUMBER, Arg.LENGTH, Arg.BYTES);
+
+        private final String mDescription;
+        private final Arg[] mArgs;
+
+        Event(String description, Arg... args) {
+            mDescription = description;
+            mArgs = args;
+        }
+    }
+
+    private static final EventTrace sInstance = new EventTrace(ENABLED ? CAPACITY : 1);
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    // the number of the event in each slot plus one, set last so a dump can skip slots that are
+    // being written, a slot may still be dumped torn now and then
+    private final AtomicLongArray mSequences;
+    private final Event[] mEvents;
+    private final long[] mTimestamps;
+    private final long[] mArgs;
+
+    /**
+     * @param capacity a power of two
+     */
+    EventTrace(int capacity) {
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        mEvents = new Event[capacity];
+        mTimestamps = new long[capacity];
+        mArgs = new long[capacity * ARGS];
+    }
+
+    public static void record(Event event, long arg0) {
+        sInstance.add(event, arg0, 0, 0, 0);
+    }
+
+    public static void record(Event event, long arg0, long arg1) {
+        sInstance.add(event, arg0, arg1, 0, 0);
+    }
+
+    public static void record(Event event, long arg0, long arg1, long arg2) {
+        sInstance.add(event, arg0, arg1, arg2, 0);
+    }
+
+    public static void record(Event event, long arg0, long arg1, long arg2, long arg3) {
+        sInstance.add(event, arg0, arg1, arg2, arg3);
+    }
+
+    /**
+     * Returns the recorded events as text, the oldest first.
+     */
+    public static String dump() {
+        return sInstance.format(System.nanoTime());
+    }
+
+    void add(Event event, long arg0, long arg1, long arg2, long arg3) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) (sequence & mMask);
+        mSequences.set(slot, 0);
+        mEvents[slot] = event;
+        mTimestamps[slot] = System.nanoTime();
+        mArgs[slot * ARGS] = arg0;
+        mArgs[slot * ARGS + 1] = arg1;
+        mArgs[slot * ARGS + 2] = arg2;
+        mArgs[slot * ARGS + 3] = arg3;
+        mSequences.set(slot, sequence + 1);
+    }
+
+    /**
+     * Formats every complete event in the ring, with its time before now in milliseconds.
+     */
+    String format(long now) {
+        StringBuilder builder = new StringBuilder();
+        long next = mNext.get();
+        long first = Math.max(0, next - mMask - 1);
+        long[] args = new long[ARGS];
+        for (long sequence = first; sequence < next; sequence++) {
+            int slot = (int) (sequence & mMask);
+            if (mSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            Event event = mEvents[slot];
+            long timestamp = mTimestamps[slot];
+            System.arraycopy(mArgs, slot * ARGS, args, 0, ARGS);
+            // overwritten while it was read
+            if (mSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            builder.append(String.format(Locale.ROOT, "%10.3f ", (timestamp - now) / 1000000.0))
+                    .append(event.mDescription);
+            for (int i = 0; i < event.mArgs.length; i++) {
+                builder.append(' ');
+                appendArg(builder, event.mArgs[i], args[i], i > 0 ? args[i - 1] : 0);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void appendArg(StringBuilder builder, Arg arg, long value, long previous) {
+        switch (arg) {
+            case UUID:
+                builder.append(String.format(Locale.ROOT, "%08x", value >>> 32));
+                break;
+            case ADDRESS:
+                for (int shift = 40; shift >= 0; shift -= 8) {
+                    builder.append(String.format(Locale.ROOT, "%02X", (value >>> shift) & 0xff));
+                    if (shift > 0) {
+                        builder.append(':');
+                    }
+                }
+                break;
+            case LENGTH:
+                builder.append('[').append(value).append(']');
+                break;
+            case BYTES:
+                int length = (int) Math.min(previous, 8);
+                for (int i = 0; i < length; i++) {
+                    builder.append(String.format(Locale.ROOT, "%02x", (value >>> (56 - 8 * i)) & 0xff));
+                }
+                if (previous > length) {
+                    builder.append("..");
+                }
+                break;
+            default:
+                builder.append(value);
+                break;
+        }
+    }
+
+    /**
+     * Packs the first eight bytes into a long, the first one in the most significant bits.
+     */
+    public static long packBytes(byte[] value) {
+        long packed = 0;
+        if (value != null) {
+            for (int i = 0; i < 8; i++) {
+                packed = packed << 8 | (i < value.length ? value[i] & 0xff : 0);
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Packs a MAC address like 12:34:56:78:9A:BC into a long.
+     */
+    public static long packAddress(String address) {
+        long packed = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                packed = packed << 4 | digit;
+            }
+        }
+        return packed;
+    }
+}
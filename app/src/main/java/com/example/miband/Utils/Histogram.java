@@ -0,0 +1,157 @@
+package com.example.miband.Utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values: every power of two range is split into
+ * {@link #SUB_BUCKETS} equal buckets, so a value is off by at most 1/16 at any magnitude while
+ * the histogram takes a fixed amount of memory. Unlike the {@link LatencyRecorder} it keeps
+ * every value ever recorded.
+ * <p/>
+ * Recording neither locks nor allocates, so it can be done on the Bluetooth threads. Readers
+ * may see a value that is being recorded in some of the statistics but not yet in others.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values below SUB_BUCKETS are exact, then SUB_BUCKETS buckets for each exponent up to 62
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(-1);
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the smallest value that falls into the given bucket.
+     */
+    static long getLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Records a value, negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(getBucket(value));
+        mSum.addAndGet(value);
+        long min;
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+            // another thread changed it, try again
+        }
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // another thread changed it, try again
+        }
+        mCount.incrementAndGet();
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     * Returns the smallest value recorded, or -1 if nothing was recorded.
+     */
+    public long getMin() {
+        long min = mMin.get();
+        return min == Long.MAX_VALUE ? -1 : min;
+    }
+
+    /**
+     * Returns the largest value recorded, or -1 if nothing was recorded.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Returns the given percentile (0-100), as the upper end of the bucket it falls into, or -1
+     * if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        // the buckets are counted first, so the total always matches them
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            count += mCounts.get(bucket);
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long min = mMin.get();
+        long max = mMax.get();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts.get(bucket);
+            if (seen >= rank) {
+                long upper = bucket + 1 < BUCKET_COUNT ? getLowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+                return Math.max(min, Math.min(max, upper));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forgets all values, values recorded at the same time may be partly kept.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            mCounts.set(bucket, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(-1);
+    }
+
+    /**
+     * Returns the non-empty buckets as "lower bound:count" pairs, separated by spaces.
+     */
+    public String getBuckets() {
+        StringBuilder builder = new StringBuilder();
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            long count = mCounts.get(bucket);
+            if (count > 0) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(getLowerBound(bucket)).append(':').append(count);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+                + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+}
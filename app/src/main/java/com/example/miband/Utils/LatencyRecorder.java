@@ -0,0 +1,49 @@
+package com.example.miband.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples in a fixed ring and computes percentiles on demand.
+ */
+public class LatencyRecorder {
+    private final long[] mSamples;
+    private final long[] mSorted;
+    private long mCount;
+
+    public LatencyRecorder(int capacity) {
+        mSamples = new long[capacity];
+        mSorted = new long[capacity];
+    }
+
+    public synchronized void record(long latency) {
+        mSamples[(int) (mCount % mSamples.length)] = latency;
+        mCount++;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the given percentile (0-100) of the recorded samples, or -1 if nothing was recorded.
+     */
+    public synchronized long getPercentile(int percentile) {
+        int size = (int) Math.min(mCount, mSamples.length);
+        if (size == 0) {
+            return -1;
+        }
+        System.arraycopy(mSamples, 0, mSorted, 0, size);
+        Arrays.sort(mSorted, 0, size);
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return mSorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " n=" + getCount();
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.miband.Utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, gauges and histograms of the whole app, by name. A metric is looked up once and the
+ * returned object kept by whoever records it, so recording is a plain atomic update that neither
+ * locks nor allocates and stays enabled in release builds. Names are dot separated with the unit
+ * last, e.g. {@code gatt.wait.us}.
+ */
+public class Metrics {
+    public static String TAG = "MiBand: Metrics";
+
+    /**
+     * Reads a value when the metrics are dumped.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    private static final Metrics sInstance = new Metrics();
+
+    // sorted, so related metrics are dumped together
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentSkipListMap<>();
+
+    Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the counter with the given name, created on first use.
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, created on first use.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds a histogram owned by someone else under the given name.
+     */
+    public void register(String name, Histogram histogram) {
+        mHistograms.put(name, histogram);
+    }
+
+    /**
+     * Sets the gauge read for the given name, replacing the one set before, e.g. by the previous
+     * connection.
+     */
+    public void register(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Sets every counter and histogram back to zero, gauges show the current state anyway.
+     */
+    public void reset() {
+        for (Counter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns every metric as text, one per line.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("# counters\n");
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        builder.append("# gauges\n");
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue().getValue()).append('\n');
+        }
+        builder.append("# histograms\n");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                builder.append(entry.getKey()).append(' ').append(histogram).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
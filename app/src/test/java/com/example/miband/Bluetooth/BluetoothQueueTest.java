@@ -0,0 +1,381 @@
+package com.example.miband.Bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.example.miband.Bluetooth.Actions.BtLEAction;
+import com.example.miband.Bluetooth.Actions.ConnectionPriorityAction;
+import com.example.miband.Bluetooth.Actions.RequestMtuAction;
+import com.example.miband.Bluetooth.Actions.SetPhyAction;
+import com.example.miband.Bluetooth.Actions.WriteAction;
+import com.example.miband.Device.MiBandDevice;
+import com.example.miband.Utils.Metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BluetoothQueueTest {
+    /**
+     * Never gets its callback, like a write the band doesn't answer.
+     */
+    static class LostAction extends BtLEAction {
+        LostAction(long timeoutMillis) {
+            super(null);
+            setTimeoutMillis(timeoutMillis);
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return true;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            return true;
+        }
+    }
+
+    static class RunAction extends BtLEAction {
+        final CountDownLatch mRun = new CountDownLatch(1);
+
+        RunAction() {
+            super(null);
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return false;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            mRun.countDown();
+            return true;
+        }
+
+        boolean awaitRun() throws InterruptedException {
+            return mRun.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    static class CrashAction extends BtLEAction {
+        CrashAction() {
+            super(null);
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return false;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            throw new IllegalStateException("crash");
+        }
+    }
+
+    /**
+     * Blocks the dispatcher in run() until it is interrupted.
+     */
+    static class HangAction extends BtLEAction {
+        HangAction() {
+            super(null);
+            setTimeoutMillis(100);
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return false;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Holds the dispatcher in run() until it is released, so that transactions queue up.
+     */
+    static class BlockAction extends BtLEAction {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        BlockAction() {
+            super(null);
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return false;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            try {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records its value when it runs, equivalent to others with the same value.
+     */
+    static class ValueAction extends BtLEAction {
+        final int mValue;
+        final List<Integer> mRun;
+
+        ValueAction(int value, List<Integer> run) {
+            super(null);
+            mValue = value;
+            mRun = run;
+        }
+
+        @Override
+        public boolean expectsResult() {
+            return false;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            mRun.add(mValue);
+            return true;
+        }
+
+        @Override
+        public boolean isEquivalent(BtLEAction other) {
+            return other instanceof ValueAction && ((ValueAction) other).mValue == mValue;
+        }
+    }
+
+    /**
+     * A characteristic that only supports writing without response.
+     */
+    static class NoResponseCharacteristic extends BluetoothGattCharacteristic {
+        private final UUID mUuid;
+
+        NoResponseCharacteristic(UUID uuid) {
+            super(uuid, PROPERTY_WRITE_NO_RESPONSE, 0);
+            mUuid = uuid;
+        }
+
+        @Override
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        @Override
+        public int getWriteType() {
+            return WRITE_TYPE_NO_RESPONSE;
+        }
+    }
+
+    /**
+     * Counts how often it was handed to the stack, which is left to the test.
+     */
+    static class NoResponseWriteAction extends WriteAction {
+        final Semaphore mRuns;
+
+        NoResponseWriteAction(BluetoothGattCharacteristic characteristic, Semaphore runs) {
+            super(characteristic, new byte[]{1});
+            mRuns = runs;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            mRuns.release();
+            return true;
+        }
+    }
+
+    private BluetoothQueue mQueue;
+
+    @Before
+    public void setUp() {
+        MiBandDevice device = new MiBandDevice(null, "00:00:00:00:00:00");
+        device.setState(MiBandDevice.State.INITIALIZED);
+        mQueue = new BluetoothQueue(null, device, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.dispose();
+    }
+
+    private void queue(BtLEAction... actions) {
+        mQueue.add(transaction(actions));
+    }
+
+    private static Transaction transaction(BtLEAction... actions) {
+        TransactionBuilder builder = new TransactionBuilder();
+        for (BtLEAction action : actions) {
+            builder.add(action);
+        }
+        return builder.getTransaction();
+    }
+
+    @Test
+    public void add_keepsEquivalentTransactions() throws InterruptedException {
+        List<Integer> run = new CopyOnWriteArrayList<>();
+        BlockAction block = new BlockAction();
+        RunAction done = new RunAction();
+        queue(block);
+        // start, stop, start: dropping the second start would leave the measurement stopped
+        queue(new ValueAction(1, run));
+        queue(new ValueAction(0, run));
+        queue(new ValueAction(1, run));
+        queue(done);
+        block.mRelease.countDown();
+
+        assertTrue(done.awaitRun());
+        assertEquals(Arrays.asList(1, 0, 1), run);
+        assertEquals(0, mQueue.getEliminatedOperationCount());
+    }
+
+    @Test
+    public void addIfAbsent_dropsEquivalentPendingTransaction() throws InterruptedException {
+        List<Integer> run = new CopyOnWriteArrayList<>();
+        BlockAction block = new BlockAction();
+        RunAction done = new RunAction();
+        queue(block);
+        assertTrue(mQueue.addIfAbsent(transaction(new ValueAction(1, run))));
+        assertFalse(mQueue.addIfAbsent(transaction(new ValueAction(1, run))));
+        assertTrue(mQueue.addIfAbsent(transaction(new ValueAction(2, run))));
+        queue(done);
+        block.mRelease.countDown();
+
+        assertTrue(done.awaitRun());
+        assertEquals(Arrays.asList(1, 2), run);
+        assertEquals(1, mQueue.getEliminatedOperationCount());
+    }
+
+    @Test
+    public void writesWithoutResponse_stayWithinCreditWindow() throws InterruptedException {
+        BluetoothGattCharacteristic characteristic = new NoResponseCharacteristic(UUID.randomUUID());
+        Semaphore runs = new Semaphore(0);
+        int writes = 2 * BluetoothQueue.WRITE_WINDOW;
+        BtLEAction[] actions = new BtLEAction[writes];
+        for (int i = 0; i < writes; i++) {
+            actions[i] = new NoResponseWriteAction(characteristic, runs);
+        }
+        RunAction next = new RunAction();
+        queue(actions);
+        queue(next);
+
+        assertTrue(runs.tryAcquire(BluetoothQueue.WRITE_WINDOW, 10, TimeUnit.SECONDS));
+        // no credit left until the stack reports a write
+        assertFalse(runs.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        BluetoothGattCallback callback = mQueue.getInternalGattCallback();
+        for (int i = 0; i < BluetoothQueue.WRITE_WINDOW; i++) {
+            callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+        }
+        assertTrue(runs.tryAcquire(BluetoothQueue.WRITE_WINDOW, 10, TimeUnit.SECONDS));
+        // the next transaction waits for the callbacks of this one
+        assertFalse(next.mRun.await(200, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < BluetoothQueue.WRITE_WINDOW; i++) {
+            callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+        }
+        assertTrue(next.awaitRun());
+        assertEquals(writes, mQueue.getWriteWithoutResponseCount());
+    }
+
+    @Test
+    public void connectionPriority_isRedundantWhenAlreadySet() {
+        BtLEAction balanced = new ConnectionPriorityAction(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        BtLEAction high = new ConnectionPriorityAction(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        assertTrue(mQueue.isRedundant(balanced));
+        assertFalse(mQueue.isRedundant(high));
+
+        mQueue.rememberState(high);
+        assertTrue(mQueue.isRedundant(high));
+        assertFalse(mQueue.isRedundant(balanced));
+
+        mQueue.resetConnectionState();
+        assertTrue(mQueue.isRedundant(balanced));
+    }
+
+    @Test
+    public void requestMtu_isAskedOncePerConnection() {
+        assertTrue(mQueue.isRedundant(new RequestMtuAction(23)));
+        assertFalse(mQueue.isRedundant(new RequestMtuAction(247)));
+
+        // whatever the band answered
+        mQueue.rememberState(new RequestMtuAction(247));
+        assertTrue(mQueue.isRedundant(new RequestMtuAction(247)));
+        assertTrue(mQueue.isRedundant(new RequestMtuAction(512)));
+
+        mQueue.resetConnectionState();
+        assertFalse(mQueue.isRedundant(new RequestMtuAction(247)));
+    }
+
+    @Test
+    public void setPhy_isAskedOncePerConnection() {
+        assertTrue(mQueue.isRedundant(new SetPhyAction(BluetoothDevice.PHY_LE_1M_MASK)));
+        assertFalse(mQueue.isRedundant(new SetPhyAction(BluetoothDevice.PHY_LE_2M_MASK)));
+
+        mQueue.rememberState(new SetPhyAction(BluetoothDevice.PHY_LE_2M_MASK));
+        assertTrue(mQueue.isRedundant(new SetPhyAction(BluetoothDevice.PHY_LE_2M_MASK)));
+        assertTrue(mQueue.isRedundant(new SetPhyAction(BluetoothDevice.PHY_LE_CODED_MASK)));
+
+        mQueue.resetConnectionState();
+        assertFalse(mQueue.isRedundant(new SetPhyAction(BluetoothDevice.PHY_LE_2M_MASK)));
+    }
+
+    @Test
+    public void lostCallback_abortsTransactionAfterTimeout() throws InterruptedException {
+        // the metrics are shared by every queue
+        Metrics.Counter timeouts = Metrics.getInstance().counter("gatt.aborts.timeout.LostAction");
+        long before = timeouts.get();
+        RunAction rest = new RunAction();
+        RunAction next = new RunAction();
+        queue(new LostAction(200), rest);
+        queue(next);
+
+        assertTrue(next.awaitRun());
+        assertEquals(1, rest.mRun.getCount());
+        assertEquals(before + 1, timeouts.get());
+    }
+
+    @Test
+    public void crashedDispatcher_isRestartedByWatchdog() throws InterruptedException {
+        RunAction next = new RunAction();
+        queue(new CrashAction());
+        queue(next);
+
+        assertTrue(next.awaitRun());
+        assertEquals(1, mQueue.getDispatcherRestartCount());
+    }
+
+    @Test
+    public void stuckAction_isInterruptedByWatchdog() throws InterruptedException {
+        RunAction next = new RunAction();
+        queue(new HangAction());
+        queue(next);
+
+        // the watchdog waits for the timeout plus its grace period
+        assertTrue(next.awaitRun());
+        assertEquals(1, mQueue.getStuckActionCount());
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.miband.Bluetooth;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattLayoutCacheTest {
+    private static final String BAND = "C8:0F:10:AB:00:1E";
+    private static final String OTHER_BAND = "C8:0F:10:AB:00:1F";
+    private static final UUID HEART_RATE = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    private static final UUID CONTROL_POINT = UUID.fromString("00002a39-0000-1000-8000-00805f9b34fb");
+    private static final UUID AUTH = UUID.fromString("00000009-0000-3512-2118-0009af100700");
+
+    /**
+     * Keeps the values in memory. Like Android it hands out the stored sets themselves, so
+     * changing a returned set changes the stored one.
+     */
+    static class MemoryPreferences implements SharedPreferences {
+        final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        class MemoryEditor implements Editor {
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private final Set<String> mRemovals = new HashSet<>();
+            private boolean mClear;
+
+            private Editor put(String key, Object value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return put(key, values == null ? null : new HashSet<>(values));
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mRemovals.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (mClear) {
+                    mValues.clear();
+                }
+                for (String key : mRemovals) {
+                    mValues.remove(key);
+                }
+                mValues.putAll(mChanges);
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+
+    private GattLayoutCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new GattLayoutCache(new MemoryPreferences());
+    }
+
+    @Test
+    public void matches_onlyTheSavedLayout() {
+        assertFalse(mCache.matches(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT)));
+
+        mCache.saveLayout(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT));
+        assertTrue(mCache.matches(BAND, Arrays.asList(CONTROL_POINT, HEART_RATE)));
+        assertFalse(mCache.matches(BAND, Collections.singletonList(HEART_RATE)));
+        assertFalse(mCache.matches(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT, AUTH)));
+        assertFalse(mCache.matches(OTHER_BAND, Arrays.asList(HEART_RATE, CONTROL_POINT)));
+    }
+
+    @Test
+    public void setNotification_isKeptPerBand() {
+        mCache.setNotification(BAND, HEART_RATE, true);
+        mCache.setNotification(BAND, AUTH, true);
+        mCache.setNotification(BAND, AUTH, false);
+
+        assertEquals(Collections.singleton(HEART_RATE), mCache.getNotifications(BAND));
+        assertTrue(mCache.getNotifications(OTHER_BAND).isEmpty());
+    }
+
+    @Test
+    public void getNotifications_isNotChangedByLaterUpdates() {
+        mCache.setNotification(BAND, HEART_RATE, true);
+        Set<UUID> notifications = mCache.getNotifications(BAND);
+        mCache.setNotification(BAND, AUTH, true);
+
+        assertEquals(Collections.singleton(HEART_RATE), notifications);
+        assertEquals(new HashSet<>(Arrays.asList(HEART_RATE, AUTH)), mCache.getNotifications(BAND));
+    }
+
+    @Test
+    public void saveLayout_dropsNotificationsOfThePreviousLayout() {
+        mCache.saveLayout(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT));
+        mCache.setNotification(BAND, HEART_RATE, true);
+
+        mCache.saveLayout(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT, AUTH));
+        assertTrue(mCache.getNotifications(BAND).isEmpty());
+        assertTrue(mCache.matches(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT, AUTH)));
+    }
+
+    @Test
+    public void clearNotifications_keepsTheLayout() {
+        mCache.saveLayout(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT));
+        mCache.setNotification(BAND, HEART_RATE, true);
+        mCache.setNotification(OTHER_BAND, HEART_RATE, true);
+
+        mCache.clearNotifications(BAND);
+        assertTrue(mCache.getNotifications(BAND).isEmpty());
+        assertEquals(Collections.singleton(HEART_RATE), mCache.getNotifications(OTHER_BAND));
+        assertTrue(mCache.matches(BAND, Arrays.asList(HEART_RATE, CONTROL_POINT)));
+    }
+}
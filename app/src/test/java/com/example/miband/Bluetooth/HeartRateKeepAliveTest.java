@@ -0,0 +1,187 @@
+package com.example.miband.Bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.example.miband.Device.MiBandDevice;
+import com.example.miband.Device.MiBandService;
+import com.example.miband.Device.MiBandSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.example.miband.Bluetooth.HeartRateKeepAlive.*;
+import static org.junit.Assert.*;
+
+public class HeartRateKeepAliveTest {
+    static class TestSupport extends MiBandSupport {
+        final MiBandDevice mDevice = new MiBandDevice(null, "00:00:00:00:00:00");
+        final BluetoothQueue mQueue = new BluetoothQueue(null, mDevice, null, null);
+        final BluetoothGattCharacteristic mControlPoint = new TestCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT);
+
+        @Override
+        public BluetoothQueue getQueue() {
+            return mQueue;
+        }
+
+        @Override
+        public MiBandDevice getDevice() {
+            return mDevice;
+        }
+
+        @Override
+        public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+            return uuid.equals(mControlPoint.getUuid()) ? mControlPoint : null;
+        }
+    }
+
+    static class TestCharacteristic extends BluetoothGattCharacteristic {
+        private final UUID mUuid;
+
+        TestCharacteristic(UUID uuid) {
+            super(uuid, PROPERTY_WRITE, 0);
+            mUuid = uuid;
+        }
+
+        @Override
+        public UUID getUuid() {
+            return mUuid;
+        }
+    }
+
+    static class TestCallback extends HeartRateGattCallback {
+        int mStarts;
+
+        TestCallback(MiBandSupport support) {
+            super(support, null);
+        }
+
+        @Override
+        void startRealtimeHeartRateMeasurement() {
+            mStarts++;
+        }
+    }
+
+    private TestSupport mSupport;
+    private TestCallback mCallback;
+    private HeartRateKeepAlive mKeepAlive;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        mSupport = new TestSupport();
+        mSupport.mDevice.setState(MiBandDevice.State.INITIALIZED);
+        mCallback = new TestCallback(mSupport);
+        mKeepAlive = new HeartRateKeepAlive(mSupport, mCallback);
+        mStart = System.currentTimeMillis();
+        mKeepAlive.reset(mStart);
+    }
+
+    @After
+    public void tearDown() {
+        mSupport.mQueue.dispose();
+    }
+
+    private void notifyEverySecond(long from, long to) {
+        for (long timestamp = from; timestamp <= to; timestamp += 1000) {
+            mKeepAlive.onNotification(timestamp);
+        }
+    }
+
+    @Test
+    public void nextInterval_growsWhileNotificationsAreSteady() {
+        assertEquals(INITIAL_INTERVAL_MILLIS + INTERVAL_STEP_MILLIS, nextInterval(INITIAL_INTERVAL_MILLIS, 1000));
+        assertEquals(MAX_INTERVAL_MILLIS, nextInterval(MAX_INTERVAL_MILLIS, 1000));
+        assertEquals(MAX_INTERVAL_MILLIS, nextInterval(MAX_INTERVAL_MILLIS, GAP_WARNING_MILLIS));
+    }
+
+    @Test
+    public void nextInterval_halvesAfterGap() {
+        assertEquals(MAX_INTERVAL_MILLIS / 2, nextInterval(MAX_INTERVAL_MILLIS, GAP_WARNING_MILLIS + 1));
+        assertEquals(MIN_INTERVAL_MILLIS, nextInterval(MIN_INTERVAL_MILLIS + 1000, GAP_WARNING_MILLIS + 1));
+        assertEquals(MIN_INTERVAL_MILLIS, nextInterval(MIN_INTERVAL_MILLIS, GAP_WARNING_MILLIS + 1));
+    }
+
+    @Test
+    public void nextInterval_pingsFiveTimesPerMinuteWhenSteady() {
+        // ten minutes of steady notifications, a ping is one GATT operation
+        long interval = INITIAL_INTERVAL_MILLIS;
+        long time = 0;
+        int pingsAfterFirstMinute = 0;
+        while (time < 600000) {
+            time += interval;
+            if (time > 60000) {
+                pingsAfterFirstMinute++;
+            }
+            interval = nextInterval(interval, 1000);
+        }
+        assertEquals(MAX_INTERVAL_MILLIS, interval);
+        assertEquals(9 * 60000 / MAX_INTERVAL_MILLIS, pingsAfterFirstMinute, 1);
+    }
+
+    @Test
+    public void tick_pingsAndCoalescesWithPendingPing() {
+        // holds the queue, so the first ping is still waiting at the second tick
+        BluetoothQueueTest.BlockAction block = new BluetoothQueueTest.BlockAction();
+        TransactionBuilder builder = new TransactionBuilder();
+        builder.add(block);
+        builder.queue(mSupport.mQueue);
+        try {
+            notifyEverySecond(mStart + 1000, mStart + 8000);
+            mKeepAlive.tick(mStart + 8000);
+            assertEquals(1, mKeepAlive.getPingCount());
+            assertEquals(INITIAL_INTERVAL_MILLIS + INTERVAL_STEP_MILLIS, mKeepAlive.getIntervalMillis());
+
+            notifyEverySecond(mStart + 9000, mStart + 17000);
+            mKeepAlive.tick(mStart + 17000);
+            assertEquals(1, mKeepAlive.getPingCount());
+            assertEquals(1, mSupport.mQueue.getEliminatedOperationCount());
+            assertEquals(0, mKeepAlive.getRestartCount());
+        } finally {
+            block.mRelease.countDown();
+        }
+    }
+
+    @Test
+    public void tick_shortensIntervalAfterGap() {
+        mKeepAlive.onNotification(mStart + 1000);
+        mKeepAlive.onNotification(mStart + 1000 + GAP_WARNING_MILLIS + 500);
+        mKeepAlive.tick(mStart + 8000);
+
+        assertEquals(INITIAL_INTERVAL_MILLIS / 2, mKeepAlive.getIntervalMillis());
+        assertEquals(1, mKeepAlive.getPingCount());
+        assertEquals(0, mCallback.mStarts);
+    }
+
+    @Test
+    public void tick_restartsWhenNotificationsStopped() {
+        mKeepAlive.tick(mStart + RESTART_MILLIS + 1);
+
+        assertEquals(1, mKeepAlive.getRestartCount());
+        assertEquals(1, mCallback.mStarts);
+        assertEquals(0, mKeepAlive.getPingCount());
+        assertEquals(MIN_INTERVAL_MILLIS, mKeepAlive.getIntervalMillis());
+    }
+
+    @Test
+    public void tick_restartsWhenDisconnected() {
+        mSupport.mDevice.setState(MiBandDevice.State.NOT_CONNECTED);
+        mKeepAlive.tick(mStart + 1000);
+
+        assertEquals(1, mKeepAlive.getRestartCount());
+        assertEquals(1, mCallback.mStarts);
+        assertEquals(0, mKeepAlive.getPingCount());
+    }
+
+    @Test
+    public void tick_waitsForHandshake() {
+        mSupport.mDevice.setState(MiBandDevice.State.AUTHENTICATING);
+        mKeepAlive.tick(mStart + RESTART_MILLIS + 1);
+
+        assertEquals(0, mKeepAlive.getRestartCount());
+        assertEquals(0, mKeepAlive.getPingCount());
+        assertEquals(MIN_INTERVAL_MILLIS, mKeepAlive.getIntervalMillis());
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.miband.Bluetooth;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HeartRateMeasurementTest {
+    @Test
+    public void parse_miBandFrame() {
+        HeartRateMeasurement measurement = new HeartRateMeasurement();
+
+        assertTrue(measurement.parse(new byte[]{0x00, 0x48}));
+        assertEquals(72, measurement.getHeartRate());
+        assertEquals(-1, measurement.getEnergyExpended());
+        assertEquals(0, measurement.getRrIntervalCount());
+        assertTrue(measurement.hasSensorContact());
+    }
+
+    @Test
+    public void parse_allFields() {
+        HeartRateMeasurement measurement = new HeartRateMeasurement();
+
+        // 16 bit heart rate 300, contact supported but not detected, 1000 kJ, RR 1024 and 512
+        byte[] value = {0x1d, 0x2c, 0x01, (byte) 0xe8, 0x03, 0x00, 0x04, 0x00, 0x02};
+        assertTrue(measurement.parse(value));
+        assertEquals(300, measurement.getHeartRate());
+        assertFalse(measurement.hasSensorContact());
+        assertEquals(1000, measurement.getEnergyExpended());
+        assertEquals(2, measurement.getRrIntervalCount());
+        assertEquals(1000, measurement.getRrIntervalMillis(0));
+        assertEquals(500, measurement.getRrIntervalMillis(1));
+    }
+
+    @Test
+    public void parse_rejectsTruncatedFrames() {
+        HeartRateMeasurement measurement = new HeartRateMeasurement();
+
+        assertFalse(measurement.parse(new byte[0]));
+        assertFalse(measurement.parse(new byte[]{0x00}));
+        assertFalse(measurement.parse(new byte[]{0x01, 0x48}));
+        assertFalse(measurement.parse(new byte[]{0x08, 0x48, 0x01}));
+    }
+
+    @Test
+    public void parse_randomFramesMatchReferenceDecoder() {
+        Random random = new Random(42);
+        HeartRateMeasurement measurement = new HeartRateMeasurement();
+
+        for (int i = 0; i < 100000; i++) {
+            byte[] value = new byte[random.nextInt(24)];
+            random.nextBytes(value);
+            if (value.length > 0 && random.nextBoolean()) {
+                // keep the reserved bits clear half of the time
+                value[0] &= 0x1f;
+            }
+
+            Reference expected = Reference.decode(value);
+            boolean parsed = measurement.parse(value);
+
+            assertEquals("valid " + i, expected != null, parsed);
+            if (expected == null) {
+                continue;
+            }
+            assertEquals(expected.heartRate, measurement.getHeartRate());
+            assertEquals(expected.energyExpended, measurement.getEnergyExpended());
+            assertEquals(expected.contact, measurement.hasSensorContact());
+            assertEquals(expected.rrIntervals.size(), measurement.getRrIntervalCount());
+            for (int j = 0; j < expected.rrIntervals.size(); j++) {
+                assertEquals((long) expected.rrIntervals.get(j), measurement.getRrInterval(j));
+            }
+        }
+    }
+
+    @Test
+    public void parse_reusesIntervalArray() {
+        HeartRateMeasurement measurement = new HeartRateMeasurement();
+        int[] intervals = measurement.getRrIntervals();
+
+        assertTrue(measurement.parse(new byte[]{0x16, 0x48, 0x00, 0x04, (byte) 0xf0, 0x03}));
+        assertSame(intervals, measurement.getRrIntervals());
+        assertEquals(2, measurement.getRrIntervalCount());
+        assertEquals(1024, intervals[0]);
+        assertEquals(1008, intervals[1]);
+
+        // a frame without intervals resets the count
+        assertTrue(measurement.parse(new byte[]{0x00, 0x48}));
+        assertSame(intervals, measurement.getRrIntervals());
+        assertEquals(0, measurement.getRrIntervalCount());
+    }
+
+    /**
+     * Straightforward decoder written from the specification, used to check the parser.
+     */
+    private static class Reference {
+        int heartRate;
+        int energyExpended = -1;
+        boolean contact;
+        final List<Integer> rrIntervals = new ArrayList<>();
+
+        static Reference decode(byte[] value) {
+            ByteBuffer buffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+            Reference result = new Reference();
+            try {
+                int flags = buffer.get() & 0xff;
+                result.heartRate = (flags & 0x01) != 0 ? buffer.getShort() & 0xffff : buffer.get() & 0xff;
+                if ((flags & 0x08) != 0) {
+                    result.energyExpended = buffer.getShort() & 0xffff;
+                }
+                result.contact = (flags & 0x04) == 0 || (flags & 0x02) != 0;
+                if ((flags & 0x10) != 0) {
+                    while (buffer.remaining() >= 2) {
+                        result.rrIntervals.add(buffer.getShort() & 0xffff);
+                    }
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+            return result;
+        }
+    }
+}
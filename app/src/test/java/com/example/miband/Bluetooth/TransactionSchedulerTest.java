@@ -0,0 +1,164 @@
+package com.example.miband.Bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TransactionSchedulerTest {
+    private static final TransactionScheduler.Priority AUTH = TransactionScheduler.Priority.AUTH;
+    private static final TransactionScheduler.Priority REALTIME = TransactionScheduler.Priority.REALTIME;
+    private static final TransactionScheduler.Priority BULK = TransactionScheduler.Priority.BULK;
+
+    @Test
+    public void take_authBeforeRealtimeBeforeBulk() throws InterruptedException {
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        scheduler.addLast("bulk", BULK);
+        scheduler.addLast("realtime", REALTIME);
+        scheduler.addLast("auth", AUTH);
+
+        assertEquals("auth", scheduler.take());
+        assertEquals("realtime", scheduler.take());
+        assertEquals("bulk", scheduler.take());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void addFirst_goesBeforeSamePriority() throws InterruptedException {
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        scheduler.addLast("key", AUTH);
+        scheduler.addLast("control", REALTIME);
+        scheduler.addFirst("response", AUTH);
+
+        assertEquals("response", scheduler.take());
+        assertEquals("key", scheduler.take());
+        assertEquals("control", scheduler.take());
+    }
+
+    @Test
+    public void take_bulkIsNotStarvedByRealtime() throws InterruptedException {
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        for (int i = 0; i < 3; i++) {
+            scheduler.addLast("bulk", BULK);
+        }
+        for (int i = 0; i < 20; i++) {
+            scheduler.addLast("realtime", REALTIME);
+        }
+
+        int realtimeInRow = 0;
+        int bulkTaken = 0;
+        for (int i = 0; i < 12; i++) {
+            if (scheduler.take().equals("bulk")) {
+                bulkTaken++;
+                realtimeInRow = 0;
+            } else {
+                realtimeInRow++;
+                assertTrue(realtimeInRow <= TransactionScheduler.REALTIME_BURST);
+            }
+        }
+        assertEquals(2, bulkTaken);
+    }
+
+    @Test
+    public void take_realtimeWaitsForOneBulkAtMost() throws InterruptedException {
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        for (int i = 0; i < 1000; i++) {
+            scheduler.addLast("bulk", BULK);
+        }
+        scheduler.take();
+        scheduler.addLast("keep-alive", REALTIME);
+
+        assertEquals("keep-alive", scheduler.take());
+    }
+
+    @Test
+    public void addLastIfAbsent_dropsEquivalentPendingTransaction() throws InterruptedException {
+        TransactionScheduler.Equivalence<String> sameText = new TransactionScheduler.Equivalence<String>() {
+            @Override
+            public boolean isEquivalent(String a, String b) {
+                return a.equals(b);
+            }
+        };
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        assertTrue(scheduler.addLastIfAbsent("start", REALTIME, sameText));
+        assertFalse(scheduler.addLastIfAbsent("start", REALTIME, sameText));
+        assertTrue(scheduler.addLastIfAbsent("start", BULK, sameText));
+        assertEquals(2, scheduler.size());
+
+        scheduler.take();
+        // no longer pending
+        assertTrue(scheduler.addLastIfAbsent("start", REALTIME, sameText));
+    }
+
+    @Test
+    public void clear_removesEveryPriority() {
+        TransactionScheduler<String> scheduler = new TransactionScheduler<>();
+        scheduler.addLast("ping", REALTIME);
+        scheduler.addLast("bulk", BULK);
+        scheduler.clear();
+        assertEquals(0, scheduler.size(REALTIME));
+        assertEquals(0, scheduler.size(BULK));
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void take_returnsEveryTransactionOfConcurrentProducers() throws InterruptedException {
+        final TransactionScheduler<Integer> scheduler = new TransactionScheduler<>();
+        runProducers(4, 25000, new Producer() {
+            @Override
+            public void add(int value) {
+                scheduler.addLast(value, value % 8 == 0 ? REALTIME : BULK);
+            }
+        }, new Consumer() {
+            @Override
+            public Integer take() throws InterruptedException {
+                return scheduler.take();
+            }
+        });
+        assertEquals(0, scheduler.size());
+    }
+
+    private interface Producer {
+        void add(int value);
+    }
+
+    private interface Consumer {
+        Integer take() throws InterruptedException;
+    }
+
+    private static void runProducers(int producers, final int perProducer, final Producer producer, Consumer consumer)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        producer.add(base + i);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        start.countDown();
+        int total = producers * perProducer;
+        boolean[] seen = new boolean[total];
+        for (int i = 0; i < total; i++) {
+            int value = consumer.take();
+            assertFalse(seen[value]);
+            seen[value] = true;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.miband.DataStructures;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeartRateRingBufferTest {
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(16, new HeartRateRingBuffer(10).getCapacity());
+        assertEquals(16, new HeartRateRingBuffer(16).getCapacity());
+    }
+
+    @Test
+    public void readFrom_returnsSamplesInOrder() {
+        HeartRateRingBuffer buffer = new HeartRateRingBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.append(1000 + i, 60 + i);
+        }
+
+        final long[] sum = new long[2];
+        long next = buffer.readFrom(2, new HeartRateRingBuffer.Visitor() {
+            @Override
+            public void visit(long sequence, long timestamp, int value) {
+                assertEquals(1000 + sequence, timestamp);
+                assertEquals(60 + sequence, value);
+                sum[0]++;
+                sum[1] += value;
+            }
+        });
+
+        assertEquals(5, next);
+        assertEquals(3, sum[0]);
+        assertEquals(62 + 63 + 64, sum[1]);
+    }
+
+    @Test
+    public void readFrom_skipsOverwrittenSamples() {
+        HeartRateRingBuffer buffer = new HeartRateRingBuffer(8);
+        for (int i = 0; i < 20; i++) {
+            buffer.append(i, i);
+        }
+        assertEquals(12, buffer.getOldestSequence());
+
+        final long[] first = {-1};
+        long next = buffer.readFrom(0, new HeartRateRingBuffer.Visitor() {
+            @Override
+            public void visit(long sequence, long timestamp, int value) {
+                if (first[0] < 0) {
+                    first[0] = sequence;
+                }
+                assertEquals(sequence, value);
+            }
+        });
+
+        assertEquals(20, next);
+        assertTrue(first[0] >= 12);
+        assertEquals(19, buffer.getValue(19));
+    }
+}
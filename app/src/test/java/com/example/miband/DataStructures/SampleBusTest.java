@@ -0,0 +1,182 @@
+package com.example.miband.DataStructures;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SampleBusTest {
+    @Test
+    public void consumers_receiveEverySampleInOrder() throws InterruptedException {
+        final int samples = 100000;
+        SampleBus bus = new SampleBus(samples);
+        final CountDownLatch done = new CountDownLatch(3);
+        final long[][] received = new long[3][samples];
+        final int[] counts = new int[3];
+
+        for (int c = 0; c < 3; c++) {
+            final int consumer = c;
+            bus.subscribe("test " + c, new SampleBus.Consumer() {
+                @Override
+                public void onSample(long timestamp, int value, int flags) {
+                    received[consumer][counts[consumer]++] = timestamp;
+                    if (counts[consumer] == samples) {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        bus.start();
+        try {
+            for (int i = 0; i < samples; i++) {
+                bus.publish(i, 60 + i % 100, 0);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            bus.stop();
+        }
+
+        long[] expected = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            expected[i] = i;
+        }
+        for (int c = 0; c < 3; c++) {
+            assertArrayEquals(expected, received[c]);
+        }
+        assertEquals(0, bus.getMaxLag());
+    }
+
+    @Test
+    public void slowConsumer_losesSamplesWithoutStallingOthers() throws InterruptedException {
+        final int samples = 10000;
+        SampleBus bus = new SampleBus(1024);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final long[] lastSlow = {-1};
+        final int[] fastCount = {0};
+
+        bus.subscribe("fast", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                if (++fastCount[0] == samples) {
+                    fastDone.countDown();
+                }
+            }
+        });
+        SampleBus.Subscription slow = bus.subscribe("slow", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                assertTrue(timestamp > lastSlow[0]);
+                lastSlow[0] = timestamp;
+            }
+        });
+        bus.start();
+        try {
+            for (int i = 0; i < samples; i++) {
+                bus.publish(i, 60, 0);
+                if (i % 256 == 0) {
+                    Thread.sleep(1); // lets the fast consumer keep up with the ring
+                }
+            }
+            assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (slow.getLag() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } finally {
+            release.countDown();
+            bus.stop();
+        }
+        assertEquals(samples - 1, lastSlow[0]);
+        assertTrue("lost " + slow.getLostCount(), slow.getLostCount() > samples - 2 * bus.getCapacity());
+    }
+
+    @Test
+    public void failingConsumer_isCountedAndKeepsReceiving() throws InterruptedException {
+        SampleBus bus = new SampleBus(16);
+        final CountDownLatch done = new CountDownLatch(1);
+        SampleBus.Subscription subscription = bus.subscribe("failing", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                if (value % 2 == 0) {
+                    throw new IllegalStateException("even " + value);
+                }
+                if (value == 9) {
+                    done.countDown();
+                }
+            }
+        });
+        bus.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                bus.publish(i, i, 0);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            bus.stop();
+        }
+        assertEquals(5, subscription.getFailureCount());
+        assertEquals(5, bus.getFailureCount());
+        assertEquals("even 8", subscription.getLastFailure().getMessage());
+    }
+
+    @Test
+    public void measurementConsumer_receivesIntervalsOfEveryMeasurement() throws InterruptedException {
+        SampleBus bus = new SampleBus(16);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Integer> samples = new CopyOnWriteArrayList<>();
+        final List<String> measurements = new CopyOnWriteArrayList<>();
+        bus.subscribe("samples", new SampleBus.Consumer() {
+            @Override
+            public void onSample(long timestamp, int value, int flags) {
+                samples.add(value);
+                if (value == 62) {
+                    done.countDown();
+                }
+            }
+        });
+        bus.subscribe("measurements", new SampleBus.MeasurementConsumer() {
+            @Override
+            public void onMeasurement(long timestamp, int value, int flags, int[] rrIntervals, int rrCount) {
+                measurements.add(value + " " + flags + " " + Arrays.toString(Arrays.copyOf(rrIntervals, rrCount)));
+                if (value == 62) {
+                    done.countDown();
+                }
+            }
+        });
+        bus.start();
+        try {
+            int[] intervals = new int[20];
+            for (int i = 0; i < intervals.length; i++) {
+                intervals[i] = 1000 + i;
+            }
+            bus.publish(1000, 60, 0, intervals, 2, true);
+            bus.publish(2000, 0, SampleBus.FLAG_NO_CONTACT, intervals, 0, false);
+            bus.publish(3000, 61, 0);
+            // more intervals than a slot holds
+            bus.publish(4000, 62, 0, intervals, intervals.length, true);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            bus.stop();
+        }
+
+        assertEquals(Arrays.asList(60, 61, 62), samples);
+        assertEquals(4, measurements.size());
+        assertEquals("60 0 [1000, 1001]", measurements.get(0));
+        assertEquals("0 " + SampleBus.FLAG_NO_CONTACT + " []", measurements.get(1));
+        assertEquals("61 0 []", measurements.get(2));
+        assertEquals(SampleBus.MAX_RR_INTERVALS, measurements.get(3).split(",").length);
+    }
+}
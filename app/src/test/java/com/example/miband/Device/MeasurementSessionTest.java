@@ -0,0 +1,224 @@
+package com.example.miband.Device;
+
+import android.content.ContextWrapper;
+import android.content.res.Resources;
+
+import com.example.miband.DataStructures.SampleBus;
+import com.example.miband.Processing.PulseAggregator;
+import com.example.miband.R;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class MeasurementSessionTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Answers the config the session reads, with the live stream disabled.
+     */
+    static class TestResources extends Resources {
+        TestResources() {
+            super(null, null, null);
+        }
+
+        @Override
+        public String getString(int id) {
+            if (id == R.string.upload_overflow_policy) {
+                return "COALESCE";
+            }
+            return "";
+        }
+
+        @Override
+        public boolean getBoolean(int id) {
+            return false;
+        }
+
+        @Override
+        public int getInteger(int id) {
+            return 80;
+        }
+    }
+
+    static class TestContext extends ContextWrapper {
+        private final Resources mResources = new TestResources();
+        private final File mFilesDir;
+
+        TestContext(File filesDir) {
+            super(null);
+            mFilesDir = filesDir;
+        }
+
+        @Override
+        public Resources getResources() {
+            return mResources;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+    }
+
+    private HttpServer mServer;
+    private final List<String> mPosts = new CopyOnWriteArrayList<>();
+    private MeasurementSession mSession;
+    private MiBandSupport mSupport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/mibandpulse/sendPulse.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[512];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                if (exchange.getRequestMethod().equals("POST")) {
+                    mPosts.add(body.toString("US-ASCII"));
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+        File directory = File.createTempFile("session", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        directory.deleteOnExit();
+        mSession = new MeasurementSession(new TestContext(directory));
+        // no band connected, the measurement commands are skipped
+        mSupport = new MiBandSupport();
+    }
+
+    @After
+    public void tearDown() {
+        mSession.close();
+        mServer.stop(0);
+    }
+
+    private String getServerAddress() {
+        return "127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    private void publish(long timestamp, int... values) throws InterruptedException {
+        long published = mSession.getSampleBus().getPublishedCount();
+        for (int i = 0; i < values.length; i++) {
+            mSession.getSampleBus().publish(timestamp + i * 1000, values[i], 0);
+        }
+        // the consumers take them on their own threads
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mSession.getSampleBus().getMaxLag() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(published + values.length, mSession.getSampleBus().getPublishedCount());
+        assertEquals(0, mSession.getSampleBus().getMaxLag());
+    }
+
+    private void awaitPosts(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mPosts.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mPosts.size());
+    }
+
+    private static int countKeepAliveThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("HR Keep-Alive") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void restart_sendsOpenWindowUnderPreviousSimulation() throws InterruptedException {
+        long minute = System.currentTimeMillis() / 60000 * 60000;
+        mSession.start(mSupport, getServerAddress(), "1", PulseAggregator.Resolution.MINUTE);
+        publish(minute, 70, 80, 90);
+
+        mSession.start(mSupport, getServerAddress(), "2", PulseAggregator.Resolution.MINUTE);
+        publish(minute + 10000, 100);
+        mSession.stop();
+        awaitPosts(2);
+
+        // the first window was flushed before the simulation changed, the second by stop()
+        assertTrue(mPosts.get(0), mPosts.get(0).startsWith("idSimulation=1&"));
+        assertTrue(mPosts.get(0), mPosts.get(0).contains("&value%5B%5D=80"));
+        assertTrue(mPosts.get(0), mPosts.get(0).contains("&count%5B%5D=3"));
+        assertTrue(mPosts.get(1), mPosts.get(1).startsWith("idSimulation=2&"));
+        assertTrue(mPosts.get(1), mPosts.get(1).contains("&value%5B%5D=100"));
+    }
+
+    @Test
+    public void measurements_areCountedWhileStatisticsAreLocked() throws InterruptedException {
+        int[] intervals = {1024, 1000};
+        long start = System.currentTimeMillis();
+        // as the UI does while it redraws
+        synchronized (mSession.getStatistics()) {
+            SampleBus bus = mSession.getSampleBus();
+            bus.publish(start, 60, 0, intervals, intervals.length, true);
+            bus.publish(start + 1000, 0, SampleBus.FLAG_NO_CONTACT, intervals, 0, false);
+            bus.publish(start + 2000, 62, 0, intervals, intervals.length, true);
+            // the callback's publishing doesn't wait for the lock, the other consumers go on
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mSession.getSamples().getNextSequence() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, mSession.getSamples().getNextSequence());
+            assertEquals(0, mSession.getStatistics().getCount());
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mSession.getSampleBus().getMaxLag() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mSession.getStatistics().getCount());
+        assertEquals(4, mSession.getHrv().getIntervalCount());
+    }
+
+    @Test
+    public void restart_stopsKeepAliveOfPreviousMeasurement() throws InterruptedException {
+        mSession.start(mSupport, getServerAddress(), "1", PulseAggregator.Resolution.NONE);
+        assertEquals(1, countKeepAliveThreads());
+
+        mSession.start(mSupport, getServerAddress(), "2", PulseAggregator.Resolution.NONE);
+        // shutdownNow interrupts the previous thread, give it a moment to finish
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (countKeepAliveThreads() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, countKeepAliveThreads());
+        assertEquals("2", mSession.getSimulationId());
+
+        mSession.stop();
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (countKeepAliveThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, countKeepAliveThreads());
+        assertFalse(mSession.isRunning());
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.miband.Device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhaseTimerTest {
+    private static void stampConnection(PhaseTimer timer) {
+        timer.stamp(PhaseTimer.Milestone.DEVICE_SELECTED);
+        timer.stamp(PhaseTimer.Milestone.SERVICES_DISCOVERED);
+        timer.stamp(PhaseTimer.Milestone.AUTH_CCCD_WRITTEN);
+        timer.stamp(PhaseTimer.Milestone.MEASUREMENT_STARTED);
+        timer.stamp(PhaseTimer.Milestone.HEART_RATE_CCCD_WRITTEN);
+        timer.stamp(PhaseTimer.Milestone.FIRST_SAMPLE);
+    }
+
+    @Test
+    public void session_endsWithFirstKeepAlive() {
+        PhaseTimer timer = new PhaseTimer();
+        stampConnection(timer);
+        assertTrue(timer.getSummary().startsWith("sessions 0\n"));
+        assertEquals(1, timer.getTotal().getCount());
+
+        timer.stamp(PhaseTimer.Milestone.FIRST_KEEPALIVE);
+        // later pings are not part of a session
+        timer.stamp(PhaseTimer.Milestone.FIRST_KEEPALIVE);
+
+        assertTrue(timer.getSummary().startsWith("sessions 1\n"));
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.AUTH_CCCD_WRITTEN).getCount());
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.HEART_RATE_CCCD_WRITTEN).getCount());
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.FIRST_KEEPALIVE).getCount());
+    }
+
+    @Test
+    public void sessionWithoutKeepAlive_endsWhenNextOneStarts() {
+        PhaseTimer timer = new PhaseTimer();
+        stampConnection(timer);
+        timer.stamp(PhaseTimer.Milestone.CONNECTING);
+        timer.stamp(PhaseTimer.Milestone.FIRST_SAMPLE);
+        timer.stamp(PhaseTimer.Milestone.FIRST_KEEPALIVE);
+
+        assertTrue(timer.getSummary().startsWith("sessions 2\n"));
+        assertEquals(2, timer.getTotal().getCount());
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.FIRST_KEEPALIVE).getCount());
+    }
+
+    @Test
+    public void replay_readsSessionWithNewMilestones() {
+        PhaseTimer timer = new PhaseTimer();
+        assertTrue(timer.replay("1000,complete,DEVICE_SELECTED=0,AUTH_CCCD_WRITTEN=120,FIRST_SAMPLE=900,FIRST_KEEPALIVE=8900"));
+
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.AUTH_CCCD_WRITTEN).getCount());
+        assertEquals(1, timer.getHistogram(PhaseTimer.Milestone.FIRST_KEEPALIVE).getCount());
+        assertEquals(1, timer.getTotal().getCount());
+    }
+}
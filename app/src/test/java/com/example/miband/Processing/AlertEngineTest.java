@@ -0,0 +1,116 @@
+package com.example.miband.Processing;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AlertEngineTest {
+    private final List<String> mEvents = new ArrayList<>();
+
+    private AlertEngine createEngine() {
+        AlertEngine engine = new AlertEngine();
+        engine.addListener(new AlertEngine.Listener() {
+            @Override
+            public void onAlert(AlertRule rule, long timestamp, int value, boolean raised) {
+                mEvents.add(rule.getName() + (raised ? " raised at " : " cleared at ") + timestamp);
+            }
+        });
+        return engine;
+    }
+
+    @Test
+    public void above_raisesAfterDuration() {
+        AlertEngine engine = createEngine();
+        engine.addRule(AlertRule.above("high", 170, 30000));
+
+        for (int second = 0; second <= 40; second++) {
+            engine.evaluate(second * 1000L, 175);
+        }
+        engine.evaluate(41000, 160);
+        engine.evaluate(42000, 175);
+
+        assertEquals(2, mEvents.size());
+        assertEquals("high raised at 30000", mEvents.get(0));
+        assertEquals("high cleared at 41000", mEvents.get(1));
+    }
+
+    @Test
+    public void above_restartsDurationAfterDip() {
+        AlertEngine engine = createEngine();
+        engine.addRule(AlertRule.above("high", 170, 30000));
+
+        for (int second = 0; second < 20; second++) {
+            engine.evaluate(second * 1000L, 175);
+        }
+        engine.evaluate(20000, 165);
+        for (int second = 21; second < 50; second++) {
+            engine.evaluate(second * 1000L, 175);
+        }
+
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void rising_followsSlope() {
+        AlertEngine engine = createEngine();
+        engine.addRule(AlertRule.rising("rise", 30, 60000));
+
+        long timestamp = 0;
+        // steady, then +1 bpm per second (60 bpm per minute), then steady again
+        for (int i = 0; i < 120; i++, timestamp += 1000) {
+            engine.evaluate(timestamp, 70 + i % 2);
+        }
+        assertTrue(mEvents.isEmpty());
+        for (int i = 0; i < 60; i++, timestamp += 1000) {
+            engine.evaluate(timestamp, 70 + i);
+        }
+        assertEquals(1, mEvents.size());
+        assertTrue(mEvents.get(0).startsWith("rise raised"));
+        for (int i = 0; i < 120; i++, timestamp += 1000) {
+            engine.evaluate(timestamp, 130);
+        }
+        assertEquals(2, mEvents.size());
+        assertTrue(mEvents.get(1).startsWith("rise cleared"));
+    }
+
+    @Ignore("benchmark, timings depend on the machine, run by hand")
+    @Test
+    public void evaluate_benchmarkWithFiftyRules() {
+        AlertEngine engine = createEngine();
+        for (int i = 0; i < 50; i++) {
+            switch (i % 4) {
+                case 0:
+                    engine.addRule(AlertRule.above("above " + i, 150 + i, 5000 + i * 1000));
+                    break;
+                case 1:
+                    engine.addRule(AlertRule.below("below " + i, 40 + i, 5000 + i * 1000));
+                    break;
+                case 2:
+                    engine.addRule(AlertRule.rising("rising " + i, 20 + i, 30000 + i * 1000));
+                    break;
+                default:
+                    engine.addRule(AlertRule.falling("falling " + i, 20 + i, 30000 + i * 1000));
+                    break;
+            }
+        }
+
+        int samples = 1000000;
+        long timestamp = 1571400000000L;
+        for (int i = 0; i < samples / 10; i++) {
+            engine.evaluate(timestamp += 1000, 60 + (i / 30) % 140);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            engine.evaluate(timestamp += 1000, 60 + (i / 30) % 140);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("AlertEngine: " + (elapsed / samples) + " ns/sample for 50 rules, "
+                + engine.getAlertsRaised() + " alerts");
+        assertTrue(elapsed / samples < 100000);
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.miband.Processing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArtifactFilterTest {
+    @Test
+    public void isArtifact_rejectsSpikesInSteadyPulse() {
+        ArtifactFilter filter = new ArtifactFilter();
+        long timestamp = 1571400000000L;
+        int[] values = {72, 73, 72, 74, 73, 150, 73, 72, 35, 74, 73};
+        boolean[] expected = {false, false, false, false, false, true, false, false, true, false, false};
+
+        for (int i = 0; i < values.length; i++) {
+            timestamp += 1000;
+            assertEquals("sample " + i, expected[i], filter.isArtifact(timestamp, values[i]));
+        }
+        assertEquals(values.length, filter.getRawCount());
+        assertEquals(2, filter.getArtifactCount());
+        assertEquals(values.length - 2, filter.getAcceptedCount());
+    }
+
+    @Test
+    public void isArtifact_followsGradualChange() {
+        ArtifactFilter filter = new ArtifactFilter();
+        long timestamp = 1571400000000L;
+        // exercise: +3 bpm per second up to 160 and back
+        for (int value = 70; value <= 160; value += 3) {
+            timestamp += 1000;
+            assertFalse("rising " + value, filter.isArtifact(timestamp, value));
+        }
+        for (int value = 160; value >= 70; value -= 3) {
+            timestamp += 1000;
+            assertFalse("falling " + value, filter.isArtifact(timestamp, value));
+        }
+    }
+
+    @Test
+    public void isArtifact_rejectsOutOfRangeAndFastChanges() {
+        ArtifactFilter filter = new ArtifactFilter();
+        assertTrue(filter.isArtifact(1000, 250));
+        assertTrue(filter.isArtifact(2000, 10));
+        assertFalse(filter.isArtifact(3000, 70));
+        // +40 bpm within a second is too fast, even before the window is filled
+        assertTrue(filter.isArtifact(4000, 110));
+        assertEquals(2, filter.getRangeArtifactCount());
+        assertEquals(1, filter.getRateArtifactCount());
+    }
+
+    @Test
+    public void isArtifact_matchesHampelReference() {
+        Random random = new Random(17);
+        int windowSize = 9;
+        double threshold = 2.5;
+        ArtifactFilter filter = new ArtifactFilter(windowSize, threshold, Integer.MAX_VALUE / 1000);
+        int[] window = new int[windowSize];
+        int size = 0;
+
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(10) == 0 ? 30 + random.nextInt(190) : 70 + random.nextInt(15);
+            System.arraycopy(window, 1, window, 0, windowSize - 1);
+            window[windowSize - 1] = value;
+            size = Math.min(windowSize, size + 1);
+
+            int[] sorted = Arrays.copyOfRange(window, windowSize - size, windowSize);
+            Arrays.sort(sorted);
+            double median = median(sorted);
+            double[] deviations = new double[size];
+            for (int j = 0; j < size; j++) {
+                deviations[j] = Math.abs(sorted[j] - median);
+            }
+            Arrays.sort(deviations);
+            double mad = size % 2 == 1 ? deviations[size / 2] : (deviations[size / 2 - 1] + deviations[size / 2]) / 2;
+            double deviation = Math.abs(value - median);
+            boolean expected = size >= 3 && deviation > 5 && deviation > threshold * 1.4826 * mad;
+
+            assertEquals("sample " + i, expected, filter.isArtifact(i * 1000L, value));
+        }
+    }
+
+    private static double median(int[] sorted) {
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.miband.Processing;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HrvCalculatorTest {
+    @Test
+    public void values_matchRecomputationOverWindow() {
+        Random random = new Random(3);
+        long window = 60000;
+        HrvCalculator calculator = new HrvCalculator(window);
+        // intervals of the current chain, null marks a gap
+        List<Integer> history = new ArrayList<>();
+
+        for (int i = 0; i < 20000; i++) {
+            int choice = random.nextInt(100);
+            if (choice == 0) {
+                calculator.addGap();
+                history.add(null);
+            } else if (choice == 1) {
+                calculator.addInterval(100); // artifact
+                history.add(null);
+            } else {
+                int interval = 600 + random.nextInt(500);
+                calculator.addInterval(interval);
+                history.add(interval);
+            }
+
+            if (i % 97 == 0) {
+                check(calculator, history, window * 1024 / 1000);
+            }
+        }
+    }
+
+    private static void check(HrvCalculator calculator, List<Integer> history, long window) {
+        // the window keeps the newest intervals as long as the ones after the oldest cover it
+        List<Integer> intervals = new ArrayList<>();
+        List<Boolean> connected = new ArrayList<>();
+        long sum = 0;
+        boolean gapAfter = false;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            Integer interval = history.get(i);
+            if (interval == null) {
+                gapAfter = true;
+                continue;
+            }
+            if (!intervals.isEmpty() && sum >= window) {
+                break;
+            }
+            if (!intervals.isEmpty()) {
+                connected.add(0, !gapAfter);
+            }
+            intervals.add(0, interval);
+            sum += interval;
+            gapAfter = false;
+        }
+        if (intervals.isEmpty()) {
+            assertEquals(0, calculator.getIntervalCount());
+            return;
+        }
+
+        double mean = sum / (double) intervals.size();
+        double squares = 0;
+        for (int interval : intervals) {
+            squares += (interval - mean) * (interval - mean);
+        }
+        double sdnn = intervals.size() > 1 ? Math.sqrt(squares / (intervals.size() - 1)) * 1000 / 1024 : 0;
+
+        int differences = 0;
+        int nn50 = 0;
+        double differenceSquares = 0;
+        for (int i = 1; i < intervals.size(); i++) {
+            if (!connected.get(i - 1)) {
+                continue;
+            }
+            int difference = intervals.get(i) - intervals.get(i - 1);
+            differences++;
+            differenceSquares += (double) difference * difference;
+            if (Math.abs(difference) * 1000.0 / 1024 > 50) {
+                nn50++;
+            }
+        }
+        double rmssd = differences > 0 ? Math.sqrt(differenceSquares / differences) * 1000 / 1024 : 0;
+        double pnn50 = differences > 0 ? 100.0 * nn50 / differences : 0;
+
+        assertEquals(intervals.size(), calculator.getIntervalCount());
+        assertEquals(sdnn, calculator.getSdnn(), 1e-6);
+        assertEquals(rmssd, calculator.getRmssd(), 1e-6);
+        assertEquals(pnn50, calculator.getPnn50(), 1e-6);
+    }
+
+    @Ignore("benchmark, timings depend on the machine, run by hand")
+    @Test
+    public void addInterval_benchmark() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return; // allocation counting is not supported by this JVM
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+
+        int[] intervals = new int[4096];
+        Random random = new Random(5);
+        for (int i = 0; i < intervals.length; i++) {
+            intervals[i] = 700 + random.nextInt(300);
+        }
+
+        for (long window : new long[]{30000, 60000, 120000, 300000}) {
+            HrvCalculator calculator = new HrvCalculator(window);
+            double checksum = 0;
+            // warm up, lets the JIT compile the calculator
+            for (int i = 0; i < 200000; i++) {
+                calculator.addInterval(intervals[i & 4095]);
+            }
+
+            int rounds = 1000000;
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                calculator.addInterval(intervals[i & 4095]);
+                if ((i & 63) == 0) {
+                    checksum += calculator.getRmssd() + calculator.getSdnn() + calculator.getPnn50();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+            System.out.println("HrvCalculator window " + window / 1000 + " s: " + (elapsed / rounds)
+                    + " ns/interval, " + calculator.getIntervalCount() + " intervals (" + (long) checksum + ")");
+            double bytesPerInterval = (double) allocated / rounds;
+            assertTrue("allocated " + bytesPerInterval + " bytes per interval", bytesPerInterval < 0.1);
+        }
+    }
+}
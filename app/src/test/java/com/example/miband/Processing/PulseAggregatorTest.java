@@ -0,0 +1,76 @@
+package com.example.miband.Processing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PulseAggregatorTest {
+    private final List<long[]> mAggregates = new ArrayList<>();
+
+    private final PulseAggregator mAggregator = new PulseAggregator(new PulseAggregator.Sink() {
+        @Override
+        public void onAggregate(long timestamp, int sum, int count, int min, int max, int last, int flags) {
+            mAggregates.add(new long[]{timestamp, sum, count, min, max, last, flags});
+        }
+    });
+
+    @Test
+    public void add_rollsUpMinutes() {
+        mAggregator.setResolution(PulseAggregator.Resolution.MINUTE);
+        long start = 1571400000000L; // a full minute
+        mAggregator.add(start + 1000, 70, 0);
+        mAggregator.add(start + 30000, 90, 0);
+        mAggregator.add(start + 59999, 80, 0);
+        assertTrue(mAggregates.isEmpty());
+
+        mAggregator.add(start + 60000, 100, 0);
+        assertEquals(1, mAggregates.size());
+        assertArrayEquals(new long[]{start, 240, 3, 70, 90, 80, 0}, mAggregates.get(0));
+
+        mAggregator.flush();
+        assertEquals(2, mAggregates.size());
+        assertArrayEquals(new long[]{start + 60000, 100, 1, 100, 100, 100, 0}, mAggregates.get(1));
+    }
+
+    @Test
+    public void add_passesArtifactsThrough() {
+        mAggregator.setResolution(PulseAggregator.Resolution.SECOND);
+        mAggregator.add(1000, 70, 0);
+        mAggregator.add(1500, 160, 0x02);
+        mAggregator.add(1700, 72, 0);
+        mAggregator.flush();
+
+        assertEquals(2, mAggregates.size());
+        assertArrayEquals(new long[]{1500, 160, 1, 160, 160, 160, 0x02}, mAggregates.get(0));
+        assertArrayEquals(new long[]{1000, 142, 2, 70, 72, 72, 0}, mAggregates.get(1));
+    }
+
+    @Test
+    public void add_withoutResolutionForwardsEverySample() {
+        mAggregator.add(1000, 70, 0);
+        mAggregator.add(1100, 71, 0);
+
+        assertEquals(2, mAggregates.size());
+        assertEquals(2, mAggregator.getAggregatesOut());
+    }
+
+    @Test
+    public void add_threeHourRunShrinksToMinutes() {
+        mAggregator.setResolution(PulseAggregator.Resolution.MINUTE);
+        long timestamp = 1571400000000L;
+        for (int i = 0; i < 3 * 60 * 60; i++) {
+            mAggregator.add(timestamp + i * 1000L, 60 + i % 40, 0);
+        }
+        mAggregator.flush();
+
+        assertEquals(180, mAggregates.size());
+        long samples = 0;
+        for (long[] aggregate : mAggregates) {
+            samples += aggregate[2];
+        }
+        assertEquals(3 * 60 * 60, samples);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.miband.Processing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RollingStatisticsTest {
+    @Test
+    public void values_matchRecomputation() {
+        Random random = new Random(11);
+        long window = 60000;
+        int capacity = 64;
+        RollingStatistics statistics = new RollingStatistics(window, capacity);
+
+        int total = 5000;
+        long[] timestamps = new long[total];
+        int[] values = new int[total];
+        long timestamp = 1571400000000L;
+        for (int i = 0; i < total; i++) {
+            // mostly 1 Hz, with bursts and gaps
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(20000) : random.nextInt(1500);
+            timestamps[i] = timestamp;
+            values[i] = 40 + random.nextInt(160);
+            statistics.add(timestamp, values[i]);
+
+            int first = i;
+            while (first > 0 && i - first + 1 < capacity && timestamp - timestamps[first - 1] < window) {
+                first--;
+            }
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long sum = 0;
+            for (int j = first; j <= i; j++) {
+                min = Math.min(min, values[j]);
+                max = Math.max(max, values[j]);
+                sum += values[j];
+            }
+            assertEquals(i - first + 1, statistics.getWindowCount());
+            assertEquals(min, statistics.getWindowMin());
+            assertEquals(max, statistics.getWindowMax());
+            assertEquals((double) sum / (i - first + 1), statistics.getWindowMean(), 1e-9);
+        }
+
+        int[] sorted = Arrays.copyOf(values, total);
+        Arrays.sort(sorted);
+        double mean = 0;
+        for (int value : values) {
+            mean += value;
+        }
+        mean /= total;
+        double squares = 0;
+        for (int value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+
+        assertEquals(total, statistics.getCount());
+        assertEquals(sorted[0], statistics.getMin());
+        assertEquals(sorted[total - 1], statistics.getMax());
+        assertEquals(mean, statistics.getMean(), 1e-9);
+        assertEquals(Math.sqrt(squares / (total - 1)), statistics.getStandardDeviation(), 1e-9);
+        for (int percentile : new int[]{1, 50, 95, 99, 100}) {
+            int rank = (int) Math.ceil(total * percentile / 100.0);
+            assertEquals("p" + percentile, sorted[rank - 1], statistics.getPercentile(percentile));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.miband.Tasks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.pusher.java_websocket.WebSocket;
+import com.pusher.java_websocket.handshake.ClientHandshake;
+import com.pusher.java_websocket.server.WebSocketServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LivePulsePublisherTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Speaks just enough of the Pusher protocol to accept a connection, subscribe private
+     * channels and receive client events.
+     */
+    static class StandInServer extends WebSocketServer {
+        final AtomicInteger mConnections = new AtomicInteger();
+        final List<String> mSubscriptions = new CopyOnWriteArrayList<>();
+        final List<Integer> mValues = new CopyOnWriteArrayList<>();
+        // subscriptions answered only by answerSubscription()
+        volatile boolean mHoldSubscriptions;
+        volatile WebSocket mLastConnection;
+
+        StandInServer(int port) {
+            super(new InetSocketAddress("127.0.0.1", port));
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            mConnections.incrementAndGet();
+            conn.send("{\"event\":\"pusher:connection_established\",\"data\":\"{\\\"socket_id\\\":\\\"1.1\\\",\\\"activity_timeout\\\":120}\"}");
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            JsonObject json = new JsonParser().parse(message).getAsJsonObject();
+            String event = json.get("event").getAsString();
+            JsonObject data = getData(json);
+            if (event.equals("pusher:subscribe")) {
+                String channel = data.get("channel").getAsString();
+                mLastConnection = conn;
+                mSubscriptions.add(channel);
+                if (!mHoldSubscriptions) {
+                    answerSubscription(channel);
+                }
+            } else if (event.equals(LivePulsePublisher.EVENT_PULSE)) {
+                JsonArray values = data.getAsJsonArray("values");
+                for (int i = 0; i < values.size(); i++) {
+                    mValues.add(values.get(i).getAsInt());
+                }
+            }
+        }
+
+        void answerSubscription(String channel) {
+            mLastConnection.send("{\"event\":\"pusher_internal:subscription_succeeded\",\"channel\":\"" + channel + "\",\"data\":\"{}\"}");
+        }
+
+        private static JsonObject getData(JsonObject json) {
+            JsonElement data = json.get("data");
+            if (data == null) {
+                return new JsonObject();
+            }
+            if (data.isJsonPrimitive()) {
+                return new JsonParser().parse(data.getAsString()).getAsJsonObject();
+            }
+            return data.getAsJsonObject();
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+    }
+
+    private StandInServer mServer;
+    private HttpServer mAuthServer;
+    private LivePulsePublisher mPublisher;
+
+    @Before
+    public void setUp() throws Exception {
+        int port = findFreePort();
+        mServer = new StandInServer(port);
+        mServer.start();
+
+        // the stand-in doesn't check the signature
+        mAuthServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mAuthServer.createContext("/auth", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                }
+                byte[] body = "{\"auth\":\"key:signature\"}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mAuthServer.start();
+
+        mPublisher = new LivePulsePublisher("key", "127.0.0.1", port,
+                "http://127.0.0.1:" + mAuthServer.getAddress().getPort() + "/auth");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPublisher.close();
+        mAuthServer.stop(0);
+        mServer.stop();
+    }
+
+    private static int findFreePort() throws IOException {
+        java.net.ServerSocket socket = new java.net.ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void awaitSubscription(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.mSubscriptions.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.mSubscriptions.size());
+        // the subscription succeeded message may still be on its way back
+        while (!mPublisher.isSubscribed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mPublisher.isSubscribed());
+    }
+
+    private void awaitSubscriptionRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.mSubscriptions.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.mSubscriptions.size());
+    }
+
+    private void awaitDisconnect() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mServer.connections().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mServer.connections().isEmpty());
+    }
+
+    private void awaitValues(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.mValues.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.mValues.size());
+    }
+
+    @Test
+    public void start_keepsConnectionWhenSimulationChanges() throws InterruptedException {
+        mPublisher.start("1");
+        awaitSubscription(1);
+        mPublisher.start("2");
+        awaitSubscription(2);
+
+        assertEquals(1, mServer.mConnections.get());
+        assertEquals("private-simulation-2", mServer.mSubscriptions.get(1));
+    }
+
+    @Test
+    public void start_ignoresLateSubscriptionOfPreviousChannel() throws InterruptedException {
+        mServer.mHoldSubscriptions = true;
+        mPublisher.start("1");
+        awaitSubscriptionRequests(1);
+        mPublisher.start("2");
+        awaitSubscriptionRequests(2);
+
+        // the client drops answers for channels it already unsubscribed, unless the answer was
+        // being dispatched when the next simulation started
+        mPublisher.onSubscribed("private-simulation-1");
+        assertFalse(mPublisher.isSubscribed());
+        mPublisher.publish(System.currentTimeMillis(), 60);
+        assertEquals(1, mPublisher.getSamplesDropped());
+
+        mServer.answerSubscription("private-simulation-2");
+        awaitSubscription(2);
+    }
+
+    @Test
+    public void start_connectsAgainAfterStop() throws InterruptedException {
+        mPublisher.start("1");
+        awaitSubscription(1);
+        mPublisher.stop();
+        // the connection is closed in the background
+        awaitDisconnect();
+        mPublisher.start("1");
+        awaitSubscription(2);
+
+        assertEquals(2, mServer.mConnections.get());
+    }
+
+    @Test
+    public void publish_keepsSampleWhenBatchIsFull() throws InterruptedException {
+        mPublisher.start("1");
+        awaitSubscription(1);
+
+        // several full batches within one batch window
+        int samples = 200;
+        for (int i = 0; i < samples; i++) {
+            mPublisher.publish(System.currentTimeMillis(), i);
+        }
+        awaitValues(samples);
+
+        for (int i = 0; i < samples; i++) {
+            assertEquals(Integer.valueOf(i), mServer.mValues.get(i));
+        }
+        assertEquals(0, mPublisher.getSamplesDropped());
+        assertEquals(samples, mPublisher.getSamplesSent());
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.miband.Tasks;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class PulseBatchCodecTest {
+    @Test
+    public void decode_returnsEncodedSamples() throws IOException {
+        PulseBatch batch = new PulseBatch(4);
+        batch.clear(42);
+        batch.add(1571400000000L, (short) 72, (short) 0);
+        batch.add(1571400001012L, (short) 180, (short) 0);
+        batch.add(1571400000990L, (short) 255, (short) 0); // out of order timestamp
+        batch.add(1571400061000L, (short) 40, (short) 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+        byte[] data = out.toByteArray();
+        PulseBatch decoded = PulseBatchCodec.decode(data, 0, data.length);
+
+        assertEquals(42, decoded.getSimulationId());
+        assertEquals(batch.size(), decoded.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(batch.getValue(i), decoded.getValue(i));
+        }
+    }
+
+    @Test
+    public void encode_usesAboutThreeBytesPerSampleAtOneHertz() {
+        PulseBatch batch = new PulseBatch(1000);
+        batch.clear(7);
+        long timestamp = 1571400000000L;
+        for (int i = 0; i < 1000; i++) {
+            timestamp += 950 + (i % 100);
+            batch.add(timestamp, (short) (60 + i % 80), (short) 0);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+
+        assertTrue("encoded size: " + out.size(), out.size() <= 3 * 1000 + 16);
+    }
+
+    @Test
+    public void encode_isSmallerThanFormEncoding() {
+        // 1,000 samples at about 1 Hz, in batches of the uploader's size
+        PulseFormEncoder formEncoder = new PulseFormEncoder(TimeZone.getTimeZone("Europe/Warsaw"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(50 * 64);
+        long binaryBytes = 0;
+        long formBytes = 0;
+        long timestamp = 1571400000000L;
+        for (int b = 0; b < 20; b++) {
+            PulseBatch batch = new PulseBatch(50);
+            batch.clear(7);
+            for (int i = 0; i < 50; i++) {
+                timestamp += 950 + (i % 100);
+                batch.add(timestamp, (short) (60 + (b * 50 + i) % 80), (short) 0);
+            }
+            out.reset();
+            PulseBatchCodec.encode(batch, out);
+            binaryBytes += out.size();
+            out.reset();
+            formEncoder.encode(batch, out);
+            formBytes += out.size();
+        }
+
+        assertTrue("binary " + binaryBytes + " bytes, form " + formBytes + " bytes", binaryBytes * 10 < formBytes);
+    }
+
+    @Test
+    public void decode_returnsHrv() throws IOException {
+        PulseBatch batch = new PulseBatch(1);
+        batch.clear(3);
+        batch.add(1571400000000L, (short) 64, (short) 0);
+        batch.setHrv(4217, 5102, 1250);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+        byte[] data = out.toByteArray();
+        PulseBatch decoded = PulseBatchCodec.decode(data, 0, data.length);
+
+        assertTrue(decoded.hasHrv());
+        assertEquals(4217, decoded.getRmssd());
+        assertEquals(5102, decoded.getSdnn());
+        assertEquals(1250, decoded.getPnn50());
+    }
+
+    @Test
+    public void decode_returnsArtifactFlags() throws IOException {
+        PulseBatch batch = new PulseBatch(3);
+        batch.clear(3);
+        batch.add(1571400000000L, (short) 64, (short) 0);
+        batch.add(1571400001000L, (short) 150, (short) PulseBatch.FLAG_ARTIFACT);
+        batch.add(1571400002000L, (short) 65, (short) PulseBatch.FLAG_COALESCED);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+        byte[] data = out.toByteArray();
+        PulseBatch decoded = PulseBatchCodec.decode(data, 0, data.length);
+
+        assertEquals(0, decoded.getFlags(0));
+        assertEquals(PulseBatch.FLAG_ARTIFACT, decoded.getFlags(1));
+        assertEquals(0, decoded.getFlags(2));
+    }
+
+    @Test
+    public void decode_returnsAggregates() throws IOException {
+        PulseBatch batch = new PulseBatch(2);
+        batch.clear(3);
+        batch.add(1571400000000L, (short) 80, (short) 0, (short) 70, (short) 90, (short) 85, 60);
+        batch.add(1571400060000L, (short) 75, (short) 0, (short) 74, (short) 77, (short) 74, 58);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+        byte[] data = out.toByteArray();
+        PulseBatch decoded = PulseBatchCodec.decode(data, 0, data.length);
+
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.getValue(i), decoded.getValue(i));
+            assertEquals(batch.getMin(i), decoded.getMin(i));
+            assertEquals(batch.getMax(i), decoded.getMax(i));
+            assertEquals(batch.getLast(i), decoded.getLast(i));
+            assertEquals(batch.getCount(i), decoded.getCount(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsTruncatedData() throws IOException {
+        PulseBatch batch = new PulseBatch(2);
+        batch.clear(1);
+        batch.add(1000, (short) 60, (short) 0);
+        batch.add(2000, (short) 61, (short) 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PulseBatchCodec.encode(batch, out);
+        byte[] data = out.toByteArray();
+        PulseBatchCodec.decode(data, 0, data.length - 1);
+    }
+}
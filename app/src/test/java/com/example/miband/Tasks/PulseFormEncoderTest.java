@@ -0,0 +1,81 @@
+package com.example.miband.Tasks;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class PulseFormEncoderTest {
+    @Test
+    public void encode_matchesSimpleDateFormatAndUrlEncoder() throws Exception {
+        Random random = new Random(1);
+        for (String zone : new String[]{"UTC", "Europe/Warsaw", "America/St_Johns", "Pacific/Kiritimati"}) {
+            TimeZone timeZone = TimeZone.getTimeZone(zone);
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+            dateFormat.setTimeZone(timeZone);
+            PulseFormEncoder encoder = new PulseFormEncoder(timeZone);
+
+            PulseBatch batch = new PulseBatch(200);
+            batch.clear(123);
+            StringBuilder expected = new StringBuilder("idSimulation=123");
+            for (int i = 0; i < batch.getCapacity(); i++) {
+                long timestamp = (long) (random.nextDouble() * 4102444800000L);
+                short value = (short) random.nextInt(256);
+                batch.add(timestamp, value, (short) 0);
+                expected.append("&datetime%5B%5D=")
+                        .append(URLEncoder.encode(dateFormat.format(new Date(timestamp)), "UTF-8"))
+                        .append("&value%5B%5D=")
+                        .append(value);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(batch, out);
+            assertEquals(zone, expected.toString(), out.toString("US-ASCII"));
+        }
+    }
+
+    @Test
+    public void encode_doesNotAllocatePerSample() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return; // allocation counting is not supported by this JVM
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+
+        PulseFormEncoder encoder = new PulseFormEncoder(TimeZone.getTimeZone("Europe/Warsaw"));
+        PulseBatch batch = new PulseBatch(50);
+        batch.clear(7);
+        long timestamp = 1571400000000L;
+        for (int i = 0; i < batch.getCapacity(); i++) {
+            batch.add(timestamp + i * 1000, (short) (60 + i), (short) 0);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(batch.getCapacity() * 64);
+
+        // warm up, lets the JIT compile the encoder and the stream grow to its final size
+        for (int i = 0; i < 20000; i++) {
+            out.reset();
+            encoder.encode(batch, out);
+        }
+
+        int rounds = 1000;
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < rounds; i++) {
+            out.reset();
+            encoder.encode(batch, out);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        double bytesPerSample = (double) allocated / (rounds * batch.size());
+        assertTrue("allocated " + bytesPerSample + " bytes per sample", bytesPerSample < 0.1);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.miband.Tasks;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PulseOutboxTest {
+    @Test
+    public void peek_returnsAggregates() throws IOException {
+        File directory = createDirectory();
+        PulseOutbox outbox = new PulseOutbox(directory, "test");
+        outbox.append(5, 1000, 80, 0, 70, 90, 85, 60);
+        outbox.append(5, 2000, 72, PulseBatch.FLAG_ARTIFACT);
+
+        PulseBatch batch = new PulseBatch(10);
+        assertEquals(2, outbox.peek(batch, 10));
+        assertEquals(80, batch.getValue(0));
+        assertEquals(70, batch.getMin(0));
+        assertEquals(90, batch.getMax(0));
+        assertEquals(85, batch.getLast(0));
+        assertEquals(60, batch.getCount(0));
+        assertEquals(1, batch.getCount(1));
+        assertEquals(PulseBatch.FLAG_ARTIFACT, batch.getFlags(1));
+        outbox.close();
+    }
+
+    @Test
+    public void open_keepsPendingAggregates() throws IOException {
+        File directory = createDirectory();
+        PulseOutbox outbox = new PulseOutbox(directory, "test");
+        outbox.append(9, 1000, 60, 0);
+        outbox.append(9, 2000, 75, 0, 70, 80, 78, 12);
+        outbox.append(9, 3000, 62, 0);
+        outbox.acknowledge(1);
+        outbox.close();
+
+        outbox = new PulseOutbox(directory, "test");
+        assertEquals(2, outbox.getPendingCount());
+        PulseBatch batch = new PulseBatch(10);
+        assertEquals(2, outbox.peek(batch, 10));
+        assertEquals(9, batch.getSimulationId());
+        assertEquals(2000, batch.getTimestamp(0));
+        assertEquals(75, batch.getValue(0));
+        assertEquals(70, batch.getMin(0));
+        assertEquals(80, batch.getMax(0));
+        assertEquals(78, batch.getLast(0));
+        assertEquals(12, batch.getCount(0));
+        assertEquals(62, batch.getValue(1));
+        assertEquals(1, batch.getCount(1));
+        outbox.close();
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("outbox", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.miband.Tasks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static org.junit.Assert.*;
+
+public class PulseUploaderTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Records the requests it gets, accepts pulse batches in form encoding and, unless told
+     * otherwise, in the binary format.
+     */
+    static class StandInServer implements HttpHandler {
+        static class Request {
+            final String mMethod;
+            final String mPath;
+            final String mContentType;
+            final byte[] mBody;
+            final long mTime;
+
+            Request(String method, String path, String contentType, byte[] body, long time) {
+                mMethod = method;
+                mPath = path;
+                mContentType = contentType;
+                mBody = body;
+                mTime = time;
+            }
+        }
+
+        final HttpServer mServer;
+        final List<Request> mRequests = new CopyOnWriteArrayList<>();
+        // one client address per connection
+        final Set<String> mClients = new CopyOnWriteArraySet<>();
+        volatile int mStatus = 200;
+        volatile boolean mRejectBinary;
+
+        StandInServer() throws IOException {
+            mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            mServer.createContext("/mibandpulse/sendPulse.php", this);
+            mServer.createContext("/", this);
+            mServer.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/mibandpulse/sendPulse.php";
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[512];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            mRequests.add(new Request(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), contentType, body.toByteArray(), System.currentTimeMillis()));
+            mClients.add(exchange.getRemoteAddress().toString());
+
+            int status = mStatus;
+            if (mRejectBinary && PulseBatchCodec.CONTENT_TYPE.equals(contentType)) {
+                status = 415;
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        List<Request> getPosts() {
+            List<Request> posts = new CopyOnWriteArrayList<>();
+            for (Request request : mRequests) {
+                if (request.mMethod.equals("POST")) {
+                    posts.add(request);
+                }
+            }
+            return posts;
+        }
+
+        /**
+         * Returns the values of a form encoded batch.
+         */
+        static List<Integer> getValues(Request request) throws IOException {
+            List<Integer> values = new ArrayList<>();
+            for (String parameter : new String(request.mBody, "US-ASCII").split("&")) {
+                if (parameter.startsWith("value%5B%5D=")) {
+                    values.add(Integer.parseInt(parameter.substring("value%5B%5D=".length())));
+                }
+            }
+            return values;
+        }
+
+        void stop() {
+            mServer.stop(0);
+        }
+    }
+
+    private StandInServer mServer;
+    private File mDirectory;
+    private PulseUploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mDirectory = createDirectory();
+        mUploader = new PulseUploader(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        mUploader.close();
+        mServer.stop();
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("outbox", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private void addSamples(int count) {
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            mUploader.add(timestamp + i * 1000, 60 + i % 40);
+        }
+    }
+
+    private void awaitPosts(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getPosts().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.getPosts().size());
+    }
+
+    private void awaitWarmUp() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.mRequests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("HEAD", mServer.mRequests.get(0).mMethod);
+        assertEquals("/", mServer.mRequests.get(0).mPath);
+        // lets the upload thread go back to waiting for samples
+        Thread.sleep(100);
+    }
+
+    /**
+     * Closes the uploader and waits until its thread has released the outbox.
+     */
+    private void closeUploader() throws InterruptedException {
+        mUploader.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (isUploadThreadAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(isUploadThreadAlive());
+    }
+
+    private static boolean isUploadThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Pulse Uploader")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void awaitSamplesSent(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mUploader.getSamplesSent() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mUploader.getSamplesSent());
+    }
+
+    @Test
+    public void add_sendsFullBatchesRightAway() throws InterruptedException, IOException {
+        mUploader.start(mServer.getUrl(), "7");
+        awaitWarmUp();
+        long start = System.currentTimeMillis();
+        addSamples(120);
+        awaitSamplesSent(120);
+
+        // the backlog is sent without waiting for the batch delay
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        List<StandInServer.Request> posts = mServer.getPosts();
+        assertEquals(3, posts.size());
+        List<Integer> values = new ArrayList<>();
+        int[] sizes = {50, 50, 20};
+        for (int i = 0; i < posts.size(); i++) {
+            List<Integer> batch = StandInServer.getValues(posts.get(i));
+            assertEquals(sizes[i], batch.size());
+            values.addAll(batch);
+        }
+        for (int i = 0; i < 120; i++) {
+            assertEquals(Integer.valueOf(60 + i % 40), values.get(i));
+        }
+        assertEquals(3, mUploader.getBatchesSent());
+        assertEquals(0, mUploader.getQueueDepth());
+    }
+
+    @Test
+    public void add_sendsPartialBatchAfterDelay() throws InterruptedException {
+        mUploader.start(mServer.getUrl(), "7");
+        awaitWarmUp();
+        long start = System.currentTimeMillis();
+        addSamples(5);
+
+        Thread.sleep(1000);
+        assertEquals(0, mServer.getPosts().size());
+        awaitSamplesSent(5);
+        // the delay starts with the first sample
+        long delay = mServer.getPosts().get(0).mTime - start;
+        assertTrue("sent after " + delay + " ms", delay < 6000);
+        assertEquals(1, mServer.getPosts().size());
+    }
+
+    @Test
+    public void failedBatch_isRetriedWithGrowingDelay() throws InterruptedException, IOException {
+        mServer.mStatus = 500;
+        mUploader.start(mServer.getUrl(), "7");
+        awaitWarmUp();
+        addSamples(50);
+        awaitPosts(2);
+        mServer.mStatus = 200;
+        awaitSamplesSent(50);
+
+        List<StandInServer.Request> posts = mServer.getPosts();
+        assertEquals(3, posts.size());
+        // 1 s after the first failure, 2 s after the second
+        long firstDelay = posts.get(1).mTime - posts.get(0).mTime;
+        long secondDelay = posts.get(2).mTime - posts.get(1).mTime;
+        assertTrue("first retry after " + firstDelay + " ms", firstDelay >= 900);
+        assertTrue("second retry after " + secondDelay + " ms", secondDelay >= 1900);
+        assertEquals(StandInServer.getValues(posts.get(0)), StandInServer.getValues(posts.get(2)));
+        assertEquals(2, mUploader.getFailedBatches());
+        assertEquals(1, mUploader.getBatchesSent());
+    }
+
+    @Test
+    public void pendingSamples_areSentOnceAfterRestart() throws InterruptedException, IOException {
+        mServer.mStatus = 500;
+        mUploader.start(mServer.getUrl(), "7");
+        awaitWarmUp();
+        addSamples(50);
+        awaitPosts(1);
+        closeUploader();
+
+        mServer.mStatus = 200;
+        mUploader = new PulseUploader(mDirectory);
+        assertEquals(50, mUploader.getQueueDepth());
+        mUploader.start(mServer.getUrl(), "7");
+        awaitSamplesSent(50);
+        assertEquals(StandInServer.getValues(mServer.getPosts().get(0)), StandInServer.getValues(mServer.getPosts().get(1)));
+        closeUploader();
+
+        // acknowledged, so nothing is left for the next start
+        mUploader = new PulseUploader(mDirectory);
+        assertEquals(0, mUploader.getQueueDepth());
+    }
+
+    @Test
+    public void binaryFormat_fallsBackToFormEncodingWithoutRetryDelay() throws InterruptedException {
+        mServer.mRejectBinary = true;
+        mUploader.setBinaryFormat(true);
+        mUploader.start(mServer.getUrl(), "7");
+        addSamples(50);
+        awaitSamplesSent(50);
+
+        List<StandInServer.Request> posts = mServer.getPosts();
+        assertEquals(2, posts.size());
+        assertEquals(PulseBatchCodec.CONTENT_TYPE, posts.get(0).mContentType);
+        assertEquals("application/x-www-form-urlencoded", posts.get(1).mContentType);
+        // the batch is sent again right away, not after the retry delay of a failed batch
+        assertTrue(posts.get(1).mTime - posts.get(0).mTime < 500);
+        assertEquals(0, mUploader.getFailedBatches());
+        assertEquals(1, mUploader.getBatchesSent());
+        assertFalse(mUploader.isBinaryFormat());
+    }
+
+    @Test
+    public void binaryFormat_isUsedWhenAccepted() throws InterruptedException, IOException {
+        mUploader.setBinaryFormat(true);
+        mUploader.start(mServer.getUrl(), "7");
+        addSamples(50);
+        awaitSamplesSent(50);
+
+        List<StandInServer.Request> posts = mServer.getPosts();
+        assertEquals(1, posts.size());
+        assertEquals(PulseBatchCodec.CONTENT_TYPE, posts.get(0).mContentType);
+        assertEquals(50, PulseBatchCodec.decode(posts.get(0).mBody, 0, posts.get(0).mBody.length).size());
+        assertTrue(mUploader.isBinaryFormat());
+    }
+
+    @Test
+    public void batches_shareOneConnectionWithWarmUp() throws InterruptedException {
+        mUploader.start(mServer.getUrl(), "7");
+        for (int i = 1; i <= 3; i++) {
+            addSamples(50);
+            awaitSamplesSent(50 * i);
+        }
+
+        // not to the upload script, which would run for a HEAD request as well
+        assertEquals("HEAD", mServer.mRequests.get(0).mMethod);
+        assertEquals("/", mServer.mRequests.get(0).mPath);
+        assertEquals(3, mServer.getPosts().size());
+        for (StandInServer.Request post : mServer.getPosts()) {
+            assertEquals("/mibandpulse/sendPulse.php", post.mPath);
+        }
+        assertEquals(1, mServer.mClients.size());
+    }
+}
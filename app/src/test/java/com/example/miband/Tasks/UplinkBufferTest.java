@@ -0,0 +1,189 @@
+package com.example.miband.Tasks;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UplinkBufferTest {
+    static class Sample {
+        final long mTimestamp;
+        final int mValue;
+        final int mFlags;
+        final int mMin;
+        final int mMax;
+        final int mLast;
+        final int mCount;
+
+        Sample(long timestamp, int value, int flags, int min, int max, int last, int count) {
+            mTimestamp = timestamp;
+            mValue = value;
+            mFlags = flags;
+            mMin = min;
+            mMax = max;
+            mLast = last;
+            mCount = count;
+        }
+    }
+
+    static class ListSink implements UplinkBuffer.Sink {
+        final List<Sample> mSamples = new ArrayList<>();
+
+        @Override
+        public void accept(long timestamp, int value, int flags, int min, int max, int last, int count) {
+            mSamples.add(new Sample(timestamp, value, flags, min, max, last, count));
+        }
+    }
+
+    private static List<Sample> drain(UplinkBuffer buffer) throws IOException {
+        ListSink sink = new ListSink();
+        buffer.drainTo(sink, Integer.MAX_VALUE);
+        return sink.mSamples;
+    }
+
+    @Test
+    public void block_dropsSampleAfterTimeout() {
+        UplinkBuffer buffer = new UplinkBuffer(2);
+        buffer.setPolicy(UplinkBuffer.Policy.BLOCK);
+        buffer.setBlockTimeout(50);
+        assertTrue(buffer.offer(1000, 60, 0));
+        assertTrue(buffer.offer(2000, 61, 0));
+
+        long start = System.currentTimeMillis();
+        assertFalse(buffer.offer(3000, 62, 0));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(0, buffer.getCoalescedCount());
+    }
+
+    @Test
+    public void block_waitsUntilDrained() throws InterruptedException, IOException {
+        final UplinkBuffer buffer = new UplinkBuffer(2);
+        buffer.setPolicy(UplinkBuffer.Policy.BLOCK);
+        buffer.setBlockTimeout(10000);
+        buffer.offer(1000, 60, 0);
+        buffer.offer(2000, 61, 0);
+
+        Thread drainer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    buffer.drainTo(new ListSink(), 1);
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        drainer.start();
+        assertTrue(buffer.offer(3000, 62, 0));
+        drainer.join();
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(2, samples.size());
+        assertEquals(2000, samples.get(0).mTimestamp);
+        assertEquals(3000, samples.get(1).mTimestamp);
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldest_keepsNewestSamples() throws IOException {
+        UplinkBuffer buffer = new UplinkBuffer(3);
+        buffer.setPolicy(UplinkBuffer.Policy.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(buffer.offer(i * 1000, 60 + i, 0));
+        }
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(3, samples.size());
+        assertEquals(3000, samples.get(0).mTimestamp);
+        assertEquals(63, samples.get(0).mValue);
+        assertEquals(5000, samples.get(2).mTimestamp);
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(0, buffer.getCoalescedCount());
+    }
+
+    @Test
+    public void coalesce_mergesIntoNewestSampleOfSameWindow() throws IOException {
+        UplinkBuffer buffer = new UplinkBuffer(2);
+        buffer.setPolicy(UplinkBuffer.Policy.COALESCE);
+        buffer.setCoalesceWindow(1000);
+        buffer.offer(500, 60, 0);
+        buffer.offer(1100, 70, 0);
+        assertTrue(buffer.offer(1500, 80, 0));
+        assertTrue(buffer.offer(1900, 90, 0));
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(2, samples.size());
+        Sample merged = samples.get(1);
+        assertEquals(1100, merged.mTimestamp);
+        assertEquals(80, merged.mValue);
+        assertEquals(70, merged.mMin);
+        assertEquals(90, merged.mMax);
+        assertEquals(90, merged.mLast);
+        assertEquals(3, merged.mCount);
+        assertEquals(PulseBatch.FLAG_COALESCED, merged.mFlags);
+        assertEquals(0, samples.get(0).mFlags);
+        assertEquals(2, buffer.getCoalescedCount());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void coalesce_compactsOlderSamplesForNewWindow() throws IOException {
+        UplinkBuffer buffer = new UplinkBuffer(3);
+        buffer.setPolicy(UplinkBuffer.Policy.COALESCE);
+        buffer.setCoalesceWindow(1000);
+        buffer.offer(100, 60, 0);
+        buffer.offer(400, 62, 0);
+        buffer.offer(700, 64, 0);
+        // a new window, nothing to merge it into, so the first window is compacted
+        assertTrue(buffer.offer(1200, 80, 0));
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(2, samples.size());
+        assertEquals(100, samples.get(0).mTimestamp);
+        assertEquals(62, samples.get(0).mValue);
+        assertEquals(3, samples.get(0).mCount);
+        assertEquals(1200, samples.get(1).mTimestamp);
+        assertEquals(1, samples.get(1).mCount);
+        assertEquals(2, buffer.getCoalescedCount());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void coalesce_dropsOldestWhenNothingMerges() throws IOException {
+        UplinkBuffer buffer = new UplinkBuffer(2);
+        buffer.setPolicy(UplinkBuffer.Policy.COALESCE);
+        buffer.setCoalesceWindow(1000);
+        buffer.offer(1000, 60, 0);
+        buffer.offer(2000, 61, 0);
+        assertTrue(buffer.offer(3000, 62, 0));
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(2, samples.size());
+        assertEquals(2000, samples.get(0).mTimestamp);
+        assertEquals(3000, samples.get(1).mTimestamp);
+        assertEquals(0, buffer.getCoalescedCount());
+        assertEquals(1, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void coalesce_keepsArtifactsApart() throws IOException {
+        UplinkBuffer buffer = new UplinkBuffer(2);
+        buffer.setPolicy(UplinkBuffer.Policy.COALESCE);
+        buffer.setCoalesceWindow(1000);
+        buffer.offer(100, 60, 0);
+        buffer.offer(200, 61, PulseBatch.FLAG_ARTIFACT);
+        assertTrue(buffer.offer(300, 62, 0));
+
+        List<Sample> samples = drain(buffer);
+        assertEquals(2, samples.size());
+        assertEquals(PulseBatch.FLAG_ARTIFACT, samples.get(0).mFlags);
+        assertEquals(300, samples.get(1).mTimestamp);
+        assertEquals(1, buffer.getDroppedCount());
+    }
+}
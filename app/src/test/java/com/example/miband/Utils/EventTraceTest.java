@@ -0,0 +1,45 @@
+package com.example.miband.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventTraceTest {
+    @Test
+    public void format_showsArgumentsByKind() {
+        EventTrace trace = new EventTrace(4);
+        trace.add(EventTrace.Event.CHARACTERISTIC_CHANGED, 0x00002a3700001000L, 2,
+                EventTrace.packBytes(new byte[]{0x16, 0x48}), 0);
+        trace.add(EventTrace.Event.SCAN_RESULT, EventTrace.packAddress("C8:0F:10:AB:00:1e"), -70,
+                10, EventTrace.packBytes(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}));
+
+        String[] lines = trace.format(System.nanoTime()).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("characteristic changed 00002a37 [2] 1648"));
+        assertTrue(lines[1], lines[1].endsWith("scan result C8:0F:10:AB:00:1E -70 [10] 0102030405060708.."));
+    }
+
+    @Test
+    public void format_showsOnlyTheArgumentsOfTheEvent() {
+        EventTrace trace = new EventTrace(4);
+        trace.add(EventTrace.Event.HEART_RATE, 72, 1, 0, 0);
+        trace.add(EventTrace.Event.ACTION_RUN, 0x00002a3900001000L, 0, 0, 0);
+
+        String[] lines = trace.format(System.nanoTime()).split("\n");
+        assertTrue(lines[0], lines[0].endsWith("heart rate 72 1"));
+        assertTrue(lines[1], lines[1].endsWith("running action 00002a39"));
+    }
+
+    @Test
+    public void ring_keepsTheNewestEvents() {
+        EventTrace trace = new EventTrace(4);
+        for (int i = 0; i < 10; i++) {
+            trace.add(EventTrace.Event.CHARACTERISTIC_WRITE, 0, 0, 0, 0);
+            trace.add(EventTrace.Event.SCAN_RESULT, 0, i, 0, 0);
+        }
+        String[] lines = trace.format(System.nanoTime()).split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[1], lines[1].contains(" 8 "));
+        assertTrue(lines[3], lines[3].contains(" 9 "));
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.miband.Utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        long previous = -1;
+        for (int bucket = 0; bucket < 400; bucket++) {
+            long lower = Histogram.getLowerBound(bucket);
+            assertTrue(lower > previous);
+            assertEquals(bucket, Histogram.getBucket(lower));
+            assertEquals(bucket - (bucket > 0 ? 1 : 0), Histogram.getBucket(Math.max(0, lower - 1)));
+            previous = lower;
+        }
+        assertEquals(Histogram.getBucket(Long.MAX_VALUE), Histogram.getBucket(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < Histogram.SUB_BUCKETS; i++) {
+            histogram.record(i);
+        }
+        assertEquals(0, histogram.getPercentile(1));
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(Histogram.SUB_BUCKETS - 1, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentiles_withinBucketError() {
+        Random random = new Random(5);
+        Histogram histogram = new Histogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // from milliseconds to minutes
+            values[i] = (long) Math.exp(random.nextDouble() * 18);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (int percentile : new int[]{1, 10, 50, 90, 99}) {
+            long expected = values[(int) Math.ceil(percentile / 100.0 * values.length) - 1];
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual + " vs " + expected,
+                    actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS + 1);
+        }
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getPercentile(100));
+    }
+
+    @Test
+    public void empty_andReset() {
+        Histogram histogram = new Histogram();
+        assertEquals(-1, histogram.getPercentile(50));
+        assertEquals(-1, histogram.getMax());
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        histogram.record(1000);
+        assertEquals(2, histogram.getCount());
+        assertEquals("0:1 992:1", histogram.getBuckets());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals("", histogram.getBuckets());
+    }
+
+    @Test
+    public void concurrentRecords_areAllCounted() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        final int threads = 4;
+        final int records = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            recorders[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < records; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            };
+            recorders[t].start();
+        }
+        start.countDown();
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        assertEquals(threads * records, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(999 + threads - 1, histogram.getMax());
+        long sum = 0;
+        for (int t = 0; t < threads; t++) {
+            sum += (long) records / 1000 * (999 * 1000 / 2 + 1000 * t);
+        }
+        assertEquals(sum, histogram.getSum());
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.miband.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void lookups_returnTheSameMetric() {
+        Metrics metrics = new Metrics();
+        metrics.counter("a.count").increment();
+        metrics.counter("a.count").add(2);
+        assertEquals(3, metrics.counter("a.count").get());
+        assertSame(metrics.histogram("a.us"), metrics.histogram("a.us"));
+    }
+
+    @Test
+    public void dump_isSortedAndSkipsEmptyHistograms() {
+        Metrics metrics = new Metrics();
+        metrics.counter("b.count").increment();
+        metrics.counter("a.count");
+        metrics.register("depth", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        metrics.histogram("empty.us");
+        metrics.histogram("wait.us").record(5);
+
+        assertEquals("# counters\na.count 0\nb.count 1\n"
+                + "# gauges\ndepth 7\n"
+                + "# histograms\nwait.us n=1 p50=5 p90=5 p99=5 max=5\n", metrics.dump());
+
+        metrics.reset();
+        assertEquals(0, metrics.counter("b.count").get());
+        assertEquals(0, metrics.histogram("wait.us").getCount());
+    }
+}